@@ -0,0 +1,300 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Each phase of {@link FlatAffinityWatershed} on its own, and the full
+ * {@link AffinityWatershed2#letItRain} for generic and {@link ArrayImg}
+ * inputs. Phase benchmarks run the preceding phases in a per invocation
+ * setup that is not measured. Construction of symmetric affinities from
+ * one-sided affinities is compared for {@link SymmetricAffinities} and a copy
+ * of the lazy {@link AffinityWatershed2#symmetricAffinities} view.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class LetItRainBenchmark
+{
+
+	private static final long HIGH_BIT = 1l << 63;
+
+	private static final long SECOND_HIGH_BIT = 1l << 62;
+
+	private static final CompareBetter< FloatType > COMPARE = ( t, u ) -> t.get() > u.get();
+
+	private static final FloatCompareBetter GREATER = ( t, u ) -> t > u;
+
+	private static final FloatType WORST = new FloatType( Float.NEGATIVE_INFINITY );
+
+	@Param( { "262144", "2097152" } )
+	public long numVoxels;
+
+	@Param( { "2", "3" } )
+	public int nDim;
+
+	@Param( { "0.0", "0.1", "0.5" } )
+	public double plateauFraction;
+
+	@Param( { "1", "4" } )
+	public int nThreads;
+
+	private long[] dimensions;
+
+	private float[] affinities;
+
+	/**
+	 * Forward edges of {@link #affinities}, one channel per dimension
+	 */
+	private float[] oneSidedAffinities;
+
+	private long[][] offsets;
+
+	private long[] labels;
+
+	private ExecutorService es;
+
+	private FlatAffinityWatershed watershed;
+
+	private TLongArrayList plateauCorners;
+
+	@Setup( Level.Trial )
+	public void setupTrial()
+	{
+		dimensions = SyntheticAffinities.cube( numVoxels, nDim );
+		affinities = SyntheticAffinities.random( dimensions, plateauFraction, 100 );
+		labels = new long[ affinities.length / ( 2 * nDim ) ];
+		oneSidedAffinities = Arrays.copyOfRange( affinities, nDim * labels.length, affinities.length );
+		offsets = new long[ nDim ][ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			offsets[ d ][ d ] = 1;
+		es = new ForkJoinPool( nThreads );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDownTrial()
+	{
+		es.shutdown();
+	}
+
+	private void resetLabels()
+	{
+		Arrays.fill( labels, 0 );
+		watershed = new FlatAffinityWatershed( affinities, labels, dimensions, es, nThreads, LetItRainListener.NO_OP );
+	}
+
+	@State( Scope.Benchmark )
+	public static class BeforeFindParents
+	{
+		@Setup( Level.Invocation )
+		public void setup( final LetItRainBenchmark benchmark )
+		{
+			benchmark.resetLabels();
+		}
+	}
+
+	@State( Scope.Benchmark )
+	public static class BeforeFindPlateauCorners
+	{
+		@Setup( Level.Invocation )
+		public void setup( final LetItRainBenchmark benchmark ) throws InterruptedException, ExecutionException
+		{
+			benchmark.resetLabels();
+			benchmark.watershed.findParents( COMPARE, WORST );
+		}
+	}
+
+	@State( Scope.Benchmark )
+	public static class BeforeRemovePlateaus
+	{
+		@Setup( Level.Invocation )
+		public void setup( final LetItRainBenchmark benchmark ) throws InterruptedException, ExecutionException
+		{
+			benchmark.resetLabels();
+			benchmark.watershed.findParents( COMPARE, WORST );
+			benchmark.plateauCorners = benchmark.watershed.findPlateauCorners( SECOND_HIGH_BIT );
+		}
+	}
+
+	@State( Scope.Benchmark )
+	public static class BeforeFillFromRoots
+	{
+		@Setup( Level.Invocation )
+		public void setup( final LetItRainBenchmark benchmark ) throws InterruptedException, ExecutionException
+		{
+			benchmark.resetLabels();
+			benchmark.watershed.findParents( COMPARE, WORST );
+			benchmark.watershed.removePlateaus( benchmark.watershed.findPlateauCorners( SECOND_HIGH_BIT ), HIGH_BIT, SECOND_HIGH_BIT );
+		}
+	}
+
+	@Benchmark
+	public long[] findParents( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		watershed.findParents( COMPARE, WORST );
+		return labels;
+	}
+
+	@Benchmark
+	public long[] findParentsPrimitive( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		watershed.findParents( FloatCompareBetter.GREATER, WORST.get() );
+		return labels;
+	}
+
+	/**
+	 * Voxel by voxel loop for comparison with the blocked loop that
+	 * {@link #findParentsPrimitive} runs for {@link FloatCompareBetter#GREATER}.
+	 */
+	@Benchmark
+	public long[] findParentsPrimitivePerVoxel( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		watershed.findParents( GREATER, WORST.get() );
+		return labels;
+	}
+
+	@Benchmark
+	public TLongArrayList findPlateauCorners( final BeforeFindPlateauCorners state ) throws InterruptedException, ExecutionException
+	{
+		return watershed.findPlateauCorners( SECOND_HIGH_BIT );
+	}
+
+	@Benchmark
+	public long removePlateaus( final BeforeRemovePlateaus state ) throws InterruptedException, ExecutionException
+	{
+		return watershed.removePlateaus( plateauCorners, HIGH_BIT, SECOND_HIGH_BIT );
+	}
+
+	@Benchmark
+	public long[] fillFromRoots( final BeforeFillFromRoots state ) throws InterruptedException, ExecutionException
+	{
+		return watershed.fillFromRoots( HIGH_BIT );
+	}
+
+	@Benchmark
+	public long[] letItRainArrayImg( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		return AffinityWatershed2.letItRain(
+				SyntheticAffinities.asImg( affinities, dimensions ),
+				ArrayImgs.longs( labels, dimensions ),
+				COMPARE,
+				WORST,
+				es,
+				nThreads,
+				LetItRainListener.NO_OP );
+	}
+
+	@Benchmark
+	public long[] letItRainGeneric( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		final ArrayImg< LongType, LongArray > labelsImg = ArrayImgs.longs( labels, dimensions );
+		return AffinityWatershed2.letItRain(
+				Views.collapseReal( SyntheticAffinities.asImg( affinities, dimensions ) ),
+				labelsImg,
+				COMPARE,
+				WORST,
+				es,
+				nThreads,
+				LetItRainListener.NO_OP );
+	}
+
+	@Benchmark
+	public long[] letItRainGenericPrimitive( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		final ArrayImg< LongType, LongArray > labelsImg = ArrayImgs.longs( labels, dimensions );
+		return AffinityWatershed2.letItRainPrimitive(
+				Views.collapseReal( SyntheticAffinities.asImg( affinities, dimensions ) ),
+				labelsImg,
+				DoubleCompareBetter.GREATER,
+				WORST,
+				es,
+				nThreads,
+				LetItRainListener.NO_OP );
+	}
+
+	@Benchmark
+	public long[] letItRainOneSided( final BeforeFindParents state ) throws InterruptedException, ExecutionException
+	{
+		return FlatAffinityWatershed.letItRainOneSided(
+				oneSidedAffinitiesImg(),
+				ArrayImgs.longs( labels, dimensions ),
+				offsets,
+				FloatCompareBetter.GREATER,
+				WORST.get(),
+				es,
+				nThreads,
+				LetItRainListener.NO_OP );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > symmetricAffinitiesArrayImg() throws InterruptedException, ExecutionException
+	{
+		return SymmetricAffinities.copy( oneSidedAffinitiesImg(), new ArrayImgFactory<>( new FloatType() ), offsets, es, nThreads );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > symmetricAffinitiesCellImg() throws InterruptedException, ExecutionException
+	{
+		final int[] cellDimensions = new int[ nDim + 1 ];
+		Arrays.fill( cellDimensions, 64 );
+		cellDimensions[ nDim ] = 2 * nDim;
+		return SymmetricAffinities.copy( oneSidedAffinitiesImg(), new CellImgFactory<>( new FloatType(), cellDimensions ), offsets, es, nThreads );
+	}
+
+	/**
+	 * Single threaded copy of the extended and translated views for
+	 * comparison with {@link #symmetricAffinitiesArrayImg}.
+	 */
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > symmetricAffinitiesView()
+	{
+		final RandomAccessibleInterval< FloatType > view = AffinityWatershed2.symmetricAffinities( oneSidedAffinitiesImg(), offsets, new FloatType( Float.NaN ) );
+		final ArrayImg< FloatType, FloatArray > symmetric = ArrayImgs.floats( Intervals.dimensionsAsLongArray( view ) );
+		final Cursor< FloatType > source = Views.flatIterable( view ).cursor();
+		for ( final FloatType target : symmetric )
+			target.set( source.next() );
+		return symmetric;
+	}
+
+	private ArrayImg< FloatType, FloatArray > oneSidedAffinitiesImg()
+	{
+		final long[] oneSidedDimensions = Arrays.copyOf( dimensions, nDim + 1 );
+		oneSidedDimensions[ nDim ] = nDim;
+		return ArrayImgs.floats( oneSidedAffinities, oneSidedDimensions );
+	}
+
+}
@@ -0,0 +1,117 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * {@link AffinityWatershed2#generateRegionGraph} and
+ * {@link RegionAdjacencyGraph#build} for the basins of
+ * {@link AffinityWatershed2#letItRain} on synthetic affinities.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class RegionGraphBenchmark
+{
+
+	private static final CompareBetter< FloatType > COMPARE = ( t, u ) -> t.get() > u.get();
+
+	@Param( { "262144", "2097152" } )
+	public long numVoxels;
+
+	@Param( { "2", "3" } )
+	public int nDim;
+
+	@Param( { "0.0", "0.1", "0.5" } )
+	public double plateauFraction;
+
+	private ArrayImg< FloatType, FloatArray > affinities;
+
+	private ArrayImg< LongType, LongArray > labels;
+
+	private long[] steps;
+
+	private long numLabels;
+
+	private ExecutorService es;
+
+	@Setup( Level.Trial )
+	public void setup() throws InterruptedException, ExecutionException
+	{
+		final long[] dimensions = SyntheticAffinities.cube( numVoxels, nDim );
+		affinities = SyntheticAffinities.asImg( SyntheticAffinities.random( dimensions, plateauFraction, 100 ), dimensions );
+		labels = ArrayImgs.longs( dimensions );
+		steps = AffinityWatershed2.generateSteps( AffinityWatershed2.generateStride( labels ) );
+
+		es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		numLabels = AffinityWatershed2.letItRain(
+				affinities,
+				labels,
+				COMPARE,
+				new FloatType( Float.NEGATIVE_INFINITY ),
+				es,
+				Runtime.getRuntime().availableProcessors(),
+				LetItRainListener.NO_OP ).length;
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		es.shutdown();
+	}
+
+	@Benchmark
+	public TLongDoubleHashMap generateRegionGraph()
+	{
+		return AffinityWatershed2.generateRegionGraph(
+				Views.collapseReal( affinities ),
+				labels,
+				steps,
+				COMPARE,
+				new FloatType( Float.NEGATIVE_INFINITY ),
+				1l << 63,
+				1l << 62,
+				numLabels );
+	}
+
+	@Benchmark
+	public RegionAdjacencyGraph regionAdjacencyGraph() throws InterruptedException, ExecutionException
+	{
+		return RegionAdjacencyGraph.build(
+				Views.collapseReal( affinities ),
+				labels,
+				EdgeAggregation.MAX,
+				false,
+				es,
+				Runtime.getRuntime().availableProcessors() );
+	}
+
+}
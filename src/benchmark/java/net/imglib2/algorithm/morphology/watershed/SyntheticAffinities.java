@@ -0,0 +1,96 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Random;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Synthetic symmetric affinities so that benchmarks run without any data.
+ * Affinities are stored in the layout of {@link FlatAffinityWatershed}: edge
+ * {@code e} of voxel {@code i} at {@code e * size + i}, edges ordered as in
+ * {@link AffinityWatershed2#generateSteps(long[])}, and edges that leave the
+ * volume are {@code NaN}.
+ */
+public class SyntheticAffinities
+{
+
+	/**
+	 * Weight of plateau edges. All other weights are in {@code [0, 1)}, so
+	 * plateau edges are always the best edges of their voxels.
+	 */
+	public static final float PLATEAU_WEIGHT = 1.0f;
+
+	/**
+	 * @return dimensions of a cube with {@code nDim} dimensions and about
+	 *         {@code numVoxels} voxels
+	 */
+	public static long[] cube( final long numVoxels, final int nDim )
+	{
+		final long[] dimensions = new long[ nDim ];
+		final long side = Math.max( Math.round( Math.pow( numVoxels, 1.0 / nDim ) ), 1 );
+		for ( int d = 0; d < nDim; ++d )
+			dimensions[ d ] = side;
+		return dimensions;
+	}
+
+	/**
+	 * Uniformly random edge weights. Each edge is set to
+	 * {@link #PLATEAU_WEIGHT} with probability {@code plateauFraction},
+	 * which creates plateaus of tied best edges.
+	 */
+	public static float[] random( final long[] dimensions, final double plateauFraction, final long seed )
+	{
+		final int nDim = dimensions.length;
+		final int nEdges = 2 * nDim;
+		final long[] strides = AffinityWatershed2.generateStride( new FinalInterval( dimensions ) );
+		final int size = ( int ) ( strides[ nDim - 1 ] * dimensions[ nDim - 1 ] );
+		final float[] affinities = new float[ nEdges * size ];
+		final Random rng = new Random( seed );
+		final long[] position = new long[ nDim ];
+
+		for ( int index = 0; index < size; ++index )
+		{
+			for ( int d = 0; d < nDim; ++d )
+			{
+				final int forward = nDim + d;
+				final int backward = nDim - 1 - d;
+				if ( position[ d ] + 1 < dimensions[ d ] )
+				{
+					final float weight = rng.nextDouble() < plateauFraction ? PLATEAU_WEIGHT : rng.nextFloat();
+					affinities[ forward * size + index ] = weight;
+					affinities[ backward * size + index + ( int ) strides[ d ] ] = weight;
+				}
+				else
+					affinities[ forward * size + index ] = Float.NaN;
+				if ( position[ d ] == 0 )
+					affinities[ backward * size + index ] = Float.NaN;
+			}
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+
+		return affinities;
+	}
+
+	/**
+	 * @return {@code affinities} as {@link ArrayImg} with edges in the last
+	 *         dimension
+	 */
+	public static ArrayImg< FloatType, FloatArray > asImg( final float[] affinities, final long[] dimensions )
+	{
+		final long[] affinitiesDimensions = new long[ dimensions.length + 1 ];
+		System.arraycopy( dimensions, 0, affinitiesDimensions, 0, dimensions.length );
+		affinitiesDimensions[ dimensions.length ] = 2 * dimensions.length;
+		return ArrayImgs.floats( affinities, affinitiesDimensions );
+	}
+
+}
@@ -0,0 +1,142 @@
+package net.imglib2.algorithm.morphology.watershed.flat;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.watershed.AffinityWatershed2;
+import net.imglib2.algorithm.morphology.watershed.SyntheticAffinities;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+/**
+ * Sequential, random and neighborhood access through
+ * {@link FlatViewOnArrayImg}, {@link FlatViewOnPlanarImg},
+ * {@link FlatViewOnCellImg} and {@link FlatViewOnRandomAccessibleInterval}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class FlatViewBenchmark
+{
+
+	@Param( { "array", "planar", "cell", "rai" } )
+	public String storage;
+
+	@Param( { "262144", "2097152" } )
+	public long numVoxels;
+
+	@Param( { "2", "3" } )
+	public int nDim;
+
+	private AbstractFlatView< LongType > flat;
+
+	private long[] randomIndices;
+
+	private long[] steps;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final long[] dimensions = SyntheticAffinities.cube( numVoxels, nDim );
+		final RandomAccessibleInterval< LongType > img;
+		switch ( storage )
+		{
+		case "array":
+			img = ArrayImgs.longs( dimensions );
+			break;
+		case "planar":
+			img = PlanarImgs.longs( dimensions );
+			break;
+		case "cell":
+			img = new CellImgFactory<>( new LongType(), 64 ).create( dimensions );
+			break;
+		default:
+			img = Views.interval( ArrayImgs.longs( dimensions ), new long[ nDim ], maxOf( dimensions ) );
+			break;
+		}
+		flat = FlatViews.flatten( img );
+
+		final long size = flat.dimension( 0 );
+		final Random rng = new Random( 100 );
+		randomIndices = new long[ ( int ) Math.min( size, 1 << 20 ) ];
+		for ( int i = 0; i < randomIndices.length; ++i )
+			randomIndices[ i ] = ( long ) ( rng.nextDouble() * size );
+
+		steps = AffinityWatershed2.generateSteps( AffinityWatershed2.generateStride( img ) );
+
+		final RandomAccess< LongType > access = flat.randomAccess();
+		for ( long index = 0; index < size; ++index )
+			AffinityWatershed2.get( access, index ).set( index );
+	}
+
+	private static long[] maxOf( final long[] dimensions )
+	{
+		final long[] max = new long[ dimensions.length ];
+		for ( int d = 0; d < max.length; ++d )
+			max[ d ] = dimensions[ d ] - 1;
+		return max;
+	}
+
+	@Benchmark
+	public long sequential()
+	{
+		final RandomAccess< LongType > access = flat.randomAccess();
+		final long size = flat.dimension( 0 );
+		long sum = 0;
+		for ( long index = 0; index < size; ++index )
+			sum += AffinityWatershed2.get( access, index ).get();
+		return sum;
+	}
+
+	@Benchmark
+	public long random()
+	{
+		final RandomAccess< LongType > access = flat.randomAccess();
+		long sum = 0;
+		for ( final long index : randomIndices )
+			sum += AffinityWatershed2.get( access, index ).get();
+		return sum;
+	}
+
+	/**
+	 * Visit all edge neighbors of each voxel in flat index order, which is the
+	 * access pattern of the watershed phases.
+	 */
+	@Benchmark
+	public long neighbors()
+	{
+		final RandomAccess< LongType > access = flat.randomAccess();
+		final long size = flat.dimension( 0 );
+		long sum = 0;
+		for ( long index = 0; index < size; ++index )
+			for ( final long step : steps )
+			{
+				final long otherIndex = index + step;
+				if ( otherIndex >= 0 && otherIndex < size )
+					sum += AffinityWatershed2.get( access, otherIndex ).get();
+			}
+		return sum;
+	}
+
+}
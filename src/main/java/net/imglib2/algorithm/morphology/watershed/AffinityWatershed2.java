@@ -3,12 +3,15 @@ package net.imglib2.algorithm.morphology.watershed;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 
 import gnu.trove.impl.Constants;
@@ -23,14 +26,26 @@ import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.watershed.LetItRainListener.Phase;
 import net.imglib2.algorithm.morphology.watershed.flat.FlatViews;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
-import net.imglib2.view.IterableRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.RealComposite;
 
@@ -84,7 +99,40 @@ public class AffinityWatershed2
 			final T worst,
 			final ExecutorService es,
 			final int nTasks,
-			final Runnable visitor ) throws InterruptedException, ExecutionException
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( source, labels, compare, null, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * Compare edge weights as primitive {@code double} values instead of
+	 * through {@link CompareBetter}. {@link DoubleCompareBetter#GREATER} and
+	 * {@link DoubleCompareBetter#LESS} are inlined when finding parents.
+	 * Named differently from
+	 * {@link #letItRain(RandomAccessible, RandomAccessibleInterval, CompareBetter, RealType, ExecutorService, int, LetItRainListener)}
+	 * so that lambdas for either comparison are not ambiguous.
+	 */
+	public static < T extends RealType< T >> long[] letItRainPrimitive(
+			final RandomAccessible< RealComposite< T > > source,
+			final RandomAccessibleInterval< LongType > labels,
+			final DoubleCompareBetter compare,
+			final T worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( source, labels, null, compare, worst, es, nTasks, listener );
+	}
+
+	private static < T extends RealType< T >> long[] letItRain(
+			final RandomAccessible< RealComposite< T > > source,
+			final RandomAccessibleInterval< LongType > labels,
+			final CompareBetter< T > boxedCompare,
+			final DoubleCompareBetter compare,
+			final T worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
 	{
 
 		final long highBit = 1l << 63;
@@ -96,45 +144,314 @@ public class AffinityWatershed2
 		final long[] bitmask = generateDirectionBitmask( nDim );
 		final long[] inverseBitmask = generateInverseDirectionBitmask( bitmask );
 
+		final long size = Intervals.numElements( labels );
+
+		listener.phaseStarted( Phase.FIND_PARENTS );
 		final long t0 = System.nanoTime();
-		findParents( source, labels, compare, worst, bitmask, es, nTasks );
-		final long t1 = System.nanoTime();
-		System.out.println( "findParents: " + ( t1 - t0 ) / 1e6 + "ms" );
+		findParents( source, labels, boxedCompare, compare, worst, bitmask, es, nTasks, listener );
+		listener.phaseFinished( Phase.FIND_PARENTS, System.nanoTime() - t0, size );
 
-		visitor.run();
+		listener.phaseStarted( Phase.FIND_PLATEAU_CORNERS );
+		final long t1 = System.nanoTime();
+		final TLongArrayList plateauCorners = findPlateauCorners( labels, steps, bitmask, inverseBitmask, secondHighBit, es, nTasks, listener );
+		listener.phaseFinished( Phase.FIND_PLATEAU_CORNERS, System.nanoTime() - t1, size );
+		listener.plateauCorners( plateauCorners.size() );
 
+		listener.phaseStarted( Phase.REMOVE_PLATEAUS );
 		final long t2 = System.nanoTime();
-		final TLongArrayList plateauCorners = findPlateauCorners( labels, steps, bitmask, inverseBitmask, secondHighBit, es, nTasks );
-		final long t3 = System.nanoTime();
-		System.out.println( "findPlateauCorners: " + ( t3 - t2 ) / 1e6 + "ms" );
+		final long plateauVoxels = PlateauRemoval.remove( plateauCorners, labelAccess( labels ), size, steps, bitmask, inverseBitmask, highBit, secondHighBit, es, nTasks, listener );
+		listener.phaseFinished( Phase.REMOVE_PLATEAUS, System.nanoTime() - t2, plateauVoxels );
 
-		visitor.run();
+		final long[] counts = fillFromRoots( labels, steps, bitmask, inverseBitmask, highBit, es, nTasks, listener );
+//		final long[] counts = mergeAndCount( labels, highBit, secondHighBit, bitmask, steps );
 
-		final long t4 = System.nanoTime();
-		removePlateaus( plateauCorners, labels, steps, bitmask, inverseBitmask, highBit, secondHighBit );
-		final long t5 = System.nanoTime();
-		System.out.println( "removePlateaus: " + ( t5 - t4 ) / 1e6 + "ms" );
+		return counts;
 
-		visitor.run();
+	}
 
-		final long t6 = System.nanoTime();
-		final long[] counts = fillFromRoots( labels, steps, bitmask, inverseBitmask, highBit, es, nTasks );
-//		final long[] counts = mergeAndCount( labels, highBit, secondHighBit, bitmask, steps );
-		final long t7 = System.nanoTime();
-		System.out.println( "mergeAndCount: " + ( t7 - t6 ) / 1e6 + "ms" );
+	/**
+	 * Fast path for {@link ArrayImg} affinities and labels that runs all
+	 * phases directly on the primitive backing arrays, see
+	 * {@link FlatAffinityWatershed}. {@code affinities} holds the edge weights
+	 * in its last dimension.
+	 */
+	public static long[] letItRain(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return FlatAffinityWatershed.letItRain( affinities, labels, compare, worst, es, nTasks, listener );
+	}
 
-		return counts;
+	/**
+	 * Fast path for {@link PlanarImg} affinities and labels, see
+	 * {@link FlatAffinityWatershed}. Each plane is addressed separately, so
+	 * that the total number of voxels may exceed {@link Integer#MAX_VALUE}.
+	 */
+	public static long[] letItRain(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return FlatAffinityWatershed.letItRain( affinities, labels, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * Use the {@link ArrayImg} or {@link PlanarImg} fast path if both
+	 * {@code affinities} and {@code labels} are backed by primitive arrays of
+	 * the same kind, e.g. if created with {@link #createAffinities(long...)}
+	 * and {@link #createLabels(long...)}, and the generic implementation
+	 * otherwise. {@code affinities} holds the edge weights in its last
+	 * dimension.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static long[] letItRain(
+			final RandomAccessibleInterval< FloatType > affinities,
+			final RandomAccessibleInterval< LongType > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		if ( affinities instanceof ArrayImg && labels instanceof ArrayImg &&
+				( ( ArrayImg< ?, ? > ) affinities ).update( null ) instanceof FloatArray &&
+				( ( ArrayImg< ?, ? > ) labels ).update( null ) instanceof LongArray )
+			return letItRain(
+					( ArrayImg< FloatType, FloatArray > ) affinities,
+					( ArrayImg< LongType, LongArray > ) labels,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		if ( affinities instanceof PlanarImg && labels instanceof PlanarImg &&
+				( ( PlanarImg< ?, ? > ) affinities ).getPlane( 0 ) instanceof FloatArray &&
+				( ( PlanarImg< ?, ? > ) labels ).getPlane( 0 ) instanceof LongArray )
+			return letItRain(
+					( PlanarImg< FloatType, FloatArray > ) affinities,
+					( PlanarImg< LongType, LongArray > ) labels,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		return letItRain( Views.collapseReal( affinities ), labels, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRain(RandomAccessibleInterval, RandomAccessibleInterval, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}
+	 * that runs specialized loops for {@link FloatCompareBetter#GREATER} and
+	 * {@link FloatCompareBetter#LESS} on all paths.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static long[] letItRain(
+			final RandomAccessibleInterval< FloatType > affinities,
+			final RandomAccessibleInterval< LongType > labels,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		if ( affinities instanceof ArrayImg && labels instanceof ArrayImg &&
+				( ( ArrayImg< ?, ? > ) affinities ).update( null ) instanceof FloatArray &&
+				( ( ArrayImg< ?, ? > ) labels ).update( null ) instanceof LongArray )
+			return FlatAffinityWatershed.letItRain(
+					( ArrayImg< FloatType, FloatArray > ) affinities,
+					( ArrayImg< LongType, LongArray > ) labels,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		if ( affinities instanceof PlanarImg && labels instanceof PlanarImg &&
+				( ( PlanarImg< ?, ? > ) affinities ).getPlane( 0 ) instanceof FloatArray &&
+				( ( PlanarImg< ?, ? > ) labels ).getPlane( 0 ) instanceof LongArray )
+			return FlatAffinityWatershed.letItRain(
+					( PlanarImg< FloatType, FloatArray > ) affinities,
+					( PlanarImg< LongType, LongArray > ) labels,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		return letItRainPrimitive( Views.collapseReal( affinities ), labels, DoubleCompareBetter.of( compare ), new FloatType( worst ), es, nTasks, listener );
+	}
+
+	/**
+	 * Run on one-sided affinities with one channel per unit offset in
+	 * {@code offsets} in the last dimension, e.g. {@code -1,0,0 0,-1,0
+	 * 0,0,-1}, without constructing affinities with both edge directions.
+	 * The {@link ArrayImg} and {@link PlanarImg} fast paths read the opposite
+	 * edge from the neighbor, see
+	 * {@link FlatAffinityWatershed#letItRainOneSided(ArrayImg, ArrayImg, long[][], FloatCompareBetter, float, ExecutorService, int, LetItRainListener)},
+	 * and the generic implementation runs on
+	 * {@link #symmetricAffinities(RandomAccessibleInterval, long[][], RealType)}.
+	 * Edges that leave the volume are {@code worst}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static long[] letItRainOneSided(
+			final RandomAccessibleInterval< FloatType > affinities,
+			final RandomAccessibleInterval< LongType > labels,
+			final long[][] offsets,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		if ( affinities instanceof ArrayImg && labels instanceof ArrayImg &&
+				( ( ArrayImg< ?, ? > ) affinities ).update( null ) instanceof FloatArray &&
+				( ( ArrayImg< ?, ? > ) labels ).update( null ) instanceof LongArray )
+			return FlatAffinityWatershed.letItRainOneSided(
+					( ArrayImg< FloatType, FloatArray > ) affinities,
+					( ArrayImg< LongType, LongArray > ) labels,
+					offsets,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		if ( affinities instanceof PlanarImg && labels instanceof PlanarImg &&
+				( ( PlanarImg< ?, ? > ) affinities ).getPlane( 0 ) instanceof FloatArray &&
+				( ( PlanarImg< ?, ? > ) labels ).getPlane( 0 ) instanceof LongArray )
+			return FlatAffinityWatershed.letItRainOneSided(
+					( PlanarImg< FloatType, FloatArray > ) affinities,
+					( PlanarImg< LongType, LongArray > ) labels,
+					offsets,
+					compare,
+					worst,
+					es,
+					nTasks,
+					listener );
+
+		final FloatType worstType = new FloatType( worst );
+		return letItRainPrimitive(
+				Views.collapseReal( symmetricAffinities( affinities, offsets, worstType ) ),
+				labels,
+				DoubleCompareBetter.of( compare ),
+				worstType,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * Lazy view of one-sided affinities with one channel per unit offset in
+	 * {@code offsets} as affinities with both directions of each edge in the
+	 * last dimension, ordered as in {@link #generateSteps(long[])}. The weight
+	 * of the opposite edge is read from the neighbor, and edges that leave the
+	 * volume are {@code worst}. Nothing is copied.
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > symmetricAffinities(
+			final RandomAccessibleInterval< T > affinities,
+			final long[][] offsets,
+			final T worst )
+	{
+		final int nDim = affinities.numDimensions() - 1;
+		final OneSidedOffsets oneSidedOffsets = new OneSidedOffsets( offsets, nDim );
+		if ( affinities.dimension( nDim ) != nDim )
+			throw new IllegalArgumentException( "Expected " + nDim + " one-sided affinities in last dimension but got " + affinities.dimension( nDim ) );
+
+		final List< RandomAccessibleInterval< T > > edges = new ArrayList<>();
+		for ( int edge = 0; edge < 2 * nDim; ++edge )
+		{
+			final int d = OneSidedOffsets.dimension( edge, nDim );
+			final long direction = OneSidedOffsets.direction( edge, nDim );
+			final RandomAccessibleInterval< T > channel = Views.hyperSlice( affinities, nDim, affinities.min( nDim ) + oneSidedOffsets.channels[ d ] );
+
+			// voxels whose neighbor is inside
+			final long[] min = Intervals.minAsLongArray( channel );
+			final long[] max = Intervals.maxAsLongArray( channel );
+			if ( direction < 0 )
+				++min[ d ];
+			else
+				--max[ d ];
+
+			final long[] translation = new long[ nDim ];
+			translation[ d ] = -oneSidedOffsets.shift( edge );
+			final RandomAccessibleInterval< T > weights = Views.interval( Views.translate( channel, translation ), min, max );
+			edges.add( Views.interval( Views.extendValue( weights, worst ), channel ) );
+		}
 
+		return Views.stack( edges );
 	}
 
+	/**
+	 * Create labels for {@link #letItRain}: an {@link ArrayImg} if the
+	 * affinities of the same dimensions fit into a single array, a
+	 * {@link PlanarImg} if each plane of the affinities does, and a
+	 * {@link CellImg} otherwise. Labels and affinities created with
+	 * {@link #createAffinities(long...)} for the same dimensions always have
+	 * the same layout, so they use the same fast path.
+	 */
+	public static Img< LongType > createLabels( final long... dimensions )
+	{
+		return create( new LongType(), dimensions, affinityDimensions( dimensions ) );
+	}
+
+	/**
+	 * Create affinities with {@code 2 * dimensions.length} edge weights in the
+	 * last dimension, backed like {@link #createLabels(long...)}.
+	 */
+	public static Img< FloatType > createAffinities( final long... dimensions )
+	{
+		final long[] affinityDimensions = affinityDimensions( dimensions );
+		return create( new FloatType(), affinityDimensions, affinityDimensions );
+	}
+
+	private static long[] affinityDimensions( final long[] dimensions )
+	{
+		final long[] affinityDimensions = Arrays.copyOf( dimensions, dimensions.length + 1 );
+		affinityDimensions[ dimensions.length ] = 2 * dimensions.length;
+		return affinityDimensions;
+	}
+
+	/**
+	 * Choose the layout from {@code affinityDimensions}, the largest image
+	 * that is passed to {@link #letItRain} with the labels.
+	 */
+	private static < T extends NativeType< T > > Img< T > create( final T type, final long[] dimensions, final long[] affinityDimensions )
+	{
+		final long size = Intervals.numElements( affinityDimensions );
+		final long planeSize = affinityDimensions[ 0 ] * affinityDimensions[ 1 ];
+		if ( size < Integer.MAX_VALUE )
+			return new ArrayImgFactory<>( type ).create( dimensions );
+		else if ( planeSize < Integer.MAX_VALUE )
+			return new PlanarImgFactory<>( type ).create( dimensions );
+		else
+			return new CellImgFactory<>( type ).create( dimensions );
+	}
+
+	/**
+	 * Find parents with {@code compare} if not {@code null} and with
+	 * {@code boxedCompare} otherwise.
+	 */
 	private static < T extends RealType< T > > void findParents(
 			final RandomAccessible< RealComposite< T > > source,
 			final RandomAccessibleInterval< LongType > labels,
-			final CompareBetter< T > compare,
+			final CompareBetter< T > boxedCompare,
+			final DoubleCompareBetter compare,
 			final T worst,
 			final long[] bitMask,
 			final ExecutorService es,
-			final int nTasks ) throws InterruptedException, ExecutionException
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
 	{
 
 		final int nDim = source.numDimensions();
@@ -144,6 +461,8 @@ public class AffinityWatershed2
 
 		final long taskSize = size / nTasks;
 
+		final double worstValue = worst.getRealDouble();
+
 		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
 
 		for ( long start = 0; start < size; start += taskSize )
@@ -152,7 +471,7 @@ public class AffinityWatershed2
 			cursor.jumpFwd( start );
 			final T currentBest = worst.createVariable();
 
-			tasks.add( () -> {
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PARENTS, tasks.size(), Math.min( taskSize, size - start ), () -> {
 
 				for ( long count = 0; count < taskSize && cursor.hasNext(); ++count )
 				{
@@ -160,30 +479,85 @@ public class AffinityWatershed2
 					final RealComposite< T > edgeWeights = p.getA();
 					final LongType label = p.getB();
 					long labelRaw = label.get();
-					currentBest.set( worst );
 
-					for ( long i = 0; i < nEdges; ++i )
+					if ( compare != null )
 					{
-						final T currentWeight = edgeWeights.get( i );
-						if ( compare.isBetter( currentWeight, currentBest ) )
-							currentBest.set( currentWeight );
+						final double best;
+						if ( compare == DoubleCompareBetter.GREATER )
+							best = greatest( edgeWeights, nEdges, worstValue );
+						else if ( compare == DoubleCompareBetter.LESS )
+							best = least( edgeWeights, nEdges, worstValue );
+						else
+							best = best( compare, edgeWeights, nEdges, worstValue );
+
+						if ( Double.compare( best, worstValue ) != 0 )
+							for ( int i = 0; i < nEdges; ++i )
+								if ( Double.compare( edgeWeights.get( i ).getRealDouble(), best ) == 0 )
+									labelRaw |= bitMask[ i ];
 					}
+					else
+					{
+						currentBest.set( worst );
+
+						for ( long i = 0; i < nEdges; ++i )
+						{
+							final T currentWeight = edgeWeights.get( i );
+							if ( boxedCompare.isBetter( currentWeight, currentBest ) )
+								currentBest.set( currentWeight );
+						}
 
-					if ( !currentBest.valueEquals( worst ) )
-						for ( int i = 0; i < nEdges; ++i )
-							if ( edgeWeights.get( i ).valueEquals( currentBest ) )
-								labelRaw |= bitMask[ i ];
+						if ( !currentBest.valueEquals( worst ) )
+							for ( int i = 0; i < nEdges; ++i )
+								if ( edgeWeights.get( i ).valueEquals( currentBest ) )
+									labelRaw |= bitMask[ i ];
+					}
 
 					label.set( labelRaw );
 				}
 				return null;
 
-			} );
+			} ) );
 		}
 
 		invokeAllAndWait( es, tasks );
 	}
 
+	private static < T extends RealType< T > > double greatest( final RealComposite< T > edgeWeights, final int nEdges, final double worst )
+	{
+		double best = worst;
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			final double weight = edgeWeights.get( i ).getRealDouble();
+			if ( weight > best )
+				best = weight;
+		}
+		return best;
+	}
+
+	private static < T extends RealType< T > > double least( final RealComposite< T > edgeWeights, final int nEdges, final double worst )
+	{
+		double best = worst;
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			final double weight = edgeWeights.get( i ).getRealDouble();
+			if ( weight < best || best != best && weight == weight )
+				best = weight;
+		}
+		return best;
+	}
+
+	private static < T extends RealType< T > > double best( final DoubleCompareBetter compare, final RealComposite< T > edgeWeights, final int nEdges, final double worst )
+	{
+		double best = worst;
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			final double weight = edgeWeights.get( i ).getRealDouble();
+			if ( compare.isBetter( weight, best ) )
+				best = weight;
+		}
+		return best;
+	}
+
 	private static TLongArrayList findPlateauCorners(
 			final RandomAccessibleInterval< LongType > labels,
 			final long[] steps,
@@ -191,10 +565,11 @@ public class AffinityWatershed2
 			final long[] inverseBitmask,
 			final long plateauCornerMask,
 			final ExecutorService es,
-			final int nTasks ) throws InterruptedException, ExecutionException
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
 	{
 		final int nEdges = steps.length;
-		final long size = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).dimension( 0 );
+		final long size = FlatViews.flatten( labels ).dimension( 0 );
 
 
 
@@ -204,14 +579,14 @@ public class AffinityWatershed2
 
 		for ( long start = 0; start < size; start += taskSize )
 		{
-			final RandomAccess< LongType > flatLabels = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
+			final RandomAccess< LongType > flatLabels = FlatViews.flatten( labels ).randomAccess();
 			final Cursor< LongType > cursor = Views.flatIterable( labels ).cursor();
 			cursor.jumpFwd( start );
 			final long finalStart = start;
 
-			tasks.add( () -> {
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PLATEAU_CORNERS, tasks.size(), Math.min( taskSize, size - start ), () -> {
 				final TLongArrayList taskPlateauCornerIndices = new TLongArrayList();
-				for ( long count = 0, index = finalStart; count < taskSize; ++count, ++index )
+				for ( long count = 0, index = finalStart; count < taskSize && cursor.hasNext(); ++count, ++index )
 				{
 					final LongType label = cursor.next();
 					final long labelRaw = label.get();
@@ -228,7 +603,7 @@ public class AffinityWatershed2
 						}
 				}
 				return taskPlateauCornerIndices;
-			} );
+			} ) );
 
 		}
 
@@ -242,49 +617,29 @@ public class AffinityWatershed2
 		return plateauCornerIndices;
 	}
 
-	private static void removePlateaus(
-			final TLongArrayList queue,
-			final RandomAccessibleInterval< LongType > labels,
-			final long[] steps,
-			final long[] bitMask,
-			final long[] inverseBitmask,
-			final long highBit,
-			final long secondHighBit )
+	/**
+	 * Flat access to {@code labels} with one {@link RandomAccess} per call to
+	 * the supplier.
+	 */
+	private static < L extends IntegerType< L > > Supplier< WorkStealingFloodFill.LabelAccess > labelAccess( final RandomAccessibleInterval< L > labels )
 	{
+		return () -> {
+			final RandomAccess< L > flatLabels = FlatViews.flatten( labels ).randomAccess();
+			return new WorkStealingFloodFill.LabelAccess()
+			{
+				@Override
+				public long get( final long index )
+				{
+					return AffinityWatershed2.get( flatLabels, index ).getIntegerLong();
+				}
 
-		// This is the same as example in paper, if traversal order of queue is
-		// reversed.
-
-		// helpers
-		final int nEdges = steps.length;
-
-		// accesses
-		final RandomAccess< LongType > flatLabels1 = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
-		final RandomAccess< LongType > flatLabels2 = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
-
-		for( int queueIndex = 0; queueIndex < queue.size(); ++queueIndex ) {
-			final long index = queue.get( queueIndex );
-			long parent = 0;
-			final LongType label = get( flatLabels1, index );
-			final long labelRaw = label.get();
-			for ( int d = 0; d < nEdges; ++d )
-				if ( ( labelRaw & bitMask[ d ] ) != 0 )
+				@Override
+				public void set( final long index, final long value )
 				{
-					final long otherIndex = index + steps[ d ];
-					{
-						final LongType otherLabel = get( flatLabels2, otherIndex );
-						final long otherLabelRaw = otherLabel.get();
-						if ( ( otherLabelRaw & inverseBitmask[ d ] ) != 0 && ( otherLabelRaw & secondHighBit ) == 0 )
-						{
-							queue.add( otherIndex );
-							otherLabel.set( otherLabelRaw | secondHighBit );
-						}
-						else if ( parent == 0 )
-							parent = bitMask[ d ];
-					}
+					AffinityWatershed2.get( flatLabels, index ).setInteger( value );
 				}
-			label.set( parent );
-		}
+			};
+		};
 	}
 
 	private static TLongArrayList buildTree(
@@ -295,10 +650,10 @@ public class AffinityWatershed2
 	{
 		final TLongArrayList roots = new TLongArrayList();
 
-		final long size = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).dimension( 0 );
+		final long size = FlatViews.flatten( labels ).dimension( 0 );
 		final int nEdges = steps.length;
 
-		final RandomAccess< LongType > flatLabels = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
+		final RandomAccess< LongType > flatLabels = FlatViews.flatten( labels ).randomAccess();
 
 		final Cursor< LongType > c = Views.flatIterable( labels ).cursor();
 		for ( long index = 0; index < size; ++index )
@@ -356,12 +711,13 @@ public class AffinityWatershed2
 			final long[] inverseBitmask,
 			final long visitedMask,
 			final ExecutorService es,
-			final int nTasks ) throws InterruptedException, ExecutionException
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
 	{
 
-		final long size = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).dimension( 0 );
+		final long size = FlatViews.flatten( labels ).dimension( 0 );
 		final int nEdges = steps.length;
-
+		final long directionMask = WorkStealingFloodFill.directionMask( bitmask );
 
 		final AtomicLong backgroundCount = new AtomicLong( 0 );
 
@@ -373,11 +729,11 @@ public class AffinityWatershed2
 		{
 			final long finalStart = start;
 
-			rootLocatingTasks.add( () -> {
+			rootLocatingTasks.add( LetItRainListener.timed( listener, Phase.FIND_ROOTS, rootLocatingTasks.size(), Math.min( taskSize, size - start ), () -> {
 				final Cursor< L > cursor = Views.flatIterable( labels ).cursor();
 				cursor.jumpFwd( finalStart );
 				final TLongArrayList roots = new TLongArrayList();
-				final RandomAccess< L > flatLabels = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
+				final RandomAccess< L > flatLabels = FlatViews.flatten( labels ).randomAccess();
 				for ( long count = 0, index = finalStart; count < taskSize && cursor.hasNext(); ++count, ++index )
 				{
 					boolean isChild = false;
@@ -391,7 +747,7 @@ public class AffinityWatershed2
 							isChild = true;
 							final long otherIndex = index + steps[ i ];
 							if ( otherIndex >= 0 && otherIndex < size &&
-									( get( flatLabels, otherIndex ).getIntegerLong() & inverseBitmask[ i ] ) != 0 &&
+									Long.lowestOneBit( get( flatLabels, otherIndex ).getIntegerLong() & directionMask ) == inverseBitmask[ i ] &&
 									index < otherIndex )
 								hasChild = true;
 
@@ -411,19 +767,20 @@ public class AffinityWatershed2
 						backgroundCount.incrementAndGet();
 				}
 				return roots;
-			} );
+			} ) );
 		}
 
 		final TLongArrayList roots = new TLongArrayList();
 
 		{
 
+			listener.phaseStarted( Phase.FIND_ROOTS );
 			final long t0 = System.nanoTime();
 			final List< Future< TLongArrayList > > rootsFutures = es.invokeAll( rootLocatingTasks );
 			for ( final Future< TLongArrayList > f : rootsFutures )
 				roots.addAll( f.get() );
-			final long t1 = System.nanoTime();
-			System.out.println( "\tFinding roots " + ( t1 - t0 ) / 1e6 + "ms " + backgroundCount.get() + " " + roots.size() );
+			listener.phaseFinished( Phase.FIND_ROOTS, System.nanoTime() - t0, size );
+			listener.roots( roots.size(), backgroundCount.get() );
 		}
 
 		rootLocatingTasks.clear();
@@ -431,62 +788,23 @@ public class AffinityWatershed2
 //		for ( final TLongIterator r = roots.iterator(); r.hasNext(); )
 //			System.out.println( "rtt " + r.next() );
 
-		final long[] counts = new long[ roots.size() + 1 ];
-		counts[ 0 ] = backgroundCount.get();
-
-		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
-
-		final int fillTaskSize = Math.max( ( counts.length - 1 ) / nTasks, 1 );
-
-		for ( int start = 1; start < counts.length; start += fillTaskSize )
-		{
-			final int finalStart = start;
-			final int stop = Math.min( start + fillTaskSize, counts.length );
-			tasks.add( () -> {
-				final RandomAccess< L > flatLabels = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
-				final TLongArrayList queue = new TLongArrayList();
-				for ( int i = finalStart; i < stop; ++i )
-				{
-					queue.add( roots.get( i - 1 ) );
-					final long regionLabel = i | visitedMask;
-					for ( int startIndex = 0; startIndex < queue.size(); ++startIndex )
-					{
-						final long index = queue.get( startIndex );
-						for ( int d = 0; d < nEdges; ++d )
-						{
-							final long otherIndex = index + steps[ d ];
-							if ( otherIndex >= 0 && otherIndex < size )
-							{
-								final long otherLabel = get( flatLabels, otherIndex ).getIntegerLong();
-								if ( ( otherLabel & visitedMask ) == 0 && ( otherLabel & inverseBitmask[ d ] ) != 0 )
-									queue.add( otherIndex );
-							}
-						}
-						get( flatLabels, index ).setInteger( regionLabel );
-						++counts[ i ];
-					}
-					queue.clear();
-//					System.out.println( "Region " + i + " has size " + counts[ i ] );
-				}
-				return null;
-			} );
-		}
-
+		final long[] counts;
 		{
+			listener.phaseStarted( Phase.FLOOD_FILL );
 			final long t0 = System.nanoTime();
-			invokeAllAndWait( es, tasks );
-			final long t1 = System.nanoTime();
-			System.out.println( "\tFlood fill " + ( t1 - t0 ) / 1e6 + "ms" );
+			counts = WorkStealingFloodFill.fill( roots, labelAccess( labels ), size, steps, inverseBitmask, visitedMask, es, nTasks, listener );
+			listener.phaseFinished( Phase.FLOOD_FILL, System.nanoTime() - t0, Arrays.stream( counts ).sum() );
 		}
+		counts[ 0 ] = backgroundCount.get();
 
-		tasks.clear();
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
 
 		// should this happen outside?
 		final long activeBits = ~visitedMask;
 		for ( long start = 0; start < size; start += taskSize )
 		{
 			final long finalStart = start;
-			tasks.add( () -> {
+			tasks.add( LetItRainListener.timed( listener, Phase.REMOVE_MASK, tasks.size(), Math.min( taskSize, size - start ), () -> {
 				final Cursor< L > cursor = Views.flatIterable( labels ).cursor();
 				cursor.jumpFwd( finalStart );
 				for ( long count = 0; count < taskSize && cursor.hasNext(); ++count )
@@ -495,13 +813,13 @@ public class AffinityWatershed2
 					l.setInteger( l.getIntegerLong() & activeBits );
 				}
 				return null;
-			} );
+			} ) );
 		}
 		{
+			listener.phaseStarted( Phase.REMOVE_MASK );
 			final long t0 = System.nanoTime();
 			invokeAllAndWait( es, tasks );
-			final long t1 = System.nanoTime();
-			System.out.println( "\tRemoving mask " + ( t1 - t0 ) / 1e6 + "ms" );
+			listener.phaseFinished( Phase.REMOVE_MASK, System.nanoTime() - t0, size );
 		}
 
 		return counts;
@@ -527,7 +845,7 @@ public class AffinityWatershed2
 
 		final TLongArrayList queue = new TLongArrayList();
 
-		final RandomAccess< LongType > flatLabels2 = FlatViews.flatten( new IterableRandomAccessibleInterval<>( labels ) ).randomAccess();
+		final RandomAccess< LongType > flatLabels2 = FlatViews.flatten( labels ).randomAccess();
 
 		final Cursor< LongType > c = Views.flatIterable( labels ).cursor();
 		for ( long index = 0; c.hasNext(); ++index )
@@ -700,8 +1018,56 @@ public class AffinityWatershed2
 		return access.get();
 	}
 
+	/**
+	 * Like {@link #invokeAllAndWait} but call a single task directly on the
+	 * current thread.
+	 */
+	public static < T > List< T > invokeAllAndGet( final ExecutorService es, final List< Callable< T > > tasks ) throws InterruptedException, ExecutionException
+	{
+		final List< T > results = new ArrayList<>();
+		if ( tasks.size() == 1 )
+			try
+			{
+				results.add( tasks.get( 0 ).call() );
+			}
+			catch ( final InterruptedException | ExecutionException | RuntimeException e )
+			{
+				throw e;
+			}
+			catch ( final Exception e )
+			{
+				throw new ExecutionException( e );
+			}
+		else
+			for ( final Future< T > f : es.invokeAll( tasks ) )
+				results.add( f.get() );
+		return results;
+	}
+
+	static void sortAndRemoveDuplicates( final TLongArrayList list )
+	{
+		list.sort();
+		int size = 0;
+		for ( int i = 0; i < list.size(); ++i )
+			if ( size == 0 || list.get( i ) != list.get( size - 1 ) )
+				list.set( size++, list.get( i ) );
+		list.remove( size, list.size() - size );
+	}
+
+	/**
+	 * Invoke {@code tasks} on {@code es} and wait for all of them. A single
+	 * task is run on the current thread, so that single task callers can
+	 * share the executor that runs them.
+	 */
 	public static < T > List< Future< T > > invokeAllAndWait( final ExecutorService es, final ArrayList< Callable< T > > tasks ) throws InterruptedException, ExecutionException
 	{
+		if ( tasks.size() == 1 )
+		{
+			final FutureTask< T > task = new FutureTask<>( tasks.get( 0 ) );
+			task.run();
+			task.get();
+			return Collections.singletonList( task );
+		}
 		final List< Future< T > > futures = es.invokeAll( tasks );
 		for ( final Future< T > f : futures )
 			f.get();
@@ -0,0 +1,291 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+/**
+ * Hierarchical agglomeration of watershed basins on a
+ * {@link RegionAdjacencyGraph}. Edges are merged best first (highest weight)
+ * from an {@link IndexedDoubleMaxHeap} until the best remaining edge is below
+ * a threshold. Segments are tracked in a union-find with path compression.
+ * When two segments merge, the edges of the segment with fewer edges are
+ * moved to the other segment, edges to a common neighbor are combined
+ * according to the {@link Linkage}, and the priority of the combined edge is
+ * updated in the heap.
+ *
+ * Label {@code 0} is background as in {@link AffinityWatershed2#letItRain}
+ * and is never merged.
+ */
+public class Agglomeration
+{
+
+	/**
+	 * Weight of the combined edge of two edges with weights {@code weight1,
+	 * weight2} that aggregate {@code count1, count2} voxel edges.
+	 */
+	public static enum Linkage
+	{
+		MAX
+		{
+			@Override
+			public double combine( final double weight1, final long count1, final double weight2, final long count2 )
+			{
+				return Math.max( weight1, weight2 );
+			}
+		},
+		MIN
+		{
+			@Override
+			public double combine( final double weight1, final long count1, final double weight2, final long count2 )
+			{
+				return Math.min( weight1, weight2 );
+			}
+		},
+		/**
+		 * Mean over all voxel edges if edges were aggregated with
+		 * {@link EdgeAggregation#MEAN}.
+		 */
+		MEAN
+		{
+			@Override
+			public double combine( final double weight1, final long count1, final double weight2, final long count2 )
+			{
+				return ( weight1 * count1 + weight2 * count2 ) / ( count1 + count2 );
+			}
+		};
+
+		public abstract double combine( double weight1, long count1, double weight2, long count2 );
+	}
+
+	/**
+	 * Agglomerate {@code graph} into segments.
+	 *
+	 * @param sizes
+	 *            voxel count of each fragment indexed by label, as returned
+	 *            by {@link AffinityWatershed2#letItRain}
+	 * @param threshold
+	 *            stop once the best remaining edge weight is below
+	 *            {@code threshold}
+	 * @return lookup table from fragment label to segment label, the smallest
+	 *         fragment label in each segment, with {@code sizes.length}
+	 *         entries
+	 */
+	public static long[] agglomerate(
+			final RegionAdjacencyGraph graph,
+			final long[] sizes,
+			final Linkage linkage,
+			final double threshold,
+			final MergeCriterion criterion )
+	{
+		final int numNodes = graph.numNodes();
+
+		// undirected edges between rows, excluding background
+		int numEdges = 0;
+		for ( int row = 0; row < numNodes; ++row )
+			for ( int index = graph.offset( row ), end = index + graph.degree( row ); index < end; ++index )
+				if ( graph.node( row ) != 0 && graph.neighbor( index ) > graph.node( row ) )
+					++numEdges;
+
+		final int[] edgeNodes1 = new int[ numEdges ];
+		final int[] edgeNodes2 = new int[ numEdges ];
+		final double[] weights = new double[ numEdges ];
+		final long[] counts = new long[ numEdges ];
+		final boolean[] isAlive = new boolean[ numEdges ];
+		final int[] degrees = new int[ numNodes ];
+
+		for ( int row = 0, edge = 0; row < numNodes; ++row )
+			for ( int index = graph.offset( row ), end = index + graph.degree( row ); index < end; ++index )
+				if ( graph.node( row ) != 0 && graph.neighbor( index ) > graph.node( row ) )
+				{
+					final int otherRow = graph.row( graph.neighbor( index ) );
+					edgeNodes1[ edge ] = row;
+					edgeNodes2[ edge ] = otherRow;
+					weights[ edge ] = graph.weight( index );
+					counts[ edge ] = graph.count( index );
+					isAlive[ edge ] = true;
+					++degrees[ row ];
+					++degrees[ otherRow ];
+					++edge;
+				}
+
+		final int[][] adjacency = new int[ numNodes ][];
+		final int[] adjacencySizes = new int[ numNodes ];
+		for ( int row = 0; row < numNodes; ++row )
+			adjacency[ row ] = new int[ degrees[ row ] ];
+		for ( int edge = 0; edge < numEdges; ++edge )
+		{
+			adjacency[ edgeNodes1[ edge ] ][ adjacencySizes[ edgeNodes1[ edge ] ]++ ] = edge;
+			adjacency[ edgeNodes2[ edge ] ][ adjacencySizes[ edgeNodes2[ edge ] ]++ ] = edge;
+		}
+
+		final int[] parents = new int[ numNodes ];
+		final long[] segmentSizes = new long[ numNodes ];
+		for ( int row = 0; row < numNodes; ++row )
+		{
+			parents[ row ] = row;
+			final long label = graph.node( row );
+			segmentSizes[ row ] = label >= 0 && label < sizes.length ? sizes[ ( int ) label ] : 0;
+		}
+
+		// the single live edge between each pair of adjacent segments
+		final TLongIntHashMap edgeBetween = new TLongIntHashMap( 2 * numEdges, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		final IndexedDoubleMaxHeap heap = new IndexedDoubleMaxHeap( numEdges );
+		for ( int edge = 0; edge < numEdges; ++edge )
+		{
+			edgeBetween.put( key( edgeNodes1[ edge ], edgeNodes2[ edge ] ), edge );
+			heap.push( edge, weights[ edge ] );
+		}
+
+		// edges rejected by criterion, considered again when a segment grows
+		final int[][] rejected = new int[ numNodes ][];
+		final int[] rejectedSizes = new int[ numNodes ];
+
+		while ( !heap.isEmpty() && heap.peekPriority() >= threshold )
+		{
+			final int edge = heap.pop();
+			final int root1 = findRoot( parents, edgeNodes1[ edge ] );
+			final int root2 = findRoot( parents, edgeNodes2[ edge ] );
+			if ( !criterion.merge( weights[ edge ], segmentSizes[ root1 ], segmentSizes[ root2 ] ) )
+			{
+				add( rejected, rejectedSizes, root1, edge );
+				add( rejected, rejectedSizes, root2, edge );
+				continue;
+			}
+
+			// move the edges of the segment with fewer edges
+			final int root, child;
+			if ( adjacencySizes[ root1 ] >= adjacencySizes[ root2 ] )
+			{
+				root = root1;
+				child = root2;
+			}
+			else
+			{
+				root = root2;
+				child = root1;
+			}
+
+			isAlive[ edge ] = false;
+			edgeBetween.remove( key( root, child ) );
+
+			final int[] childEdges = adjacency[ child ];
+			for ( int k = 0; k < adjacencySizes[ child ]; ++k )
+			{
+				final int e = childEdges[ k ];
+				if ( !isAlive[ e ] )
+					continue;
+				final int node1 = findRoot( parents, edgeNodes1[ e ] );
+				final int other = node1 == child ? findRoot( parents, edgeNodes2[ e ] ) : node1;
+				edgeBetween.remove( key( child, other ) );
+				final int existing = edgeBetween.get( key( root, other ) );
+				if ( existing < 0 )
+				{
+					edgeNodes1[ e ] = root;
+					edgeNodes2[ e ] = other;
+					edgeBetween.put( key( root, other ), e );
+					add( adjacency, adjacencySizes, root, e );
+				}
+				else
+				{
+					weights[ existing ] = linkage.combine( weights[ existing ], counts[ existing ], weights[ e ], counts[ e ] );
+					counts[ existing ] += counts[ e ];
+					isAlive[ e ] = false;
+					heap.remove( e );
+					if ( heap.contains( existing ) )
+						heap.push( existing, weights[ existing ] );
+					else
+						add( rejected, rejectedSizes, root, existing );
+				}
+			}
+
+			parents[ child ] = root;
+			segmentSizes[ root ] += segmentSizes[ child ];
+			adjacency[ child ] = null;
+			adjacencySizes[ child ] = 0;
+
+			for ( final int segment : new int[] { root, child } )
+			{
+				for ( int k = 0; k < rejectedSizes[ segment ]; ++k )
+				{
+					final int e = rejected[ segment ][ k ];
+					if ( isAlive[ e ] )
+						heap.push( e, weights[ e ] );
+				}
+				rejected[ segment ] = null;
+				rejectedSizes[ segment ] = 0;
+			}
+		}
+
+		final long[] lut = new long[ sizes.length ];
+		for ( int label = 0; label < lut.length; ++label )
+			lut[ label ] = label;
+
+		final long[] segmentLabels = new long[ numNodes ];
+		Arrays.fill( segmentLabels, Long.MAX_VALUE );
+		for ( int row = 0; row < numNodes; ++row )
+		{
+			final int root = findRoot( parents, row );
+			segmentLabels[ root ] = Math.min( segmentLabels[ root ], graph.node( row ) );
+		}
+		for ( int row = 0; row < numNodes; ++row )
+		{
+			final long label = graph.node( row );
+			if ( label >= 0 && label < lut.length )
+				lut[ ( int ) label ] = segmentLabels[ findRoot( parents, row ) ];
+		}
+
+		return lut;
+	}
+
+	/**
+	 * Replace each label in {@code labels} with its entry in {@code lut}.
+	 */
+	public static < L extends IntegerType< L > > void relabel( final RandomAccessibleInterval< L > labels, final long[] lut )
+	{
+		for ( final L label : Views.flatIterable( labels ) )
+			label.setInteger( lut[ ( int ) label.getIntegerLong() ] );
+	}
+
+	/**
+	 * Key of an unordered pair of segments. The packed pair is multiplied by
+	 * an odd constant, which is a bijection, so that the hash of
+	 * {@link TLongIntHashMap}, {@code (int)(key ^ (key >>> 32))}, does not
+	 * collide for all pairs with equal {@code segment1 ^ segment2}.
+	 */
+	private static long key( final int segment1, final int segment2 )
+	{
+		final long pair = segment1 < segment2
+				? ( long ) segment1 << 32 | segment2
+				: ( long ) segment2 << 32 | segment1;
+		return pair * 0x9E3779B97F4A7C15L;
+	}
+
+	private static void add( final int[][] lists, final int[] sizes, final int list, final int value )
+	{
+		if ( lists[ list ] == null )
+			lists[ list ] = new int[ 4 ];
+		else if ( sizes[ list ] == lists[ list ].length )
+			lists[ list ] = Arrays.copyOf( lists[ list ], 2 * sizes[ list ] );
+		lists[ list ][ sizes[ list ]++ ] = value;
+	}
+
+	private static int findRoot( final int[] parents, int node )
+	{
+		int root = node;
+		while ( parents[ root ] != root )
+			root = parents[ root ];
+		while ( parents[ node ] != root )
+		{
+			final int next = parents[ node ];
+			parents[ node ] = root;
+			node = next;
+		}
+		return root;
+	}
+
+}
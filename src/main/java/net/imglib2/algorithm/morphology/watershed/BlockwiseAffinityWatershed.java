@@ -0,0 +1,593 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Block-wise {@link AffinityWatershed2#letItRain} in three passes over the
+ * blocks of a volume, each with at most a block and its direct neighbors in
+ * memory:
+ *
+ * <ol>
+ * <li>{@link #letItRain} finds the best edges of every voxel of a block with
+ * a one voxel halo, and the distance of plateau voxels to the closest plateau
+ * corner within the block.</li>
+ * <li>{@link #resolvePlateaus} propagates these distances across block faces.
+ * It is repeated for all blocks with a changed neighbor until no distance
+ * changes. Distances are shortest paths over mutually pointing edges, so the
+ * result does not depend on the order of the blocks.</li>
+ * <li>{@link #fragments} chooses a single parent for every voxel, exactly as
+ * plateau removal and the flood fill of the in-memory version do: plateau
+ * voxels point to the first neighbor that is closer to a corner, and voxels
+ * on a plateau without exit follow their lowest direction bit. Fragments are
+ * the connected components of these parents within a block.</li>
+ * </ol>
+ *
+ * Fragments are connected across block faces with
+ * {@link #collectEquivalences}. Each basin of the in-memory version is then
+ * the union of its fragments. A block holds one byte of direction bits and an
+ * {@code int} distance per voxel between the passes.
+ */
+public class BlockwiseAffinityWatershed
+{
+
+	/**
+	 * Distance of voxels that are not on a plateau with a corner.
+	 */
+	public static final int UNREACHED = Integer.MAX_VALUE;
+
+	public static class Block
+	{
+
+		public final Interval interval;
+
+		/**
+		 * Direction bits of the best edges of each voxel in flat iteration
+		 * order, as in
+		 * {@link AffinityWatershed2#generateDirectionBitmask(int)}, before
+		 * plateau removal.
+		 */
+		public final byte[] parents;
+
+		/**
+		 * Distance of each voxel to the closest plateau corner over mutually
+		 * pointing edges, {@code 0} for corners and {@link #UNREACHED} for
+		 * voxels without such a path. Updated by {@link #resolvePlateaus}.
+		 */
+		public final int[] distances;
+
+		public Block( final Interval interval, final byte[] parents, final int[] distances )
+		{
+			super();
+			this.interval = interval;
+			this.parents = parents;
+			this.distances = distances;
+		}
+
+	}
+
+	public static class Fragments
+	{
+
+		public final Interval interval;
+
+		/**
+		 * Block-local fragment ids in flat iteration order, 0 for background.
+		 */
+		public final long[] labels;
+
+		/**
+		 * The direction bit of the single parent of each voxel, 0 for
+		 * background.
+		 */
+		public final byte[] parents;
+
+		/**
+		 * {@code counts[ 0 ]} is the number of background voxels,
+		 * {@code counts[ i ]} the size of fragment {@code i}.
+		 */
+		public final long[] counts;
+
+		public Fragments( final Interval interval, final long[] labels, final byte[] parents, final long[] counts )
+		{
+			super();
+			this.interval = interval;
+			this.labels = labels;
+			this.parents = parents;
+			this.counts = counts;
+		}
+
+		public int numFragments()
+		{
+			return counts.length - 1;
+		}
+
+	}
+
+	/**
+	 * Find the best edges of {@code block} with a one voxel halo and the
+	 * distances of its plateau voxels to the closest plateau corner in
+	 * {@code block}.
+	 *
+	 * @param affinities
+	 *            one-sided affinities with edge weights in the last dimension
+	 * @param volume
+	 *            the full volume, edges leaving it are ignored
+	 * @param block
+	 *            the block to be processed
+	 * @param offsets
+	 *            one unit offset per edge weight channel, one channel per
+	 *            dimension, e.g. {@code -1,0,0 0,-1,0 0,0,-1}
+	 * @param compare
+	 * @param worst
+	 * @param es
+	 *            the block is processed in a single task that is run on the
+	 *            calling thread, so {@code es} may be the executor that runs
+	 *            the blocks
+	 * @return direction bits and plateau distances for {@code block}
+	 */
+	public static < T extends RealType< T > > Block letItRain(
+			final RandomAccessible< T > affinities,
+			final Interval volume,
+			final Interval block,
+			final long[][] offsets,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( affinities, volume, block, offsets, compare, null, worst.get(), es );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRain(RandomAccessible, Interval, Interval, long[][], CompareBetter, FloatType, ExecutorService)}.
+	 */
+	public static < T extends RealType< T > > Block letItRain(
+			final RandomAccessible< T > affinities,
+			final Interval volume,
+			final Interval block,
+			final long[][] offsets,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( affinities, volume, block, offsets, null, compare, worst, es );
+	}
+
+	private static < T extends RealType< T > > Block letItRain(
+			final RandomAccessible< T > affinities,
+			final Interval volume,
+			final Interval block,
+			final long[][] offsets,
+			final CompareBetter< FloatType > boxedCompare,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = block.numDimensions();
+		final int nEdges = 2 * nDim;
+		if ( nEdges > Byte.SIZE )
+			throw new IllegalArgumentException( "Direction bits do not fit into a byte for " + nDim + " dimensions." );
+
+		final Interval extended = Intervals.expand( block, 1 );
+		final long[] extendedDimensions = Intervals.dimensionsAsLongArray( extended );
+		final long[] extendedStrides = AffinityWatershed2.generateStride( extended );
+		final long[] extendedSteps = AffinityWatershed2.generateSteps( extendedStrides );
+
+		final float[] symmetricAffinities = symmetricAffinities( affinities, volume, extended, offsets );
+		final long[] extendedLabels = new long[ ( int ) Intervals.numElements( extended ) ];
+		final FlatAffinityWatershed watershed = new FlatAffinityWatershed( symmetricAffinities, extendedLabels, extendedDimensions, es, 1, LetItRainListener.NO_OP );
+		watershed.findParents( boxedCompare, compare, worst );
+
+		final long[] dimensions = Intervals.dimensionsAsLongArray( block );
+		final int size = ( int ) Intervals.numElements( block );
+		final byte[] parents = new byte[ size ];
+		final int[] distances = new int[ size ];
+		final TIntArrayList corners = new TIntArrayList();
+		final long[] position = new long[ nDim ];
+		for ( int index = 0; index < size; ++index )
+		{
+			int extendedIndex = 0;
+			for ( int d = 0; d < nDim; ++d )
+				extendedIndex += ( position[ d ] + 1 ) * extendedStrides[ d ];
+			final long bits = extendedLabels[ extendedIndex ];
+			parents[ index ] = ( byte ) bits;
+			distances[ index ] = UNREACHED;
+			// plateau corners as in AffinityWatershed2, the halo holds the
+			// best edges of the neighbors
+			for ( int e = 0; e < nEdges; ++e )
+				if ( ( bits & 1 << e ) != 0 && ( extendedLabels[ ( int ) ( extendedIndex + extendedSteps[ e ] ) ] & 1 << nEdges - 1 - e ) == 0 )
+				{
+					distances[ index ] = 0;
+					corners.add( index );
+					break;
+				}
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+
+		final Block result = new Block( new FinalInterval( block ), parents, distances );
+		new Faces( result, null ).propagate( corners );
+		return result;
+	}
+
+	/**
+	 * Propagate plateau distances from the faces of {@code neighbors} into
+	 * {@code block}.
+	 *
+	 * @param neighbors
+	 *            neighbors of {@code block} in the order of
+	 *            {@link AffinityWatershed2#generateSteps(long[])}, i.e. in
+	 *            negative direction of the last dimension first and in
+	 *            positive direction of the last dimension last, {@code null}
+	 *            outside of the volume
+	 * @return {@code true} if any distance of {@code block} changed
+	 */
+	public static boolean resolvePlateaus( final Block block, final Block[] neighbors )
+	{
+		final Faces faces = new Faces( block, neighbors );
+		final int nEdges = faces.nEdges;
+		final byte[] parents = block.parents;
+		final int[] distances = block.distances;
+		final TIntArrayList changed = new TIntArrayList();
+		for ( int index = 0; index < parents.length; ++index )
+			for ( int e = 0; e < nEdges; ++e )
+			{
+				final Block neighbor = neighbors[ e ];
+				if ( neighbor == null || ( parents[ index ] & 1 << e ) == 0 || !faces.leaves( index, e ) )
+					continue;
+				final int neighborIndex = faces.neighborIndex( index, e );
+				final int neighborDistance = neighbor.distances[ neighborIndex ];
+				if ( ( neighbor.parents[ neighborIndex ] & 1 << nEdges - 1 - e ) != 0 && neighborDistance != UNREACHED && neighborDistance + 1 < distances[ index ] )
+				{
+					distances[ index ] = neighborDistance + 1;
+					changed.add( index );
+				}
+			}
+		faces.propagate( changed );
+		return !changed.isEmpty();
+	}
+
+	/**
+	 * Choose a single parent for each voxel of {@code block} and find the
+	 * connected components of the parents within {@code block}. Distances of
+	 * {@code block} and {@code neighbors} must be resolved.
+	 *
+	 * @param neighbors
+	 *            as in {@link #resolvePlateaus(Block, Block[])}
+	 */
+	public static Fragments fragments( final Block block, final Block[] neighbors )
+	{
+		final Faces faces = new Faces( block, neighbors );
+		final int nEdges = faces.nEdges;
+		final int size = block.parents.length;
+
+		final byte[] parents = new byte[ size ];
+		for ( int index = 0; index < size; ++index )
+		{
+			final int bits = block.parents[ index ] & 0xff;
+			final int distance = block.distances[ index ];
+			if ( bits == 0 )
+				continue;
+			// plateau without corner, follow the lowest direction bit as in
+			// WorkStealingFloodFill
+			if ( distance == UNREACHED )
+			{
+				parents[ index ] = ( byte ) Integer.lowestOneBit( bits );
+				continue;
+			}
+			// first edge that leaves the plateau or leads closer to a corner,
+			// as in PlateauRemoval
+			for ( int e = 0; e < nEdges; ++e )
+			{
+				if ( ( bits & 1 << e ) == 0 )
+					continue;
+				final Block neighbor = faces.leaves( index, e ) ? neighbors[ e ] : block;
+				if ( neighbor == null )
+					continue;
+				final int neighborIndex = neighbor == block ? ( int ) ( index + faces.steps[ e ] ) : faces.neighborIndex( index, e );
+				if ( ( neighbor.parents[ neighborIndex ] & 1 << nEdges - 1 - e ) == 0 || neighbor.distances[ neighborIndex ] < distance )
+				{
+					parents[ index ] = ( byte ) ( 1 << e );
+					break;
+				}
+			}
+		}
+
+		final long[] labels = new long[ size ];
+		final TLongArrayList counts = new TLongArrayList();
+		counts.add( 0 );
+		final TIntArrayList queue = new TIntArrayList();
+		for ( int index = 0; index < size; ++index )
+		{
+			if ( labels[ index ] != 0 )
+				continue;
+			if ( parents[ index ] == 0 )
+			{
+				counts.set( 0, counts.get( 0 ) + 1 );
+				continue;
+			}
+			final long fragment = counts.size();
+			labels[ index ] = fragment;
+			queue.add( index );
+			for ( int queueIndex = 0; queueIndex < queue.size(); ++queueIndex )
+			{
+				final int current = queue.get( queueIndex );
+				for ( int e = 0; e < nEdges; ++e )
+				{
+					if ( faces.leaves( current, e ) )
+						continue;
+					final int neighbor = ( int ) ( current + faces.steps[ e ] );
+					if ( labels[ neighbor ] == 0 && ( ( parents[ current ] & 1 << e ) != 0 || ( parents[ neighbor ] & 1 << nEdges - 1 - e ) != 0 ) )
+					{
+						labels[ neighbor ] = fragment;
+						queue.add( neighbor );
+					}
+				}
+			}
+			counts.add( queue.size() );
+			queue.clear();
+		}
+
+		return new Fragments( block.interval, labels, parents, counts.toArray() );
+	}
+
+	/**
+	 * Collect equivalences of global fragment ids across the face between
+	 * {@code lower} and {@code upper} block, where {@code upper} is the
+	 * neighbor of {@code lower} in positive {@code d} direction. Global ids
+	 * are block-local ids shifted by the respective offset. Two fragments are
+	 * equivalent if the parent of a voxel on one side of the face is on the
+	 * other side. Equivalent ids are added to {@code equivalences} in pairs.
+	 *
+	 * @param lowerParents
+	 *            {@link Fragments#parents} of {@code lower}
+	 * @param upperParents
+	 *            {@link Fragments#parents} of {@code upper}
+	 */
+	public static void collectEquivalences(
+			final long[] lowerLabels,
+			final byte[] lowerParents,
+			final long lowerOffset,
+			final long[] lowerDimensions,
+			final long[] upperLabels,
+			final byte[] upperParents,
+			final long upperOffset,
+			final long[] upperDimensions,
+			final int d,
+			final TLongArrayList equivalences )
+	{
+		final int nDim = lowerDimensions.length;
+		final int lowerToUpper = 1 << ( nDim + d );
+		final int upperToLower = 1 << ( nDim - 1 - d );
+
+		final long[] faceDimensions = lowerDimensions.clone();
+		faceDimensions[ d ] = 1;
+		final long[] lowerStrides = AffinityWatershed2.generateStride( new FinalInterval( lowerDimensions ) );
+		final long[] upperStrides = AffinityWatershed2.generateStride( new FinalInterval( upperDimensions ) );
+		final long lowerFaceStart = ( lowerDimensions[ d ] - 1 ) * lowerStrides[ d ];
+
+		final long faceSize = Intervals.numElements( faceDimensions );
+		final long[] position = new long[ nDim ];
+		for ( long faceIndex = 0; faceIndex < faceSize; ++faceIndex )
+		{
+			long lowerIndex = lowerFaceStart;
+			long upperIndex = 0;
+			for ( int k = 0; k < nDim; ++k )
+			{
+				lowerIndex += position[ k ] * lowerStrides[ k ];
+				upperIndex += position[ k ] * upperStrides[ k ];
+			}
+
+			for ( int k = 0; k < nDim; ++k )
+			{
+				if ( ++position[ k ] < faceDimensions[ k ] )
+					break;
+				position[ k ] = 0;
+			}
+
+			final long lowerLabel = lowerLabels[ ( int ) lowerIndex ];
+			final long upperLabel = upperLabels[ ( int ) upperIndex ];
+			if ( lowerLabel == 0 || upperLabel == 0 )
+				continue;
+			if ( ( lowerParents[ ( int ) lowerIndex ] & lowerToUpper ) != 0 || ( upperParents[ ( int ) upperIndex ] & upperToLower ) != 0 )
+			{
+				equivalences.add( lowerOffset + lowerLabel );
+				equivalences.add( upperOffset + upperLabel );
+			}
+		}
+	}
+
+	private static < T extends RealType< T > > float[] symmetricAffinities(
+			final RandomAccessible< T > affinities,
+			final Interval volume,
+			final Interval extended,
+			final long[][] offsets )
+	{
+		final int nDim = extended.numDimensions();
+		final int nEdges = 2 * nDim;
+
+		final OneSidedOffsets oneSidedOffsets = new OneSidedOffsets( offsets, nDim );
+		final int[] channels = oneSidedOffsets.channels;
+		final long[] signs = oneSidedOffsets.signs;
+
+		// one-sided affinities for extended block plus one voxel
+		final Interval padded = Intervals.expand( extended, 1 );
+		final long paddedSize = Intervals.numElements( padded );
+		final long[] paddedStrides = AffinityWatershed2.generateStride( padded );
+		final float[] oneSided = new float[ ( int ) ( paddedSize * nDim ) ];
+		final long[] min = new long[ nDim + 1 ];
+		final long[] max = new long[ nDim + 1 ];
+		for ( int d = 0; d < nDim; ++d )
+		{
+			min[ d ] = padded.min( d );
+			max[ d ] = padded.max( d );
+		}
+		max[ nDim ] = nDim - 1;
+		final Cursor< T > source = Views.flatIterable( Views.interval( affinities, new FinalInterval( min, max ) ) ).cursor();
+		for ( int index = 0; source.hasNext(); ++index )
+			oneSided[ index ] = source.next().getRealFloat();
+
+		final long size = Intervals.numElements( extended );
+		final float[] symmetric = new float[ ( int ) ( size * nEdges ) ];
+		final long[] position = new long[ nDim ];
+		extended.min( position );
+		for ( int index = 0; index < size; ++index )
+		{
+			long paddedIndex = 0;
+			for ( int d = 0; d < nDim; ++d )
+				paddedIndex += ( position[ d ] - padded.min( d ) ) * paddedStrides[ d ];
+
+			final boolean inside = isInside( position, volume );
+			for ( int d = 0; d < nDim; ++d )
+			{
+				final long channelStart = channels[ d ] * paddedSize;
+				for ( int s = -1; s <= 1; s += 2 )
+				{
+					final int edge = s < 0 ? nDim - 1 - d : nDim + d;
+					final long neighbor = position[ d ] + s;
+					final float weight;
+					if ( !inside || neighbor < volume.min( d ) || neighbor > volume.max( d ) )
+						weight = Float.NaN;
+					else if ( s == signs[ d ] )
+						weight = oneSided[ ( int ) ( channelStart + paddedIndex ) ];
+					else
+						weight = oneSided[ ( int ) ( channelStart + paddedIndex + s * paddedStrides[ d ] ) ];
+					symmetric[ ( int ) ( edge * size + index ) ] = weight;
+				}
+			}
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] <= extended.max( d ) )
+					break;
+				position[ d ] = extended.min( d );
+			}
+		}
+
+		return symmetric;
+	}
+
+	private static boolean isInside( final long[] position, final Interval volume )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			if ( position[ d ] < volume.min( d ) || position[ d ] > volume.max( d ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Flat neighborhood of the voxels of a block, across faces into its
+	 * neighbors.
+	 */
+	private static class Faces
+	{
+
+		final int nDim;
+
+		final int nEdges;
+
+		final Block block;
+
+		final long[] dimensions;
+
+		final long[] strides;
+
+		final long[] steps;
+
+		final long[][] neighborDimensions;
+
+		final long[][] neighborStrides;
+
+		Faces( final Block block, final Block[] neighbors )
+		{
+			this.nDim = block.interval.numDimensions();
+			this.nEdges = 2 * nDim;
+			this.block = block;
+			this.dimensions = Intervals.dimensionsAsLongArray( block.interval );
+			this.strides = AffinityWatershed2.generateStride( block.interval );
+			this.steps = AffinityWatershed2.generateSteps( strides );
+			this.neighborDimensions = new long[ nEdges ][];
+			this.neighborStrides = new long[ nEdges ][];
+			if ( neighbors != null )
+				for ( int e = 0; e < nEdges; ++e )
+					if ( neighbors[ e ] != null )
+					{
+						neighborDimensions[ e ] = Intervals.dimensionsAsLongArray( neighbors[ e ].interval );
+						neighborStrides[ e ] = AffinityWatershed2.generateStride( neighbors[ e ].interval );
+					}
+		}
+
+		boolean leaves( final int index, final int edge )
+		{
+			final int d = edge < nDim ? nDim - 1 - edge : edge - nDim;
+			final long position = index / strides[ d ] % dimensions[ d ];
+			return edge < nDim ? position == 0 : position == dimensions[ d ] - 1;
+		}
+
+		/**
+		 * Index of the neighbor of {@code index} in the neighbor block across
+		 * the face that {@code edge} leaves.
+		 */
+		int neighborIndex( final int index, final int edge )
+		{
+			final int d = edge < nDim ? nDim - 1 - edge : edge - nDim;
+			long neighborIndex = 0;
+			for ( int k = 0; k < nDim; ++k )
+			{
+				final long position;
+				if ( k != d )
+					position = index / strides[ k ] % dimensions[ k ];
+				else
+					position = edge < nDim ? neighborDimensions[ edge ][ d ] - 1 : 0;
+				neighborIndex += position * neighborStrides[ edge ][ k ];
+			}
+			return ( int ) neighborIndex;
+		}
+
+		/**
+		 * Propagate the distances of the voxels in {@code queue} within the
+		 * block along mutually pointing edges. Voxels that get closer are
+		 * added to {@code queue}.
+		 */
+		void propagate( final TIntArrayList queue )
+		{
+			final byte[] parents = block.parents;
+			final int[] distances = block.distances;
+			for ( int head = 0; head < queue.size(); ++head )
+			{
+				final int index = queue.get( head );
+				final int distance = distances[ index ] + 1;
+				for ( int e = 0; e < nEdges; ++e )
+				{
+					if ( ( parents[ index ] & 1 << e ) == 0 || leaves( index, e ) )
+						continue;
+					final int neighbor = ( int ) ( index + steps[ e ] );
+					if ( ( parents[ neighbor ] & 1 << nEdges - 1 - e ) != 0 && distance < distances[ neighbor ] )
+					{
+						distances[ neighbor ] = distance;
+						queue.add( neighbor );
+					}
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,452 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Block-parallel connected components of the graph that connects voxels
+ * {@code p} and {@code p + steps[ k ]} inside the mask if the affinity in
+ * channel {@code k} at {@code p} is above a threshold.
+ *
+ * Each block is labeled independently with a block-local union-find. Every
+ * component is identified by the flat index in the volume of its first voxel
+ * plus one, so that ids are unique across blocks without knowing the number
+ * of components in other blocks. Edges that leave a block are collected with
+ * the flat index of the voxel on the other side and resolved, once all blocks
+ * are labeled, into equivalences of ids. A small global union-find over the
+ * component ids merges them, and a final pass relabels all blocks with
+ * consecutive ids in flat order of the first voxel of each component. The
+ * result does not depend on the block size.
+ */
+public class BlockwiseConnectedComponents
+{
+
+	/**
+	 * Label the connected components of {@code labels} block by block.
+	 *
+	 * @param mask
+	 *            voxels outside the mask are not connected and keep their
+	 *            label
+	 * @param affinities
+	 *            one-sided affinities with one channel per step in the last
+	 *            dimension and the spatial interval of {@code labels}
+	 * @param labels
+	 *            connected component ids starting at {@code 1}
+	 * @param unionFindMask
+	 *            set for voxels with at least one edge above
+	 *            {@code threshold}, {@code null} if not needed
+	 * @param threshold
+	 *            voxels are connected if their affinity is greater than
+	 *            {@code threshold}
+	 * @param steps
+	 *            offset of the neighbor for each affinity channel, not
+	 *            restricted to unit steps
+	 * @param blockSize
+	 *            each block is labeled by a single task
+	 * @return the largest id, i.e. the number of connected components
+	 */
+	public static < K extends BooleanType< K >, A extends RealType< A >, L extends IntegerType< L >, B extends BooleanType< B > > long fromAffinities(
+			final RandomAccessible< K > mask,
+			final RandomAccessibleInterval< A > affinities,
+			final RandomAccessibleInterval< L > labels,
+			final RandomAccessibleInterval< B > unionFindMask,
+			final double threshold,
+			final long[][] steps,
+			final int[] blockSize,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = labels.numDimensions();
+		if ( affinities.numDimensions() != nDim + 1 || affinities.dimension( nDim ) != steps.length )
+			throw new IllegalArgumentException( "Expected " + steps.length + " affinity channels in the last of " + ( nDim + 1 ) + " dimensions but got " + Arrays.toString( Intervals.dimensionsAsLongArray( affinities ) ) );
+		for ( final long[] step : steps )
+			if ( step.length != nDim )
+				throw new IllegalArgumentException( "Expected steps with " + nDim + " dimensions but got " + Arrays.toString( step ) );
+		if ( blockSize.length != nDim )
+			throw new IllegalArgumentException( "Expected block size with " + nDim + " dimensions but got " + Arrays.toString( blockSize ) );
+
+		final Interval volume = new FinalInterval( labels );
+		final List< Interval > blocks = blocks( volume, blockSize );
+
+		// label each block, collect edges that leave it
+		final List< Callable< Block > > labelTasks = new ArrayList<>();
+		for ( final Interval block : blocks )
+			labelTasks.add( () -> labelBlock( mask, affinities, labels, unionFindMask, threshold, steps, volume, block ) );
+		final List< Block > results = AffinityWatershed2.invokeAllAndGet( es, labelTasks );
+
+		// sorted ids of all block-local components
+		int numComponents = 0;
+		for ( final Block result : results )
+			numComponents += result.components.length;
+		final long[] components = new long[ numComponents ];
+		{
+			int offset = 0;
+			for ( final Block result : results )
+			{
+				System.arraycopy( result.components, 0, components, offset, result.components.length );
+				offset += result.components.length;
+			}
+		}
+		Arrays.sort( components );
+
+		// merge components across block faces, the root is the component with the smallest id
+		final int[] parents = new int[ numComponents ];
+		for ( int index = 0; index < numComponents; ++index )
+			parents[ index ] = index;
+		final RandomAccess< L > labelAccess = labels.randomAccess();
+		final long[] volumeDimensions = Intervals.dimensionsAsLongArray( volume );
+		final long[] volumeMin = Intervals.minAsLongArray( volume );
+		final long[] position = new long[ nDim ];
+		for ( final Block result : results )
+			for ( int index = 0; index < result.crossingEdges.size(); index += 2 )
+			{
+				IntervalIndexer.indexToPositionWithOffset( result.crossingEdges.get( index + 1 ), volumeDimensions, volumeMin, position );
+				labelAccess.setPosition( position );
+				final int root1 = findRoot( parents, Arrays.binarySearch( components, result.crossingEdges.get( index ) ) );
+				final int root2 = findRoot( parents, Arrays.binarySearch( components, labelAccess.get().getIntegerLong() ) );
+				if ( root1 < root2 )
+					parents[ root2 ] = root1;
+				else if ( root2 < root1 )
+					parents[ root1 ] = root2;
+			}
+
+		// consecutive ids in flat order, roots precede their children
+		final long[] mapping = new long[ numComponents ];
+		long maxId = 0;
+		for ( int index = 0; index < numComponents; ++index )
+		{
+			final int root = findRoot( parents, index );
+			mapping[ index ] = root == index ? ++maxId : mapping[ root ];
+		}
+
+		final List< Callable< Void > > relabelTasks = new ArrayList<>();
+		for ( final Interval block : blocks )
+			relabelTasks.add( () -> {
+				relabelBlock( mask, labels, block, components, mapping );
+				return null;
+			} );
+		AffinityWatershed2.invokeAllAndGet( es, relabelTasks );
+
+		return maxId;
+	}
+
+	private static class Block
+	{
+
+		/**
+		 * Ids of the components in the block in ascending order.
+		 */
+		private final long[] components;
+
+		/**
+		 * Pairs of component id and flat index in the volume of the voxel on
+		 * the other side of an edge above threshold that leaves the block.
+		 */
+		private final TLongArrayList crossingEdges;
+
+		private Block( final long[] components, final TLongArrayList crossingEdges )
+		{
+			this.components = components;
+			this.crossingEdges = crossingEdges;
+		}
+
+	}
+
+	private static < K extends BooleanType< K >, A extends RealType< A >, L extends IntegerType< L >, B extends BooleanType< B > > Block labelBlock(
+			final RandomAccessible< K > mask,
+			final RandomAccessibleInterval< A > affinities,
+			final RandomAccessibleInterval< L > labels,
+			final RandomAccessibleInterval< B > unionFindMask,
+			final double threshold,
+			final long[][] steps,
+			final Interval volume,
+			final Interval block )
+	{
+		final int nDim = block.numDimensions();
+		final int nChannels = steps.length;
+		final long[] dimensions = Intervals.dimensionsAsLongArray( block );
+		final int size = ( int ) Intervals.numElements( block );
+		final long[] strides = AffinityWatershed2.generateStride( new FinalInterval( dimensions ) );
+		final long[] volumeDimensions = Intervals.dimensionsAsLongArray( volume );
+		final long[] volumeMin = Intervals.minAsLongArray( volume );
+
+		final boolean[] isInMask = readMask( mask, block );
+
+		final long[] min = new long[ nDim + 1 ];
+		final long[] max = new long[ nDim + 1 ];
+		for ( int d = 0; d < nDim; ++d )
+		{
+			min[ d ] = block.min( d ) - volume.min( d ) + affinities.min( d );
+			max[ d ] = block.max( d ) - volume.min( d ) + affinities.min( d );
+		}
+		min[ nDim ] = affinities.min( nDim );
+		max[ nDim ] = affinities.max( nDim );
+		final float[] weights = new float[ size * nChannels ];
+		{
+			final Cursor< A > cursor = Views.flatIterable( Views.interval( affinities, new FinalInterval( min, max ) ) ).cursor();
+			for ( int index = 0; cursor.hasNext(); ++index )
+				weights[ index ] = cursor.next().getRealFloat();
+		}
+		final RandomAccessible< A > volumeAffinities = Views.translate( affinities, shift( volume, affinities ) );
+
+		final int[] parents = new int[ size ];
+		for ( int index = 0; index < size; ++index )
+			parents[ index ] = index;
+		final boolean[] isConnected = new boolean[ size ];
+		final TLongArrayList crossingEdges = new TLongArrayList();
+
+		final RandomAccess< K > maskAccess = mask.randomAccess();
+		final RandomAccess< A > affinityAccess = volumeAffinities.randomAccess();
+		final long[] position = new long[ nDim ];
+		final long[] neighbor = new long[ nDim ];
+		for ( int index = 0; index < size; ++index )
+		{
+			if ( isInMask[ index ] )
+				for ( int k = 0; k < nChannels; ++k )
+				{
+					final long[] step = steps[ k ];
+
+					// edge from this voxel to position + step
+					if ( weights[ k * size + index ] > threshold )
+					{
+						if ( isInBlock( position, step, 1, dimensions ) )
+						{
+							final int other = ( int ) ( index + offset( step, strides ) );
+							if ( isInMask[ other ] )
+							{
+								union( parents, index, other );
+								isConnected[ index ] = true;
+								isConnected[ other ] = true;
+							}
+						}
+						else if ( neighbor( position, step, 1, block, volume, neighbor ) && isInMask( maskAccess, neighbor ) )
+						{
+							isConnected[ index ] = true;
+							crossingEdges.add( index );
+							crossingEdges.add( IntervalIndexer.positionWithOffsetToIndex( neighbor, volumeDimensions, volumeMin ) );
+						}
+					}
+
+					// edge from position - step outside the block to this voxel
+					if ( !isInBlock( position, step, -1, dimensions ) && neighbor( position, step, -1, block, volume, neighbor ) && isInMask( maskAccess, neighbor ) )
+					{
+						for ( int d = 0; d < nDim; ++d )
+							affinityAccess.setPosition( neighbor[ d ], d );
+						affinityAccess.setPosition( k + affinities.min( nDim ), nDim );
+						if ( affinityAccess.get().getRealFloat() > threshold )
+							isConnected[ index ] = true;
+					}
+				}
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+
+		// id of each component is the flat index in the volume of its first voxel plus one
+		final long[] ids = new long[ size ];
+		final TLongArrayList components = new TLongArrayList();
+		final long[] blockOffset = new long[ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			blockOffset[ d ] = block.min( d );
+		Arrays.fill( position, 0 );
+		for ( int index = 0; index < size; ++index )
+		{
+			if ( isInMask[ index ] )
+			{
+				final int root = findRoot( parents, index );
+				if ( ids[ root ] == 0 )
+				{
+					for ( int d = 0; d < nDim; ++d )
+						neighbor[ d ] = blockOffset[ d ] + position[ d ];
+					ids[ root ] = IntervalIndexer.positionWithOffsetToIndex( neighbor, volumeDimensions, volumeMin ) + 1;
+					components.add( ids[ root ] );
+				}
+				ids[ index ] = ids[ root ];
+			}
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+
+		for ( int index = 0; index < crossingEdges.size(); index += 2 )
+			crossingEdges.set( index, ids[ ( int ) crossingEdges.get( index ) ] );
+
+		{
+			final Cursor< L > cursor = Views.flatIterable( Views.interval( labels, block ) ).cursor();
+			for ( int index = 0; cursor.hasNext(); ++index )
+			{
+				final L label = cursor.next();
+				if ( isInMask[ index ] )
+					label.setInteger( ids[ index ] );
+			}
+		}
+
+		// neighboring voxels of a BitType image may share a long across blocks
+		if ( unionFindMask != null )
+			synchronized ( unionFindMask )
+			{
+				final Cursor< B > cursor = Views.flatIterable( Views.interval( unionFindMask, block ) ).cursor();
+				for ( int index = 0; cursor.hasNext(); ++index )
+					cursor.next().set( isConnected[ index ] );
+			}
+
+		return new Block( components.toArray(), crossingEdges );
+	}
+
+	private static < K extends BooleanType< K >, L extends IntegerType< L > > void relabelBlock(
+			final RandomAccessible< K > mask,
+			final RandomAccessibleInterval< L > labels,
+			final Interval block,
+			final long[] components,
+			final long[] mapping )
+	{
+		final boolean[] isInMask = readMask( mask, block );
+		final Cursor< L > cursor = Views.flatIterable( Views.interval( labels, block ) ).cursor();
+		for ( int index = 0; cursor.hasNext(); ++index )
+		{
+			final L label = cursor.next();
+			if ( isInMask[ index ] )
+				label.setInteger( mapping[ Arrays.binarySearch( components, label.getIntegerLong() ) ] );
+		}
+	}
+
+	private static < K extends BooleanType< K > > boolean[] readMask( final RandomAccessible< K > mask, final Interval block )
+	{
+		final boolean[] isInMask = new boolean[ ( int ) Intervals.numElements( block ) ];
+		final Cursor< K > cursor = Views.flatIterable( Views.interval( mask, block ) ).cursor();
+		for ( int index = 0; cursor.hasNext(); ++index )
+			isInMask[ index ] = cursor.next().get();
+		return isInMask;
+	}
+
+	private static < K extends BooleanType< K > > boolean isInMask( final RandomAccess< K > maskAccess, final long[] position )
+	{
+		maskAccess.setPosition( position );
+		return maskAccess.get().get();
+	}
+
+	/**
+	 * Blocks of {@code blockSize} that tile {@code volume}, aligned with its
+	 * min.
+	 */
+	static List< Interval > blocks( final Interval volume, final int[] blockSize )
+	{
+		final int nDim = volume.numDimensions();
+		final long[] gridDimensions = new long[ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			gridDimensions[ d ] = ( volume.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+		final List< Interval > blocks = new ArrayList<>();
+		final long numBlocks = Intervals.numElements( gridDimensions );
+		final long[] gridPosition = new long[ nDim ];
+		final long[] min = new long[ nDim ];
+		final long[] max = new long[ nDim ];
+		for ( long index = 0; index < numBlocks; ++index )
+		{
+			IntervalIndexer.indexToPosition( index, gridDimensions, gridPosition );
+			for ( int d = 0; d < nDim; ++d )
+			{
+				min[ d ] = volume.min( d ) + gridPosition[ d ] * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ] - 1, volume.max( d ) );
+			}
+			blocks.add( new FinalInterval( min, max ) );
+		}
+		return blocks;
+	}
+
+	private static boolean isInBlock( final long[] position, final long[] step, final int sign, final long[] dimensions )
+	{
+		for ( int d = 0; d < position.length; ++d )
+		{
+			final long p = position[ d ] + sign * step[ d ];
+			if ( p < 0 || p >= dimensions[ d ] )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write {@code block.min + position + sign * step} into {@code target}.
+	 *
+	 * @return {@code true} if {@code target} is inside {@code volume}
+	 */
+	private static boolean neighbor( final long[] position, final long[] step, final int sign, final Interval block, final Interval volume, final long[] target )
+	{
+		boolean isInside = true;
+		for ( int d = 0; d < position.length; ++d )
+		{
+			target[ d ] = block.min( d ) + position[ d ] + sign * step[ d ];
+			isInside &= target[ d ] >= volume.min( d ) && target[ d ] <= volume.max( d );
+		}
+		return isInside;
+	}
+
+	private static long offset( final long[] step, final long[] strides )
+	{
+		long offset = 0;
+		for ( int d = 0; d < step.length; ++d )
+			offset += step[ d ] * strides[ d ];
+		return offset;
+	}
+
+	/**
+	 * Translation from spatial coordinates of {@code affinities} to those of
+	 * {@code volume}; the channel dimension is not translated.
+	 */
+	private static long[] shift( final Interval volume, final Interval affinities )
+	{
+		final long[] shift = new long[ affinities.numDimensions() ];
+		for ( int d = 0; d < volume.numDimensions(); ++d )
+			shift[ d ] = volume.min( d ) - affinities.min( d );
+		return shift;
+	}
+
+	private static void union( final int[] parents, final int index1, final int index2 )
+	{
+		final int root1 = findRoot( parents, index1 );
+		final int root2 = findRoot( parents, index2 );
+		if ( root1 < root2 )
+			parents[ root2 ] = root1;
+		else if ( root2 < root1 )
+			parents[ root1 ] = root2;
+	}
+
+	private static int findRoot( final int[] parents, int node )
+	{
+		int root = node;
+		while ( parents[ root ] != root )
+			root = parents[ root ];
+		while ( parents[ node ] != root )
+		{
+			final int next = parents[ node ];
+			parents[ node ] = root;
+			node = next;
+		}
+		return root;
+	}
+
+}
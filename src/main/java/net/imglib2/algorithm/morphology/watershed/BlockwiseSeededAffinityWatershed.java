@@ -0,0 +1,788 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Block-parallel version of {@link SeededAffinityWatershed#flood} with the
+ * same result, including ties.
+ *
+ * With edges ordered by weight and edge id, the seeded watershed is the unique
+ * maximum spanning forest rooted at the seeds. The path from a seed to a voxel
+ * in that forest is the path with the highest bottleneck, i.e. the highest
+ * lowest edge. Each block computes, for all its voxels, the bottleneck from
+ * the seeds in the block and the state of the voxels in the halo of
+ * neighboring blocks, together with the number of edges since the bottleneck
+ * edge. A voxel takes the label of the neighbor with the highest bottleneck
+ * and, within the same bottleneck, the lowest depth. This never points back
+ * along the path and gives the label of the forest. Blocks are flooded with a
+ * queue of buckets of quantized weights, and only the current bucket is kept
+ * in a heap, because the flood never pushes a candidate above the one that
+ * was just popped.
+ *
+ * The flood runs in rounds. In each round, a block reads the state of its
+ * halo from the previous round. A block is flooded again when the state near
+ * the faces of a neighboring block changed. The state only improves from round
+ * to round, so the rounds stop once no block changes, which makes the result
+ * independent of the block size and of the order of the tasks.
+ *
+ * Between rounds, a block keeps only the state of its shell, the voxels in
+ * the halo of neighboring blocks. Each flood starts over from the seeds and
+ * the halo in a {@link Workspace} that holds the affinities and the state of
+ * the expanded block, {@code 4 * nChannels + 24} bytes per voxel, and is
+ * reused by the following tasks. Memory thus grows with the number of
+ * concurrent tasks rather than with the volume, at the cost of flooding a
+ * block in full every time it is flooded again. Labels are written after a
+ * final flood of each block from the final state of its halo.
+ */
+public class BlockwiseSeededAffinityWatershed
+{
+
+	private static final int NUM_BUCKETS = 256;
+
+	/**
+	 * @param affinities
+	 *            one-sided affinities with one channel per offset in the last
+	 *            dimension and the spatial interval of {@code labels}
+	 * @param labels
+	 *            labels of the seeds, all other voxels that are reached by
+	 *            the flood are overwritten
+	 * @param seeds
+	 *            flat indices into {@code labels}
+	 * @param blockSize
+	 *            each block is flooded by a single task per round
+	 */
+	public static < A extends RealType< A >, L extends IntegerType< L > > void flood(
+			final RandomAccessibleInterval< A > affinities,
+			final RandomAccessibleInterval< L > labels,
+			final long[] seeds,
+			final long[][] offsets,
+			final int[] blockSize,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = labels.numDimensions();
+		final int nChannels = offsets.length;
+		if ( affinities.numDimensions() != nDim + 1 || affinities.dimension( nDim ) != nChannels )
+			throw new IllegalArgumentException( "Expected " + nChannels + " affinity channels in the last of " + ( nDim + 1 ) + " dimensions but got " + Arrays.toString( Intervals.dimensionsAsLongArray( affinities ) ) );
+		if ( blockSize.length != nDim )
+			throw new IllegalArgumentException( "Expected block size with " + nDim + " dimensions but got " + Arrays.toString( blockSize ) );
+
+		final Interval volume = new FinalInterval( labels );
+		final long[] margin = new long[ nDim ];
+		for ( final long[] offset : offsets )
+			for ( int d = 0; d < nDim; ++d )
+				margin[ d ] = Math.max( margin[ d ], Math.abs( offset[ d ] ) );
+
+		final List< Interval > intervals = BlockwiseConnectedComponents.blocks( volume, blockSize );
+		final long[] gridDimensions = new long[ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			gridDimensions[ d ] = ( volume.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+		final Block[] blocks = new Block[ intervals.size() ];
+		for ( int b = 0; b < blocks.length; ++b )
+			blocks[ b ] = new Block( b, intervals.get( b ), margin );
+
+		// seeds and their labels by block
+		{
+			final long[] volumeDimensions = Intervals.dimensionsAsLongArray( volume );
+			final long[] volumeMin = Intervals.minAsLongArray( volume );
+			final long[] position = new long[ nDim ];
+			final TIntArrayList[] blockSeeds = new TIntArrayList[ blocks.length ];
+			final TLongArrayList[] blockSeedLabels = new TLongArrayList[ blocks.length ];
+			final RandomAccess< L > labelAccess = labels.randomAccess();
+			for ( final long seed : seeds )
+			{
+				IntervalIndexer.indexToPositionWithOffset( seed, volumeDimensions, volumeMin, position );
+				final int b = blockIndex( position, volume, blockSize, gridDimensions );
+				if ( blockSeeds[ b ] == null )
+				{
+					blockSeeds[ b ] = new TIntArrayList();
+					blockSeedLabels[ b ] = new TLongArrayList();
+				}
+				labelAccess.setPosition( position );
+				blockSeeds[ b ].add( blocks[ b ].expandedIndex( position ) );
+				blockSeedLabels[ b ].add( labelAccess.get().getIntegerLong() );
+			}
+			for ( int b = 0; b < blocks.length; ++b )
+				if ( blockSeeds[ b ] != null )
+				{
+					blocks[ b ].seeds = blockSeeds[ b ].toArray();
+					blocks[ b ].seedLabels = blockSeedLabels[ b ].toArray();
+				}
+		}
+
+		// halo voxels inside the volume and where to find their state
+		for ( final Block block : blocks )
+			block.initializeHalo( volume, blocks, blockSize, gridDimensions );
+
+		// at most one workspace per concurrent task
+		final ConcurrentLinkedQueue< Workspace > workspaces = new ConcurrentLinkedQueue<>();
+
+		boolean[] isDirty = new boolean[ blocks.length ];
+		Arrays.fill( isDirty, true );
+		for ( boolean isAnyDirty = true; isAnyDirty; )
+		{
+			final List< Callable< Boolean > > tasks = new ArrayList<>();
+			final List< Block > flooded = new ArrayList<>();
+			for ( int b = 0; b < blocks.length; ++b )
+				if ( isDirty[ b ] )
+				{
+					final Block block = blocks[ b ];
+					flooded.add( block );
+					tasks.add( () -> {
+						final Workspace workspace = acquire( workspaces );
+						try
+						{
+							return block.flood( affinities, volume, offsets, blocks, workspace );
+						}
+						finally
+						{
+							workspaces.add( workspace );
+						}
+					} );
+				}
+			final List< Boolean > changed = AffinityWatershed2.invokeAllAndGet( es, tasks );
+
+			final boolean[] hasChanged = new boolean[ blocks.length ];
+			for ( int index = 0; index < flooded.size(); ++index )
+			{
+				flooded.get( index ).swap();
+				hasChanged[ flooded.get( index ).id ] = changed.get( index );
+			}
+
+			isDirty = new boolean[ blocks.length ];
+			isAnyDirty = false;
+			for ( int b = 0; b < blocks.length; ++b )
+				for ( final int neighbor : blocks[ b ].neighborBlocks )
+					if ( hasChanged[ neighbor ] )
+					{
+						isDirty[ b ] = true;
+						isAnyDirty = true;
+						break;
+					}
+		}
+
+		final List< Callable< Void > > writeTasks = new ArrayList<>();
+		for ( final Block block : blocks )
+			writeTasks.add( () -> {
+				final Workspace workspace = acquire( workspaces );
+				try
+				{
+					// the halo does not change anymore, so this reproduces the last flood of the block
+					block.flood( affinities, volume, offsets, blocks, workspace );
+					block.writeLabels( labels, workspace );
+				}
+				finally
+				{
+					workspaces.add( workspace );
+				}
+				return null;
+			} );
+		AffinityWatershed2.invokeAllAndGet( es, writeTasks );
+	}
+
+	private static Workspace acquire( final ConcurrentLinkedQueue< Workspace > workspaces )
+	{
+		final Workspace workspace = workspaces.poll();
+		return workspace == null ? new Workspace() : workspace;
+	}
+
+	private static int blockIndex( final long[] position, final Interval volume, final int[] blockSize, final long[] gridDimensions )
+	{
+		long index = 0;
+		for ( int d = gridDimensions.length - 1; d >= 0; --d )
+			index = index * gridDimensions[ d ] + ( position[ d ] - volume.min( d ) ) / blockSize[ d ];
+		return ( int ) index;
+	}
+
+	/**
+	 * Order of the state of voxels: higher bottleneck weight first, then
+	 * lower bottleneck edge id, then lower depth.
+	 */
+	private static boolean isBetter( final float weight1, final long edge1, final int depth1, final float weight2, final long edge2, final int depth2 )
+	{
+		return weight1 > weight2 || weight1 == weight2 && ( edge1 < edge2 || edge1 == edge2 && depth1 < depth2 );
+	}
+
+	private static int bucket( final float weight )
+	{
+		return weight >= 1.0f ? NUM_BUCKETS - 1 : weight > 0.0f ? ( int ) ( weight * NUM_BUCKETS ) : 0;
+	}
+
+	private static class Block
+	{
+
+		private final int id;
+
+		private final Interval interval;
+
+		/**
+		 * {@link #interval} grown by the largest offset in each dimension.
+		 * Voxels are addressed by their flat index in this interval.
+		 */
+		private final Interval expanded;
+
+		private final long[] expandedDimensions;
+
+		/**
+		 * Number of voxels of {@link #expanded}.
+		 */
+		private final int size;
+
+		private final long[] margin;
+
+		/**
+		 * Voxels of the block that are in the halo of neighboring blocks, in
+		 * ascending order.
+		 */
+		private final int[] shell;
+
+		private int[] seeds = new int[ 0 ];
+
+		private long[] seedLabels = new long[ 0 ];
+
+		/**
+		 * Halo voxels inside the volume with the block and position in
+		 * {@link #shell} that hold their state.
+		 */
+		private int[] halo;
+
+		private int[] haloBlocks;
+
+		private int[] haloSlots;
+
+		private int[] neighborBlocks;
+
+		/**
+		 * State of the {@link #shell} after the last round: bottleneck weight
+		 * and edge, depth, and label.
+		 */
+		private float[] weights;
+
+		private long[] edges;
+
+		private int[] depths;
+
+		private long[] labels;
+
+		private float[] nextWeights;
+
+		private long[] nextEdges;
+
+		private int[] nextDepths;
+
+		private long[] nextLabels;
+
+		private Block( final int id, final Interval interval, final long[] margin )
+		{
+			final int nDim = interval.numDimensions();
+			this.id = id;
+			this.interval = interval;
+			this.margin = margin;
+			this.expanded = Intervals.expand( interval, margin );
+			this.expandedDimensions = Intervals.dimensionsAsLongArray( expanded );
+			this.size = ( int ) Intervals.numElements( expanded );
+
+			final TIntArrayList shell = new TIntArrayList();
+			final long[] position = new long[ nDim ];
+			for ( int index = 0; index < size; ++index )
+			{
+				IntervalIndexer.indexToPosition( index, expandedDimensions, position );
+				boolean isInBlock = true;
+				boolean isNearFace = false;
+				for ( int d = 0; d < nDim; ++d )
+				{
+					final long p = position[ d ] - margin[ d ];
+					isInBlock &= p >= 0 && p < interval.dimension( d );
+					isNearFace |= p < margin[ d ] || p >= interval.dimension( d ) - margin[ d ];
+				}
+				if ( isInBlock && isNearFace )
+					shell.add( index );
+			}
+			this.shell = shell.toArray();
+
+			this.weights = new float[ this.shell.length ];
+			this.edges = new long[ this.shell.length ];
+			this.depths = new int[ this.shell.length ];
+			this.labels = new long[ this.shell.length ];
+			Arrays.fill( this.weights, Float.NEGATIVE_INFINITY );
+			Arrays.fill( this.edges, Long.MAX_VALUE );
+			Arrays.fill( this.depths, Integer.MAX_VALUE );
+			this.nextWeights = new float[ this.shell.length ];
+			this.nextEdges = new long[ this.shell.length ];
+			this.nextDepths = new int[ this.shell.length ];
+			this.nextLabels = new long[ this.shell.length ];
+		}
+
+		private int expandedIndex( final long[] position )
+		{
+			long index = 0;
+			for ( int d = position.length - 1; d >= 0; --d )
+				index = index * expandedDimensions[ d ] + position[ d ] - expanded.min( d );
+			return ( int ) index;
+		}
+
+		private void initializeHalo( final Interval volume, final Block[] blocks, final int[] blockSize, final long[] gridDimensions )
+		{
+			final int nDim = interval.numDimensions();
+			final TIntArrayList halo = new TIntArrayList();
+			final TIntArrayList haloBlocks = new TIntArrayList();
+			final TIntArrayList haloSlots = new TIntArrayList();
+			final long[] expandedMin = Intervals.minAsLongArray( expanded );
+			final long[] position = new long[ nDim ];
+			for ( int index = 0; index < size; ++index )
+			{
+				IntervalIndexer.indexToPositionWithOffset( index, expandedDimensions, expandedMin, position );
+				if ( contains( interval, position ) || !contains( volume, position ) )
+					continue;
+				final int b = blockIndex( position, volume, blockSize, gridDimensions );
+				halo.add( index );
+				haloBlocks.add( b );
+				haloSlots.add( Arrays.binarySearch( blocks[ b ].shell, blocks[ b ].expandedIndex( position ) ) );
+			}
+			this.halo = halo.toArray();
+			this.haloBlocks = haloBlocks.toArray();
+			this.haloSlots = haloSlots.toArray();
+			this.neighborBlocks = Arrays.stream( this.haloBlocks ).distinct().toArray();
+		}
+
+		private void swap()
+		{
+			final float[] weights = this.weights;
+			final long[] edges = this.edges;
+			final int[] depths = this.depths;
+			final long[] labels = this.labels;
+			this.weights = nextWeights;
+			this.edges = nextEdges;
+			this.depths = nextDepths;
+			this.labels = nextLabels;
+			this.nextWeights = weights;
+			this.nextEdges = edges;
+			this.nextDepths = depths;
+			this.nextLabels = labels;
+		}
+
+		/**
+		 * Flood the block from its seeds and the state of its halo after the
+		 * last round in {@code workspace}. Keep the state of the
+		 * {@link #shell} for the next round.
+		 *
+		 * @return {@code true} if the state of the shell changed
+		 */
+		private < A extends RealType< A > > boolean flood(
+				final RandomAccessibleInterval< A > affinities,
+				final Interval volume,
+				final long[][] offsets,
+				final Block[] blocks,
+				final Workspace workspace )
+		{
+			final int nDim = interval.numDimensions();
+			final int nChannels = offsets.length;
+			workspace.reset( size, nChannels );
+			final float[] voxelWeights = workspace.weights;
+			final long[] voxelEdges = workspace.edges;
+			final int[] voxelDepths = workspace.depths;
+			final long[] voxelLabels = workspace.labels;
+
+			// affinities of the expanded block, NaN outside the volume
+			final float[] affinityWeights = workspace.affinityWeights;
+			{
+				final Interval inside = Intervals.intersect( expanded, volume );
+				final long[] min = new long[ nDim + 1 ];
+				final long[] max = new long[ nDim + 1 ];
+				for ( int d = 0; d < nDim; ++d )
+				{
+					min[ d ] = inside.min( d ) - volume.min( d ) + affinities.min( d );
+					max[ d ] = inside.max( d ) - volume.min( d ) + affinities.min( d );
+				}
+				min[ nDim ] = affinities.min( nDim );
+				max[ nDim ] = affinities.max( nDim );
+				final Cursor< A > cursor = Views.flatIterable( Views.interval( affinities, new FinalInterval( min, max ) ) ).cursor();
+				final long[] position = new long[ nDim + 1 ];
+				for ( int d = 0; d < nDim; ++d )
+					position[ d ] = inside.min( d );
+				final long rowLength = inside.dimension( 0 );
+				while ( cursor.hasNext() )
+				{
+					long index = position[ nDim ] * size;
+					for ( int d = 0, stride = 1; d < nDim; stride *= expandedDimensions[ d ], ++d )
+						index += ( position[ d ] - expanded.min( d ) ) * stride;
+					for ( long x = 0; x < rowLength; ++x, ++index )
+						affinityWeights[ ( int ) index ] = cursor.next().getRealFloat();
+					for ( int d = 1; d <= nDim; ++d )
+					{
+						if ( d < nDim && ++position[ d ] <= inside.max( d ) || d == nDim && ++position[ d ] < nChannels )
+							break;
+						position[ d ] = d < nDim ? inside.min( d ) : 0;
+					}
+				}
+			}
+
+			final long[] strides = AffinityWatershed2.generateStride( new FinalInterval( expandedDimensions ) );
+			final long[] volumeStrides = AffinityWatershed2.generateStride( volume );
+			final long[] steps = new long[ nChannels ];
+			for ( int k = 0; k < nChannels; ++k )
+				for ( int d = 0; d < nDim; ++d )
+					steps[ k ] += offsets[ k ][ d ] * strides[ d ];
+
+			final Queue queue = workspace.queue;
+			final long[] position = new long[ nDim ];
+			for ( int s = 0; s < seeds.length; ++s )
+			{
+				voxelWeights[ seeds[ s ] ] = Float.POSITIVE_INFINITY;
+				voxelEdges[ seeds[ s ] ] = -1;
+				voxelDepths[ seeds[ s ] ] = 0;
+				voxelLabels[ seeds[ s ] ] = seedLabels[ s ];
+			}
+			for ( final int seed : seeds )
+				push( seed, workspace, position, offsets, steps, volumeStrides, volume );
+
+			for ( int h = 0; h < halo.length; ++h )
+			{
+				final Block other = blocks[ haloBlocks[ h ] ];
+				final int slot = haloSlots[ h ];
+				final int index = halo[ h ];
+				voxelWeights[ index ] = other.weights[ slot ];
+				voxelEdges[ index ] = other.edges[ slot ];
+				voxelDepths[ index ] = other.depths[ slot ];
+				voxelLabels[ index ] = other.labels[ slot ];
+				push( index, workspace, position, offsets, steps, volumeStrides, volume );
+			}
+
+			while ( !queue.isEmpty() )
+			{
+				final int entry = queue.pop();
+				final int target = queue.targets[ entry ];
+				if ( !isImprovement( workspace, target, queue.weights[ entry ], queue.edges[ entry ], queue.depths[ entry ], queue.labels[ entry ] ) )
+					continue;
+				voxelWeights[ target ] = queue.weights[ entry ];
+				voxelEdges[ target ] = queue.edges[ entry ];
+				voxelDepths[ target ] = queue.depths[ entry ];
+				voxelLabels[ target ] = queue.labels[ entry ];
+				push( target, workspace, position, offsets, steps, volumeStrides, volume );
+			}
+
+			boolean hasChanged = false;
+			for ( int slot = 0; slot < shell.length; ++slot )
+			{
+				final int index = shell[ slot ];
+				nextWeights[ slot ] = voxelWeights[ index ];
+				nextEdges[ slot ] = voxelEdges[ index ];
+				nextDepths[ slot ] = voxelDepths[ index ];
+				nextLabels[ slot ] = voxelLabels[ index ];
+				hasChanged |=
+						nextWeights[ slot ] != weights[ slot ] ||
+						nextEdges[ slot ] != edges[ slot ] ||
+						nextDepths[ slot ] != depths[ slot ] ||
+						nextLabels[ slot ] != labels[ slot ];
+			}
+			return hasChanged;
+		}
+
+		/**
+		 * Write the labels of all reached voxels of the block from
+		 * {@code workspace} after {@link #flood}.
+		 */
+		private < L extends IntegerType< L > > void writeLabels( final RandomAccessibleInterval< L > labelImage, final Workspace workspace )
+		{
+			final int[] voxelDepths = workspace.depths;
+			final long[] voxelLabels = workspace.labels;
+			final long[] position = new long[ interval.numDimensions() ];
+			final Cursor< L > cursor = Views.flatIterable( Views.interval( labelImage, interval ) ).localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				final L label = cursor.next();
+				cursor.localize( position );
+				final int index = expandedIndex( position );
+				if ( voxelDepths[ index ] != Integer.MAX_VALUE )
+					label.setInteger( voxelLabels[ index ] );
+			}
+		}
+
+		/**
+		 * A candidate replaces the state of a voxel if it is better, or if it
+		 * is equally good and carries a different label. The latter happens
+		 * only while the labels of the rounds before are not final yet.
+		 */
+		private static boolean isImprovement( final Workspace workspace, final int index, final float weight, final long edge, final int depth, final long label )
+		{
+			return isBetter( weight, edge, depth, workspace.weights[ index ], workspace.edges[ index ], workspace.depths[ index ] ) ||
+					weight == workspace.weights[ index ] && edge == workspace.edges[ index ] && depth == workspace.depths[ index ] && label != workspace.labels[ index ];
+		}
+
+		/**
+		 * Push candidates from the voxel at {@code index} to its neighbors in
+		 * the block whose state they improve.
+		 */
+		private void push(
+				final int index,
+				final Workspace workspace,
+				final long[] position,
+				final long[][] offsets,
+				final long[] steps,
+				final long[] volumeStrides,
+				final Interval volume )
+		{
+			final int nDim = position.length;
+			final int nChannels = offsets.length;
+			final Queue queue = workspace.queue;
+			final float[] affinityWeights = workspace.affinityWeights;
+			final float sourceWeight = workspace.weights[ index ];
+			final long sourceEdge = workspace.edges[ index ];
+			final int sourceDepth = workspace.depths[ index ];
+			final long label = workspace.labels[ index ];
+			if ( sourceDepth == Integer.MAX_VALUE )
+				return;
+			IntervalIndexer.indexToPosition( index, expandedDimensions, position );
+			for ( int k = 0; k < nChannels; ++k )
+				for ( int sign = 1; sign >= -1; sign -= 2 )
+				{
+					boolean isInBlock = true;
+					for ( int d = 0; d < nDim; ++d )
+					{
+						final long p = position[ d ] + sign * offsets[ k ][ d ] - margin[ d ];
+						isInBlock &= p >= 0 && p < interval.dimension( d );
+					}
+					if ( !isInBlock )
+						continue;
+					final int neighbor = ( int ) ( index + sign * steps[ k ] );
+
+					// the weight is stored with the voxel that has the other voxel at offsets[ k ]
+					final int source = sign == 1 ? index : neighbor;
+					final float weight = affinityWeights[ k * size + source ];
+					if ( Float.isNaN( weight ) )
+						continue;
+					long sourceIndex = 0;
+					for ( int d = 0; d < nDim; ++d )
+						sourceIndex += ( expanded.min( d ) + position[ d ] + ( sign == 1 ? 0 : -offsets[ k ][ d ] ) - volume.min( d ) ) * volumeStrides[ d ];
+					final long edge = sourceIndex * nChannels + k;
+
+					// either this edge or the bottleneck of index is the bottleneck of the neighbor
+					if ( isBetter( sourceWeight, sourceEdge, 0, weight, edge, 0 ) )
+					{
+						if ( isImprovement( workspace, neighbor, weight, edge, 0, label ) )
+							queue.push( neighbor, weight, edge, 0, label );
+					}
+					else if ( isImprovement( workspace, neighbor, sourceWeight, sourceEdge, sourceDepth + 1, label ) )
+						queue.push( neighbor, sourceWeight, sourceEdge, sourceDepth + 1, label );
+				}
+		}
+
+	}
+
+	private static boolean contains( final Interval interval, final long[] position )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			if ( position[ d ] < interval.min( d ) || position[ d ] > interval.max( d ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Buffers for the flood of one block at a time: affinities with the voxel
+	 * index fastest and the channel last, state of the voxels, and queue. The
+	 * buffers grow to the largest expanded block and are reused.
+	 */
+	private static class Workspace
+	{
+
+		private float[] affinityWeights = new float[ 0 ];
+
+		private float[] weights = new float[ 0 ];
+
+		private long[] edges = new long[ 0 ];
+
+		private int[] depths = new int[ 0 ];
+
+		private long[] labels = new long[ 0 ];
+
+		private final Queue queue = new Queue();
+
+		/**
+		 * Unreached state for the first {@code size} voxels, NaN affinities,
+		 * and an empty queue.
+		 */
+		private void reset( final int size, final int nChannels )
+		{
+			if ( weights.length < size )
+			{
+				weights = new float[ size ];
+				edges = new long[ size ];
+				depths = new int[ size ];
+				labels = new long[ size ];
+			}
+			if ( affinityWeights.length < size * nChannels )
+				affinityWeights = new float[ size * nChannels ];
+			Arrays.fill( affinityWeights, 0, size * nChannels, Float.NaN );
+			Arrays.fill( weights, 0, size, Float.NEGATIVE_INFINITY );
+			Arrays.fill( edges, 0, size, Long.MAX_VALUE );
+			Arrays.fill( depths, 0, size, Integer.MAX_VALUE );
+			Arrays.fill( labels, 0, size, 0 );
+			queue.clear();
+		}
+
+	}
+
+	/**
+	 * Monotone queue of candidates: candidates are pushed into buckets of
+	 * quantized weights and only the bucket that is popped from is kept in a
+	 * binary heap. A candidate is never better than the last popped
+	 * candidate, so no candidate is pushed into a higher bucket.
+	 */
+	private static class Queue
+	{
+
+		private int[] targets = new int[ 1024 ];
+
+		private float[] weights = new float[ 1024 ];
+
+		private long[] edges = new long[ 1024 ];
+
+		private int[] depths = new int[ 1024 ];
+
+		private long[] labels = new long[ 1024 ];
+
+		private int numEntries = 0;
+
+		private final TIntArrayList[] buckets = new TIntArrayList[ NUM_BUCKETS ];
+
+		private int currentBucket = NUM_BUCKETS - 1;
+
+		private int[] heap = new int[ 1024 ];
+
+		private int heapSize = 0;
+
+		private int size = 0;
+
+		private Queue()
+		{
+			for ( int b = 0; b < NUM_BUCKETS; ++b )
+				buckets[ b ] = new TIntArrayList();
+		}
+
+		private boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		/**
+		 * Remove all candidates and keep the buffers.
+		 */
+		private void clear()
+		{
+			for ( final TIntArrayList bucket : buckets )
+				bucket.resetQuick();
+			currentBucket = NUM_BUCKETS - 1;
+			numEntries = 0;
+			heapSize = 0;
+			size = 0;
+		}
+
+		private void push( final int target, final float weight, final long edge, final int depth, final long label )
+		{
+			if ( numEntries == targets.length )
+			{
+				targets = Arrays.copyOf( targets, 2 * numEntries );
+				weights = Arrays.copyOf( weights, 2 * numEntries );
+				edges = Arrays.copyOf( edges, 2 * numEntries );
+				depths = Arrays.copyOf( depths, 2 * numEntries );
+				labels = Arrays.copyOf( labels, 2 * numEntries );
+			}
+			final int entry = numEntries++;
+			targets[ entry ] = target;
+			weights[ entry ] = weight;
+			edges[ entry ] = edge;
+			depths[ entry ] = depth;
+			labels[ entry ] = label;
+			++size;
+
+			final int bucket = bucket( weight );
+			if ( bucket == currentBucket && heapSize > 0 )
+				heapPush( entry );
+			else
+				buckets[ bucket ].add( entry );
+		}
+
+		/**
+		 * Remove the best candidate and return its entry.
+		 */
+		private int pop()
+		{
+			while ( heapSize == 0 )
+			{
+				while ( buckets[ currentBucket ].isEmpty() )
+					--currentBucket;
+				final TIntArrayList bucket = buckets[ currentBucket ];
+				for ( int index = 0; index < bucket.size(); ++index )
+					heapPush( bucket.getQuick( index ) );
+				bucket.resetQuick();
+			}
+			--size;
+			final int entry = heap[ 0 ];
+			final int last = heap[ --heapSize ];
+			int index = 0;
+			while ( true )
+			{
+				int child = 2 * index + 1;
+				if ( child >= heapSize )
+					break;
+				if ( child + 1 < heapSize && isBefore( heap[ child + 1 ], heap[ child ] ) )
+					++child;
+				if ( !isBefore( heap[ child ], last ) )
+					break;
+				heap[ index ] = heap[ child ];
+				index = child;
+			}
+			heap[ index ] = last;
+			return entry;
+		}
+
+		private void heapPush( final int entry )
+		{
+			if ( heapSize == heap.length )
+				heap = Arrays.copyOf( heap, 2 * heapSize );
+			int index = heapSize++;
+			while ( index > 0 )
+			{
+				final int parent = ( index - 1 ) >>> 1;
+				if ( !isBefore( entry, heap[ parent ] ) )
+					break;
+				heap[ index ] = heap[ parent ];
+				index = parent;
+			}
+			heap[ index ] = entry;
+		}
+
+		/**
+		 * Ties between equal candidates are broken by push order, which is
+		 * deterministic within a block.
+		 */
+		private boolean isBefore( final int entry1, final int entry2 )
+		{
+			if ( isBetter( weights[ entry1 ], edges[ entry1 ], depths[ entry1 ], weights[ entry2 ], edges[ entry2 ], depths[ entry2 ] ) )
+				return true;
+			if ( isBetter( weights[ entry2 ], edges[ entry2 ], depths[ entry2 ], weights[ entry1 ], edges[ entry1 ], depths[ entry1 ] ) )
+				return false;
+			return entry1 < entry2;
+		}
+
+	}
+
+}
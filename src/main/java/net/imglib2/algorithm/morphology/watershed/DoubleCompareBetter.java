@@ -0,0 +1,45 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * {@link CompareBetter} on primitive {@code double} values, used by
+ * {@link AffinityWatershed2#letItRain} on {@link RealType} affinities of any
+ * kind through {@link RealType#getRealDouble()}.
+ */
+public interface DoubleCompareBetter
+{
+
+	boolean isBetter( double t1, double t2 );
+
+	/**
+	 * Larger values are better. {@link Double#NaN} is never better.
+	 */
+	public static final DoubleCompareBetter GREATER = ( t1, t2 ) -> t1 > t2;
+
+	/**
+	 * Smaller values are better. {@link Double#NaN} is worse than any other
+	 * value.
+	 */
+	public static final DoubleCompareBetter LESS = ( t1, t2 ) -> t1 < t2 || t2 != t2 && t1 == t1;
+
+	default < T extends RealType< T > > CompareBetter< T > asCompareBetter()
+	{
+		return ( t1, t2 ) -> isBetter( t1.getRealDouble(), t2.getRealDouble() );
+	}
+
+	/**
+	 * Compare {@code float} values as {@code double}, which is exact.
+	 * {@link FloatCompareBetter#GREATER} and {@link FloatCompareBetter#LESS}
+	 * map to {@link #GREATER} and {@link #LESS}.
+	 */
+	public static DoubleCompareBetter of( final FloatCompareBetter compare )
+	{
+		if ( compare == FloatCompareBetter.GREATER )
+			return GREATER;
+		if ( compare == FloatCompareBetter.LESS )
+			return LESS;
+		return ( t1, t2 ) -> compare.isBetter( ( float ) t1, ( float ) t2 );
+	}
+
+}
@@ -0,0 +1,93 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Aggregate the weights of all voxel edges between two regions into the
+ * weight of a {@link RegionAdjacencyGraph} edge.
+ *
+ * {@link Reducible} aggregations combine partial results pairwise, so that
+ * edges are reduced per task before merging. Other aggregations keep every
+ * weight and compute the result from all weights of an edge at once.
+ */
+public interface EdgeAggregation
+{
+
+	/**
+	 * Result from {@code weights[ from ]} to {@code weights[ to - 1 ]}, which
+	 * may be reordered.
+	 */
+	double aggregate( double[] weights, int from, int to );
+
+	/**
+	 * Aggregation that combines partial results pairwise.
+	 */
+	public static interface Reducible extends EdgeAggregation
+	{
+
+		/**
+		 * Combine two partial results. A single weight is a partial result.
+		 */
+		double reduce( double partial1, double partial2 );
+
+		/**
+		 * Result from the combined partial result of {@code count} weights.
+		 */
+		double finish( double partial, long count );
+
+		@Override
+		default double aggregate( final double[] weights, final int from, final int to )
+		{
+			double partial = weights[ from ];
+			for ( int i = from + 1; i < to; ++i )
+				partial = reduce( partial, weights[ i ] );
+			return finish( partial, to - from );
+		}
+	}
+
+	public static final Reducible MAX = reducible( Math::max, false );
+
+	public static final Reducible MIN = reducible( Math::min, false );
+
+	public static final Reducible MEAN = reducible( Double::sum, true );
+
+	/**
+	 * Linearly interpolated {@code q}-quantile, e.g. {@code 0.5} for the
+	 * median.
+	 */
+	public static EdgeAggregation quantile( final double q )
+	{
+		if ( !( q >= 0.0 && q <= 1.0 ) )
+			throw new IllegalArgumentException( "Quantile must be in [0, 1] but got " + q );
+
+		return ( weights, from, to ) -> {
+			Arrays.sort( weights, from, to );
+			final double position = q * ( to - from - 1 );
+			final int lower = ( int ) Math.floor( position );
+			final int upper = ( int ) Math.ceil( position );
+			final double fraction = position - lower;
+			return ( 1.0 - fraction ) * weights[ from + lower ] + fraction * weights[ from + upper ];
+		};
+	}
+
+	static Reducible reducible( final DoubleBinaryOperator reduce, final boolean divideByCount )
+	{
+		return new Reducible()
+		{
+
+			@Override
+			public double reduce( final double partial1, final double partial2 )
+			{
+				return reduce.applyAsDouble( partial1, partial2 );
+			}
+
+			@Override
+			public double finish( final double partial, final long count )
+			{
+				return divideByCount ? partial / count : partial;
+			}
+		};
+	}
+
+}
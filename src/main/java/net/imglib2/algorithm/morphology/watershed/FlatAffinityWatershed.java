@@ -0,0 +1,1192 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.morphology.watershed.LetItRainListener.Phase;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Specialization of {@link AffinityWatershed2#letItRain} for
+ * {@link ArrayImg} and {@link PlanarImg} inputs. All phases operate directly
+ * on the backing {@code float[]} and {@code long[]} arrays with precomputed
+ * flat strides instead of going through {@code RealComposite} and flat views.
+ * Results are identical to the generic implementation.
+ *
+ * Affinities are expected in the layout produced by collapsing the last
+ * dimension, i.e. edge {@code e} of voxel {@code i} is stored at
+ * {@code e * size + i}, and edges are ordered as in
+ * {@link AffinityWatershed2#generateSteps(long[])}.
+ *
+ * Both affinities and labels are split into banks of equal size, e.g. the
+ * planes of a {@link PlanarImg}, and indexed with {@code long} so that volumes
+ * with more than {@link Integer#MAX_VALUE} voxels are supported. A single
+ * bank holds an {@link ArrayImg}.
+ *
+ * With compact state, direction bits and plateau flags are kept in a
+ * separate {@code byte} per voxel for up to three dimensions and a
+ * {@code short} for up to seven instead of in the labels, see
+ * {@link #letItRainCompact(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+ *
+ * One-sided affinities with one channel per dimension can be used directly
+ * instead of affinities with both directions of each edge, see
+ * {@link #letItRainOneSided(ArrayImg, ArrayImg, long[][], FloatCompareBetter, float, ExecutorService, int, LetItRainListener)}.
+ */
+public class FlatAffinityWatershed
+{
+
+	/**
+	 * Number of voxels per block in
+	 * {@link #findParentsBlocked(FloatCompareBetter, float)}, small enough for the
+	 * per-block scratch arrays to stay in L1.
+	 */
+	static final int FIND_PARENTS_BLOCK_SIZE = 1 << 9;
+
+	private final float[][] affinities;
+
+	private final int affinityBankSize;
+
+	private final long[][] labels;
+
+	private final int labelBankSize;
+
+	private final byte[][] byteStates;
+
+	private final short[][] shortStates;
+
+	private final long size;
+
+	private final long[] dimensions;
+
+	/**
+	 * {@code null} if {@code affinities} hold both directions of each edge
+	 */
+	private final OneSidedOffsets oneSidedOffsets;
+
+	private final int nEdges;
+
+	private final long[] steps;
+
+	private final long[] bitmask;
+
+	private final long[] inverseBitmask;
+
+	private final ExecutorService es;
+
+	private final int nTasks;
+
+	private final long taskSize;
+
+	private final LetItRainListener listener;
+
+	FlatAffinityWatershed(
+			final float[] affinities,
+			final long[] labels,
+			final long[] dimensions,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener )
+	{
+		this( new float[][] { affinities }, new long[][] { labels }, dimensions, false, es, nTasks, listener );
+	}
+
+	FlatAffinityWatershed(
+			final float[][] affinities,
+			final long[][] labels,
+			final long[] dimensions,
+			final boolean compactState,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener )
+	{
+		this( affinities, labels, dimensions, null, compactState, es, nTasks, listener );
+	}
+
+	/**
+	 * @param offsets
+	 *            unit offsets of one-sided affinities with one channel per
+	 *            dimension, or {@code null} for affinities with both edge
+	 *            directions
+	 */
+	FlatAffinityWatershed(
+			final float[][] affinities,
+			final long[][] labels,
+			final long[] dimensions,
+			final long[][] offsets,
+			final boolean compactState,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener )
+	{
+		final int nDim = dimensions.length;
+		this.dimensions = dimensions.clone();
+		this.oneSidedOffsets = offsets == null ? null : new OneSidedOffsets( offsets, nDim );
+		this.affinities = affinities;
+		this.affinityBankSize = affinities[ 0 ].length;
+		this.labels = labels;
+		this.labelBankSize = labels[ 0 ].length;
+		this.size = Intervals.numElements( dimensions );
+		this.nEdges = 2 * nDim;
+		this.steps = AffinityWatershed2.generateSteps( AffinityWatershed2.generateStride( new FinalInterval( dimensions ) ) );
+		this.bitmask = AffinityWatershed2.generateDirectionBitmask( nDim );
+		this.inverseBitmask = AffinityWatershed2.generateInverseDirectionBitmask( bitmask );
+		this.es = es;
+		this.nTasks = nTasks;
+		this.taskSize = Math.max( ( size + nTasks - 1 ) / nTasks, 1 );
+		this.listener = listener;
+
+		for ( final long[] bank : labels )
+			if ( bank.length != labelBankSize )
+				throw new IllegalArgumentException( "Expected " + labelBankSize + " elements in all label banks but got " + bank.length );
+		for ( final float[] bank : affinities )
+			if ( bank.length != affinityBankSize )
+				throw new IllegalArgumentException( "Expected " + affinityBankSize + " elements in all affinity banks but got " + bank.length );
+		if ( ( long ) labels.length * labelBankSize != size )
+			throw new IllegalArgumentException( "Labels have " + ( long ) labels.length * labelBankSize + " elements but expected " + size );
+		final int nChannels = oneSidedOffsets == null ? nEdges : nDim;
+		if ( ( long ) affinities.length * affinityBankSize != size * nChannels )
+			throw new IllegalArgumentException( "Affinities have " + ( long ) affinities.length * affinityBankSize + " elements but expected " + size * nChannels );
+		if ( oneSidedOffsets != null && ( labelBankSize % dimensions[ 0 ] != 0 || affinityBankSize % dimensions[ 0 ] != 0 ) )
+			throw new IllegalArgumentException( "Banks must hold whole rows of " + dimensions[ 0 ] + " voxels for one-sided affinities." );
+
+		// direction bits and two flags
+		if ( !compactState )
+		{
+			this.byteStates = null;
+			this.shortStates = null;
+		}
+		else if ( nEdges + 2 <= Byte.SIZE )
+		{
+			this.byteStates = new byte[ labels.length ][ labelBankSize ];
+			this.shortStates = null;
+		}
+		else if ( nEdges + 2 <= Short.SIZE )
+		{
+			this.byteStates = null;
+			this.shortStates = new short[ labels.length ][ labelBankSize ];
+		}
+		else
+			throw new IllegalArgumentException( "Compact state supports up to 7 dimensions but got " + nDim );
+	}
+
+	private boolean isCompact()
+	{
+		return byteStates != null || shortStates != null;
+	}
+
+	/**
+	 * Flag for voxels that are done while removing plateaus, and the highest
+	 * bit that is not used for directions. The flag below is used for plateau
+	 * corners.
+	 */
+	long stateHighBit()
+	{
+		return byteStates != null ? 1l << Byte.SIZE - 1 : shortStates != null ? 1l << Short.SIZE - 1 : 1l << 63;
+	}
+
+	private long getState( final long index )
+	{
+		if ( !isCompact() )
+			return getLabel( index );
+		final int bank = labels.length == 1 ? 0 : ( int ) ( index / labelBankSize );
+		final int offset = ( int ) ( index - ( long ) bank * labelBankSize );
+		return byteStates != null ? byteStates[ bank ][ offset ] & 0xff : shortStates[ bank ][ offset ] & 0xffff;
+	}
+
+	private void setState( final long index, final long state )
+	{
+		if ( !isCompact() )
+			setLabel( index, state );
+		else
+		{
+			final int bank = labels.length == 1 ? 0 : ( int ) ( index / labelBankSize );
+			final int offset = ( int ) ( index - ( long ) bank * labelBankSize );
+			if ( byteStates != null )
+				byteStates[ bank ][ offset ] = ( byte ) state;
+			else
+				shortStates[ bank ][ offset ] = ( short ) state;
+		}
+	}
+
+	private long getLabel( final long index )
+	{
+		if ( labels.length == 1 )
+			return labels[ 0 ][ ( int ) index ];
+		final int bank = ( int ) ( index / labelBankSize );
+		return labels[ bank ][ ( int ) ( index - ( long ) bank * labelBankSize ) ];
+	}
+
+	private void setLabel( final long index, final long label )
+	{
+		if ( labels.length == 1 )
+			labels[ 0 ][ ( int ) index ] = label;
+		else
+		{
+			final int bank = ( int ) ( index / labelBankSize );
+			labels[ bank ][ ( int ) ( index - ( long ) bank * labelBankSize ) ] = label;
+		}
+	}
+
+	public static long[] letItRain(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain(
+				new float[][] { affinities.update( null ).getCurrentStorageArray() },
+				new long[][] { labels.update( null ).getCurrentStorageArray() },
+				Intervals.dimensionsAsLongArray( labels ),
+				false,
+				compare,
+				worst,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * Keep direction bits and plateau flags in a {@code byte} (up to three
+	 * dimensions) or {@code short} (up to seven dimensions) per voxel while
+	 * finding parents and removing plateaus, and write only the final basin
+	 * labels into {@code labels}. The hot phases touch one or two bytes per
+	 * voxel instead of eight, and {@code labels} is not accessed until the
+	 * flood fill. {@code labels} must be zero. Results are identical to
+	 * {@link #letItRain(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRainCompact(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain(
+				new float[][] { affinities.update( null ).getCurrentStorageArray() },
+				new long[][] { labels.update( null ).getCurrentStorageArray() },
+				Intervals.dimensionsAsLongArray( labels ),
+				true,
+				compare,
+				worst,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * Like
+	 * {@link #letItRain(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}
+	 * but comparing primitive {@code float} values. Finding parents runs in a
+	 * specialized loop for {@link FloatCompareBetter#GREATER} and
+	 * {@link FloatCompareBetter#LESS}.
+	 */
+	public static long[] letItRain(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain(
+				new float[][] { affinities.update( null ).getCurrentStorageArray() },
+				new long[][] { labels.update( null ).getCurrentStorageArray() },
+				Intervals.dimensionsAsLongArray( labels ),
+				false,
+				compare,
+				worst,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRainCompact(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRainCompact(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain(
+				new float[][] { affinities.update( null ).getCurrentStorageArray() },
+				new long[][] { labels.update( null ).getCurrentStorageArray() },
+				Intervals.dimensionsAsLongArray( labels ),
+				true,
+				compare,
+				worst,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * Run on the planes of {@link PlanarImg} affinities and labels, which
+	 * may hold more than {@link Integer#MAX_VALUE} voxels.
+	 */
+	public static long[] letItRain(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( affinities, labels, false, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * {@link PlanarImg} version of
+	 * {@link #letItRainCompact(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRainCompact(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( affinities, labels, true, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRain(PlanarImg, PlanarImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRain(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain( affinityPlanes( affinities ), labelPlanes( labels ), Intervals.dimensionsAsLongArray( labels ), false, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRainCompact(PlanarImg, PlanarImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRainCompact(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain( affinityPlanes( affinities ), labelPlanes( labels ), Intervals.dimensionsAsLongArray( labels ), true, compare, worst, es, nTasks, listener );
+	}
+
+	private static long[] letItRain(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final boolean compactState,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkDimensions( affinities, labels );
+		return letItRain( affinityPlanes( affinities ), labelPlanes( labels ), Intervals.dimensionsAsLongArray( labels ), compactState, compare, worst, es, nTasks, listener );
+	}
+
+	private static float[][] affinityPlanes( final PlanarImg< FloatType, FloatArray > affinities )
+	{
+		final float[][] affinityPlanes = new float[ affinities.numSlices() ][];
+		for ( int i = 0; i < affinityPlanes.length; ++i )
+			affinityPlanes[ i ] = affinities.getPlane( i ).getCurrentStorageArray();
+		return affinityPlanes;
+	}
+
+	private static long[][] labelPlanes( final PlanarImg< LongType, LongArray > labels )
+	{
+		final long[][] labelPlanes = new long[ labels.numSlices() ][];
+		for ( int i = 0; i < labelPlanes.length; ++i )
+			labelPlanes[ i ] = labels.getPlane( i ).getCurrentStorageArray();
+		return labelPlanes;
+	}
+
+	private static void checkOneSidedDimensions( final Interval affinities, final Interval labels )
+	{
+		final int nDim = labels.numDimensions();
+		if ( affinities.numDimensions() != nDim + 1 || affinities.dimension( nDim ) != nDim )
+			throw new IllegalArgumentException( "Expected " + nDim + " one-sided affinities in last dimension but got " + affinities.numDimensions() + " dimensions" );
+		for ( int d = 0; d < nDim; ++d )
+			if ( affinities.dimension( d ) != labels.dimension( d ) )
+				throw new IllegalArgumentException( "Affinities and labels differ in dimension " + d );
+	}
+
+	private static void checkDimensions( final Interval affinities, final Interval labels )
+	{
+		final int nDim = labels.numDimensions();
+		if ( affinities.numDimensions() != nDim + 1 || affinities.dimension( nDim ) != 2 * nDim )
+			throw new IllegalArgumentException( "Expected " + 2 * nDim + " affinities in last dimension but got " + affinities.numDimensions() + " dimensions" );
+		for ( int d = 0; d < nDim; ++d )
+			if ( affinities.dimension( d ) != labels.dimension( d ) )
+				throw new IllegalArgumentException( "Affinities and labels differ in dimension " + d );
+	}
+
+	public static long[] letItRain(
+			final float[] affinities,
+			final long[] labels,
+			final long[] dimensions,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		return letItRain( new float[][] { affinities }, new long[][] { labels }, dimensions, false, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * @param compactState
+	 *            keep direction bits and plateau flags separate from
+	 *            {@code labels}, see
+	 *            {@link #letItRainCompact(ArrayImg, ArrayImg, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}
+	 */
+	public static long[] letItRain(
+			final float[][] affinities,
+			final long[][] labels,
+			final long[] dimensions,
+			final boolean compactState,
+			final CompareBetter< FloatType > compare,
+			final FloatType worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		final FlatAffinityWatershed watershed = new FlatAffinityWatershed( affinities, labels, dimensions, compactState, es, nTasks, listener );
+		return watershed.letItRain( compare, null, worst.get() );
+	}
+
+	/**
+	 * {@link FloatCompareBetter} version of
+	 * {@link #letItRain(float[][], long[][], long[], boolean, CompareBetter, FloatType, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRain(
+			final float[][] affinities,
+			final long[][] labels,
+			final long[] dimensions,
+			final boolean compactState,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		final FlatAffinityWatershed watershed = new FlatAffinityWatershed( affinities, labels, dimensions, compactState, es, nTasks, listener );
+		return watershed.letItRain( null, compare, worst );
+	}
+
+	/**
+	 * Run on one-sided affinities with {@code labels.numDimensions()}
+	 * channels in the last dimension, one per unit offset in
+	 * {@code offsets}, e.g. {@code -1,0,0 0,-1,0 0,0,-1}. The weight of the
+	 * opposite edge is read from the neighbor instead of a copy of the
+	 * affinities with both directions, which halves the memory for
+	 * affinities. Edges that leave the volume are {@code worst} regardless of
+	 * the stored weight. Results are identical to
+	 * {@link #letItRain(ArrayImg, ArrayImg, FloatCompareBetter, float, ExecutorService, int, LetItRainListener)}
+	 * on the corresponding symmetric affinities with {@code worst} for edges
+	 * that leave the volume.
+	 */
+	public static long[] letItRainOneSided(
+			final ArrayImg< FloatType, FloatArray > affinities,
+			final ArrayImg< LongType, LongArray > labels,
+			final long[][] offsets,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkOneSidedDimensions( affinities, labels );
+		return letItRainOneSided(
+				new float[][] { affinities.update( null ).getCurrentStorageArray() },
+				new long[][] { labels.update( null ).getCurrentStorageArray() },
+				Intervals.dimensionsAsLongArray( labels ),
+				offsets,
+				false,
+				compare,
+				worst,
+				es,
+				nTasks,
+				listener );
+	}
+
+	/**
+	 * {@link PlanarImg} version of
+	 * {@link #letItRainOneSided(ArrayImg, ArrayImg, long[][], FloatCompareBetter, float, ExecutorService, int, LetItRainListener)}.
+	 */
+	public static long[] letItRainOneSided(
+			final PlanarImg< FloatType, FloatArray > affinities,
+			final PlanarImg< LongType, LongArray > labels,
+			final long[][] offsets,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		checkOneSidedDimensions( affinities, labels );
+		return letItRainOneSided( affinityPlanes( affinities ), labelPlanes( labels ), Intervals.dimensionsAsLongArray( labels ), offsets, false, compare, worst, es, nTasks, listener );
+	}
+
+	/**
+	 * @param affinities
+	 *            one-sided affinities, channel {@code c} of voxel {@code i}
+	 *            is stored at {@code c * size + i}, and each bank holds whole
+	 *            rows along the first dimension
+	 * @param offsets
+	 *            one unit offset per channel
+	 */
+	public static long[] letItRainOneSided(
+			final float[][] affinities,
+			final long[][] labels,
+			final long[] dimensions,
+			final long[][] offsets,
+			final boolean compactState,
+			final FloatCompareBetter compare,
+			final float worst,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		final FlatAffinityWatershed watershed = new FlatAffinityWatershed( affinities, labels, dimensions, offsets, compactState, es, nTasks, listener );
+		return watershed.letItRain( null, compare, worst );
+	}
+
+	private long[] letItRain(
+			final CompareBetter< FloatType > boxedCompare,
+			final FloatCompareBetter compare,
+			final float worst ) throws InterruptedException, ExecutionException
+	{
+		final long highBit = stateHighBit();
+		final long secondHighBit = highBit >>> 1;
+
+		listener.phaseStarted( Phase.FIND_PARENTS );
+		final long t0 = System.nanoTime();
+		findParents( boxedCompare, compare, worst );
+		listener.phaseFinished( Phase.FIND_PARENTS, System.nanoTime() - t0, size );
+
+		listener.phaseStarted( Phase.FIND_PLATEAU_CORNERS );
+		final long t1 = System.nanoTime();
+		final TLongArrayList plateauCorners = findPlateauCorners( secondHighBit );
+		listener.phaseFinished( Phase.FIND_PLATEAU_CORNERS, System.nanoTime() - t1, size );
+		listener.plateauCorners( plateauCorners.size() );
+
+		listener.phaseStarted( Phase.REMOVE_PLATEAUS );
+		final long t2 = System.nanoTime();
+		final long plateauVoxels = removePlateaus( plateauCorners, highBit, secondHighBit );
+		listener.phaseFinished( Phase.REMOVE_PLATEAUS, System.nanoTime() - t2, plateauVoxels );
+
+		return fillFromRoots( 1l << 63 );
+	}
+
+	void findParents(
+			final CompareBetter< FloatType > compare,
+			final FloatType worst ) throws InterruptedException, ExecutionException
+	{
+		findParents( compare, null, worst.get() );
+	}
+
+	void findParents(
+			final FloatCompareBetter compare,
+			final float worst ) throws InterruptedException, ExecutionException
+	{
+		findParents( null, compare, worst );
+	}
+
+	/**
+	 * Find parents with {@code compare} if not {@code null} and with
+	 * {@code boxedCompare} otherwise. One-sided affinities require
+	 * {@code compare}. {@link FloatCompareBetter#GREATER} and
+	 * {@link FloatCompareBetter#LESS} run in
+	 * {@link #findParentsBlocked(FloatCompareBetter, float)}.
+	 */
+	void findParents(
+			final CompareBetter< FloatType > boxedCompare,
+			final FloatCompareBetter compare,
+			final float worstValue ) throws InterruptedException, ExecutionException
+	{
+		if ( oneSidedOffsets != null )
+		{
+			findParentsOneSided( compare, worstValue );
+			return;
+		}
+
+		if ( compare == FloatCompareBetter.GREATER || compare == FloatCompareBetter.LESS )
+		{
+			findParentsBlocked( compare, worstValue );
+			return;
+		}
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+			final FloatType currentWeight = new FloatType();
+			final FloatType currentBest = new FloatType();
+
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PARENTS, tasks.size(), to - from, () -> {
+				// bank and offset within bank of the label and of each edge,
+				// advanced along with index
+				int labelBank = ( int ) ( from / labelBankSize );
+				int labelOffset = ( int ) ( from - ( long ) labelBank * labelBankSize );
+				final int[] edgeBanks = new int[ nEdges ];
+				final int[] edgeOffsets = new int[ nEdges ];
+				for ( int i = 0; i < nEdges; ++i )
+				{
+					final long edgeIndex = i * size + from;
+					edgeBanks[ i ] = ( int ) ( edgeIndex / affinityBankSize );
+					edgeOffsets[ i ] = ( int ) ( edgeIndex - ( long ) edgeBanks[ i ] * affinityBankSize );
+				}
+
+				for ( long index = from; index < to; ++index )
+				{
+					long labelRaw = 0;
+					final float best;
+					if ( compare != null )
+						best = best( compare, edgeBanks, edgeOffsets, worstValue );
+					else
+					{
+						currentBest.set( worstValue );
+						for ( int i = 0; i < nEdges; ++i )
+						{
+							currentWeight.set( affinities[ edgeBanks[ i ] ][ edgeOffsets[ i ] ] );
+							if ( boxedCompare.isBetter( currentWeight, currentBest ) )
+								currentBest.set( currentWeight );
+						}
+						best = currentBest.get();
+					}
+
+					if ( !FloatType.equals( best, worstValue ) )
+						for ( int i = 0; i < nEdges; ++i )
+							if ( FloatType.equals( affinities[ edgeBanks[ i ] ][ edgeOffsets[ i ] ], best ) )
+								labelRaw |= bitmask[ i ];
+
+					if ( byteStates != null )
+						byteStates[ labelBank ][ labelOffset ] = ( byte ) labelRaw;
+					else if ( shortStates != null )
+						shortStates[ labelBank ][ labelOffset ] = ( short ) labelRaw;
+					else
+						labels[ labelBank ][ labelOffset ] |= labelRaw;
+
+					if ( ++labelOffset == labelBankSize )
+					{
+						labelOffset = 0;
+						++labelBank;
+					}
+					for ( int i = 0; i < nEdges; ++i )
+						if ( ++edgeOffsets[ i ] == affinityBankSize )
+						{
+							edgeOffsets[ i ] = 0;
+							++edgeBanks[ i ];
+						}
+				}
+				return null;
+			} ) );
+		}
+
+		AffinityWatershed2.invokeAllAndWait( es, tasks );
+	}
+
+	/**
+	 * Find parents for {@link FloatCompareBetter#GREATER} or
+	 * {@link FloatCompareBetter#LESS} on blocks of up to
+	 * {@link #FIND_PARENTS_BLOCK_SIZE} voxels. Within a block, each edge
+	 * channel is a contiguous range of an affinity bank, so the best weight
+	 * and the direction bits are computed one channel at a time for all voxels
+	 * of the block in branch-free loops over primitive arrays that the JIT
+	 * can vectorize. Results are identical to the voxel by voxel loop.
+	 */
+	private void findParentsBlocked( final FloatCompareBetter compare, final float worstValue ) throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PARENTS, tasks.size(), to - from, () -> {
+				final float[] best = new float[ FIND_PARENTS_BLOCK_SIZE ];
+				final int[] bestBits = new int[ FIND_PARENTS_BLOCK_SIZE ];
+				final long[] directions = new long[ FIND_PARENTS_BLOCK_SIZE ];
+
+				int labelBank = ( int ) ( from / labelBankSize );
+				int labelOffset = ( int ) ( from - ( long ) labelBank * labelBankSize );
+				final int[] edgeBanks = new int[ nEdges ];
+				final int[] edgeOffsets = new int[ nEdges ];
+				for ( int i = 0; i < nEdges; ++i )
+				{
+					final long edgeIndex = i * size + from;
+					edgeBanks[ i ] = ( int ) ( edgeIndex / affinityBankSize );
+					edgeOffsets[ i ] = ( int ) ( edgeIndex - ( long ) edgeBanks[ i ] * affinityBankSize );
+				}
+
+				for ( long index = from; index < to; )
+				{
+					// largest block that does not cross a bank boundary
+					int length = ( int ) Math.min( FIND_PARENTS_BLOCK_SIZE, to - index );
+					length = Math.min( length, labelBankSize - labelOffset );
+					for ( int i = 0; i < nEdges; ++i )
+						length = Math.min( length, affinityBankSize - edgeOffsets[ i ] );
+
+					Arrays.fill( best, 0, length, worstValue );
+					for ( int i = 0; i < nEdges; ++i )
+						best( compare, affinities[ edgeBanks[ i ] ], edgeOffsets[ i ], 0, length, best );
+
+					for ( int k = 0; k < length; ++k )
+						bestBits[ k ] = Float.floatToRawIntBits( best[ k ] );
+					Arrays.fill( directions, 0, length, 0 );
+					for ( int i = 0; i < nEdges; ++i )
+						directions( affinities[ edgeBanks[ i ] ], edgeOffsets[ i ], 0, length, bestBits, bitmask[ i ], directions );
+
+					storeDirections( labelBank, labelOffset, length, best, worstValue, directions );
+
+					index += length;
+					if ( ( labelOffset += length ) == labelBankSize )
+					{
+						labelOffset = 0;
+						++labelBank;
+					}
+					for ( int i = 0; i < nEdges; ++i )
+						if ( ( edgeOffsets[ i ] += length ) == affinityBankSize )
+						{
+							edgeOffsets[ i ] = 0;
+							++edgeBanks[ i ];
+						}
+				}
+				return null;
+			} ) );
+		}
+
+		AffinityWatershed2.invokeAllAndWait( es, tasks );
+	}
+
+	/**
+	 * Find parents from one-sided affinities. The weight of an edge that is
+	 * not stored with a voxel is read from the neighbor that the edge points
+	 * to, and edges that leave the volume are {@code worstValue}. Voxels are
+	 * processed in blocks of up to {@link #FIND_PARENTS_BLOCK_SIZE} voxels
+	 * within a row along the first dimension as in
+	 * {@link #findParentsBlocked(FloatCompareBetter, float)}, so that only
+	 * the first or last voxel of a block can have an edge along the first
+	 * dimension that leaves the volume.
+	 */
+	private void findParentsOneSided( final FloatCompareBetter compare, final float worstValue ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = dimensions.length;
+		final long rowLength = dimensions[ 0 ];
+
+		// index of the weight of each edge relative to the voxel index
+		final int[] edgeDimensions = new int[ nEdges ];
+		final long[] edgeDirections = new long[ nEdges ];
+		final long[] edgeSourceOffsets = new long[ nEdges ];
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			edgeDimensions[ i ] = OneSidedOffsets.dimension( i, nDim );
+			edgeDirections[ i ] = OneSidedOffsets.direction( i, nDim );
+			edgeSourceOffsets[ i ] = oneSidedOffsets.channels[ edgeDimensions[ i ] ] * size + ( oneSidedOffsets.shift( i ) == 0 ? 0 : steps[ i ] );
+		}
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PARENTS, tasks.size(), to - from, () -> {
+				final float[] best = new float[ FIND_PARENTS_BLOCK_SIZE ];
+				final int[] bestBits = new int[ FIND_PARENTS_BLOCK_SIZE ];
+				final long[] directions = new long[ FIND_PARENTS_BLOCK_SIZE ];
+				final int[] edgeBanks = new int[ nEdges ];
+				final int[] edgeOffsets = new int[ nEdges ];
+				final int[] edgeFrom = new int[ nEdges ];
+				final int[] edgeTo = new int[ nEdges ];
+
+				final long[] position = new long[ nDim ];
+				IntervalIndexer.indexToPosition( from, dimensions, position );
+
+				for ( long index = from; index < to; )
+				{
+					// blocks do not cross rows, rows do not cross banks
+					final int length = ( int ) Math.min( Math.min( FIND_PARENTS_BLOCK_SIZE, to - index ), rowLength - position[ 0 ] );
+					final int labelBank = ( int ) ( index / labelBankSize );
+					final int labelOffset = ( int ) ( index - ( long ) labelBank * labelBankSize );
+
+					// voxels within the block for which the edge stays inside
+					// the volume, and the weight of the edge for voxel k at
+					// edgeOffsets[ i ] + k in bank edgeBanks[ i ]
+					for ( int i = 0; i < nEdges; ++i )
+					{
+						final int d = edgeDimensions[ i ];
+						final long direction = edgeDirections[ i ];
+						if ( d == 0 )
+						{
+							edgeFrom[ i ] = direction < 0 && position[ 0 ] == 0 ? 1 : 0;
+							edgeTo[ i ] = direction > 0 && position[ 0 ] + length == rowLength ? length - 1 : length;
+						}
+						else
+						{
+							final long neighbor = position[ d ] + direction;
+							edgeFrom[ i ] = 0;
+							edgeTo[ i ] = neighbor >= 0 && neighbor < dimensions[ d ] ? length : 0;
+						}
+						if ( edgeFrom[ i ] < edgeTo[ i ] )
+						{
+							final long sourceIndex = edgeSourceOffsets[ i ] + index + edgeFrom[ i ];
+							edgeBanks[ i ] = ( int ) ( sourceIndex / affinityBankSize );
+							edgeOffsets[ i ] = ( int ) ( sourceIndex - ( long ) edgeBanks[ i ] * affinityBankSize ) - edgeFrom[ i ];
+						}
+					}
+
+					Arrays.fill( best, 0, length, worstValue );
+					for ( int i = 0; i < nEdges; ++i )
+						if ( edgeFrom[ i ] < edgeTo[ i ] )
+							best( compare, affinities[ edgeBanks[ i ] ], edgeOffsets[ i ], edgeFrom[ i ], edgeTo[ i ], best );
+
+					for ( int k = 0; k < length; ++k )
+						bestBits[ k ] = Float.floatToRawIntBits( best[ k ] );
+					Arrays.fill( directions, 0, length, 0 );
+					for ( int i = 0; i < nEdges; ++i )
+						if ( edgeFrom[ i ] < edgeTo[ i ] )
+							directions( affinities[ edgeBanks[ i ] ], edgeOffsets[ i ], edgeFrom[ i ], edgeTo[ i ], bestBits, bitmask[ i ], directions );
+
+					storeDirections( labelBank, labelOffset, length, best, worstValue, directions );
+
+					index += length;
+					position[ 0 ] += length;
+					for ( int d = 0; d < nDim - 1 && position[ d ] == dimensions[ d ]; ++d )
+					{
+						position[ d ] = 0;
+						++position[ d + 1 ];
+					}
+				}
+				return null;
+			} ) );
+		}
+
+		AffinityWatershed2.invokeAllAndWait( es, tasks );
+	}
+
+	/**
+	 * Update {@code best[ k ]} with {@code channel[ offset + k ]} for
+	 * {@code k} in {@code [from, to)}.
+	 */
+	private static void best(
+			final FloatCompareBetter compare,
+			final float[] channel,
+			final int offset,
+			final int from,
+			final int to,
+			final float[] best )
+	{
+		if ( compare == FloatCompareBetter.GREATER )
+			for ( int k = from; k < to; ++k )
+			{
+				final float weight = channel[ offset + k ];
+				final float b = best[ k ];
+				best[ k ] = weight > b ? weight : b;
+			}
+		else if ( compare == FloatCompareBetter.LESS )
+			for ( int k = from; k < to; ++k )
+			{
+				final float weight = channel[ offset + k ];
+				final float b = best[ k ];
+				best[ k ] = weight < b || b != b && weight == weight ? weight : b;
+			}
+		else
+			for ( int k = from; k < to; ++k )
+			{
+				final float weight = channel[ offset + k ];
+				if ( compare.isBetter( weight, best[ k ] ) )
+					best[ k ] = weight;
+			}
+	}
+
+	/**
+	 * Set {@code bit} in {@code directions[ k ]} if
+	 * {@code channel[ offset + k ]} is the best weight for {@code k} in
+	 * {@code [from, to)}.
+	 */
+	private static void directions(
+			final float[] channel,
+			final int offset,
+			final int from,
+			final int to,
+			final int[] bestBits,
+			final long bit,
+			final long[] directions )
+	{
+		for ( int k = from; k < to; ++k )
+			directions[ k ] |= Float.floatToRawIntBits( channel[ offset + k ] ) == bestBits[ k ] ? bit : 0;
+	}
+
+	/**
+	 * Store the direction bits of {@code length} voxels starting at
+	 * {@code labelOffset} in bank {@code labelBank}. Voxels whose best weight
+	 * is {@code worstValue} or {@link Float#NaN} (only possible for
+	 * {@link Float#NaN} worst) have no direction.
+	 */
+	private void storeDirections(
+			final int labelBank,
+			final int labelOffset,
+			final int length,
+			final float[] best,
+			final float worstValue,
+			final long[] directions )
+	{
+		final int worstBits = Float.floatToIntBits( worstValue );
+		for ( int k = 0; k < length; ++k )
+			if ( Float.floatToRawIntBits( best[ k ] ) == worstBits || best[ k ] != best[ k ] )
+				directions[ k ] = 0;
+
+		if ( byteStates != null )
+		{
+			final byte[] bank = byteStates[ labelBank ];
+			for ( int k = 0; k < length; ++k )
+				bank[ labelOffset + k ] = ( byte ) directions[ k ];
+		}
+		else if ( shortStates != null )
+		{
+			final short[] bank = shortStates[ labelBank ];
+			for ( int k = 0; k < length; ++k )
+				bank[ labelOffset + k ] = ( short ) directions[ k ];
+		}
+		else
+		{
+			final long[] bank = labels[ labelBank ];
+			for ( int k = 0; k < length; ++k )
+				bank[ labelOffset + k ] |= directions[ k ];
+		}
+	}
+
+	private float best( final FloatCompareBetter compare, final int[] edgeBanks, final int[] edgeOffsets, final float worst )
+	{
+		float best = worst;
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			final float weight = affinities[ edgeBanks[ i ] ][ edgeOffsets[ i ] ];
+			if ( compare.isBetter( weight, best ) )
+				best = weight;
+		}
+		return best;
+	}
+
+	TLongArrayList findPlateauCorners( final long plateauCornerMask ) throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Callable< TLongArrayList > > tasks = new ArrayList<>();
+
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+
+			tasks.add( LetItRainListener.timed( listener, Phase.FIND_PLATEAU_CORNERS, tasks.size(), to - from, () -> {
+				final TLongArrayList taskPlateauCornerIndices = new TLongArrayList();
+				for ( long index = from; index < to; ++index )
+				{
+					final long labelRaw = getState( index );
+					for ( int i = 0; i < nEdges; ++i )
+						if ( ( labelRaw & bitmask[ i ] ) != 0 )
+						{
+							final long otherIndex = index + steps[ i ];
+							if ( otherIndex >= 0 && otherIndex < size && ( getState( otherIndex ) & inverseBitmask[ i ] ) == 0 )
+							{
+								setState( index, labelRaw | plateauCornerMask );
+								taskPlateauCornerIndices.add( index );
+								break;
+							}
+						}
+				}
+				return taskPlateauCornerIndices;
+			} ) );
+		}
+
+		final TLongArrayList plateauCornerIndices = new TLongArrayList();
+
+		for ( final TLongArrayList taskPlateauCornerIndices : AffinityWatershed2.invokeAllAndGet( es, tasks ) )
+			plateauCornerIndices.addAll( taskPlateauCornerIndices );
+
+		return plateauCornerIndices;
+	}
+
+	/**
+	 * Plateau removal on the state, see {@link PlateauRemoval}.
+	 *
+	 * @return number of plateau voxels
+	 */
+	long removePlateaus(
+			final TLongArrayList corners,
+			final long highBit,
+			final long secondHighBit ) throws InterruptedException, ExecutionException
+	{
+		final WorkStealingFloodFill.LabelAccess stateAccess = new WorkStealingFloodFill.LabelAccess()
+		{
+			@Override
+			public long get( final long index )
+			{
+				return getState( index );
+			}
+
+			@Override
+			public void set( final long index, final long value )
+			{
+				setState( index, value );
+			}
+		};
+		return PlateauRemoval.remove( corners, () -> stateAccess, size, steps, bitmask, inverseBitmask, highBit, secondHighBit, es, nTasks, listener );
+	}
+
+	long[] fillFromRoots( final long visitedMask ) throws InterruptedException, ExecutionException
+	{
+		final long directionMask = WorkStealingFloodFill.directionMask( bitmask );
+		final AtomicLong backgroundCount = new AtomicLong( 0 );
+
+		final ArrayList< Callable< TLongArrayList > > rootLocatingTasks = new ArrayList<>();
+
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+
+			rootLocatingTasks.add( LetItRainListener.timed( listener, Phase.FIND_ROOTS, rootLocatingTasks.size(), to - from, () -> {
+				final TLongArrayList roots = new TLongArrayList();
+				for ( long index = from; index < to; ++index )
+				{
+					boolean isChild = false;
+					boolean hasChild = false;
+
+					final long label = getState( index );
+
+					for ( int i = 0; i < nEdges && !isChild && !hasChild; ++i )
+						if ( ( label & bitmask[ i ] ) != 0 )
+						{
+							isChild = true;
+							final long otherIndex = index + steps[ i ];
+							if ( otherIndex >= 0 && otherIndex < size &&
+									Long.lowestOneBit( getState( otherIndex ) & directionMask ) == inverseBitmask[ i ] &&
+									index < otherIndex )
+								hasChild = true;
+						}
+
+					if ( hasChild )
+						roots.add( index );
+					else if ( !isChild )
+						backgroundCount.incrementAndGet();
+				}
+				return roots;
+			} ) );
+		}
+
+		final TLongArrayList roots = new TLongArrayList();
+
+		{
+			listener.phaseStarted( Phase.FIND_ROOTS );
+			final long t0 = System.nanoTime();
+			final List< Future< TLongArrayList > > rootsFutures = es.invokeAll( rootLocatingTasks );
+			for ( final Future< TLongArrayList > f : rootsFutures )
+				roots.addAll( f.get() );
+			listener.phaseFinished( Phase.FIND_ROOTS, System.nanoTime() - t0, size );
+			listener.roots( roots.size(), backgroundCount.get() );
+		}
+
+		final WorkStealingFloodFill.LabelAccess labelAccess = new WorkStealingFloodFill.LabelAccess()
+		{
+			@Override
+			public long get( final long index )
+			{
+				// with compact state, labels are zero until visited
+				if ( !isCompact() )
+					return getLabel( index );
+				final long label = getLabel( index );
+				return label == 0 ? getState( index ) : label;
+			}
+
+			@Override
+			public void set( final long index, final long value )
+			{
+				setLabel( index, value );
+			}
+		};
+
+		final long[] counts;
+		{
+			listener.phaseStarted( Phase.FLOOD_FILL );
+			final long t0 = System.nanoTime();
+			counts = WorkStealingFloodFill.fill( roots, () -> labelAccess, size, steps, inverseBitmask, visitedMask, es, nTasks, listener );
+			listener.phaseFinished( Phase.FLOOD_FILL, System.nanoTime() - t0, Arrays.stream( counts ).sum() );
+		}
+		counts[ 0 ] = backgroundCount.get();
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		final long activeBits = ~visitedMask;
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+			tasks.add( LetItRainListener.timed( listener, Phase.REMOVE_MASK, tasks.size(), to - from, () -> {
+				for ( long index = from; index < to; ++index )
+					setLabel( index, getLabel( index ) & activeBits );
+				return null;
+			} ) );
+		}
+		{
+			listener.phaseStarted( Phase.REMOVE_MASK );
+			final long t0 = System.nanoTime();
+			AffinityWatershed2.invokeAllAndWait( es, tasks );
+			listener.phaseFinished( Phase.REMOVE_MASK, System.nanoTime() - t0, size );
+		}
+
+		return counts;
+	}
+
+}
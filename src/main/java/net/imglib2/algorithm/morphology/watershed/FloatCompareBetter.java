@@ -0,0 +1,34 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * {@link CompareBetter} on primitive {@code float} values. The
+ * implementations {@link #GREATER} and {@link #LESS} are recognized by
+ * {@link FlatAffinityWatershed} and run in loops specialized for each, without
+ * a call per comparison.
+ */
+public interface FloatCompareBetter
+{
+
+	boolean isBetter( float t1, float t2 );
+
+	/**
+	 * Larger values are better, e.g. for affinities with
+	 * {@link Float#NEGATIVE_INFINITY} or {@link Float#NaN} as worst value.
+	 * {@link Float#NaN} is never better.
+	 */
+	public static final FloatCompareBetter GREATER = ( t1, t2 ) -> t1 > t2;
+
+	/**
+	 * Smaller values are better, e.g. for distances or boundary
+	 * probabilities. {@link Float#NaN} is worse than any other value.
+	 */
+	public static final FloatCompareBetter LESS = ( t1, t2 ) -> t1 < t2 || t2 != t2 && t1 == t1;
+
+	default CompareBetter< FloatType > asCompareBetter()
+	{
+		return ( t1, t2 ) -> isBetter( t1.get(), t2.get() );
+	}
+
+}
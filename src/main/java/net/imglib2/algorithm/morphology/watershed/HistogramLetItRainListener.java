@@ -0,0 +1,137 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates {@link LetItRainListener} events in memory, e.g. across all
+ * {@link AffinityWatershed2#letItRain} runs of a job. Durations are binned
+ * into power of two histograms: bin {@code k} counts durations {@code t} with
+ * {@code 2^k <= t < 2^(k+1)} nanoseconds, and bin {@code 0} also holds
+ * {@code t = 0}.
+ */
+public class HistogramLetItRainListener implements LetItRainListener
+{
+
+	public static final int NUM_BINS = Long.SIZE;
+
+	private static final int NUM_PHASES = Phase.values().length;
+
+	private static final int PLATEAU_CORNERS = 0;
+
+	private static final int ROOTS = 1;
+
+	private static final int BACKGROUND = 2;
+
+	private final AtomicLongArray phaseCount = new AtomicLongArray( NUM_PHASES );
+
+	private final AtomicLongArray phaseNanos = new AtomicLongArray( NUM_PHASES );
+
+	private final AtomicLongArray phaseVoxels = new AtomicLongArray( NUM_PHASES );
+
+	private final AtomicLongArray phaseHistograms = new AtomicLongArray( NUM_PHASES * NUM_BINS );
+
+	private final AtomicLongArray taskCount = new AtomicLongArray( NUM_PHASES );
+
+	private final AtomicLongArray taskNanos = new AtomicLongArray( NUM_PHASES );
+
+	private final AtomicLongArray taskHistograms = new AtomicLongArray( NUM_PHASES * NUM_BINS );
+
+	private final AtomicLongArray counters = new AtomicLongArray( 3 );
+
+	public static int bin( final long nanos )
+	{
+		return nanos <= 0 ? 0 : NUM_BINS - 1 - Long.numberOfLeadingZeros( nanos );
+	}
+
+	@Override
+	public void phaseFinished( final Phase phase, final long nanos, final long voxels )
+	{
+		final int p = phase.ordinal();
+		phaseCount.incrementAndGet( p );
+		phaseNanos.addAndGet( p, nanos );
+		phaseVoxels.addAndGet( p, voxels );
+		phaseHistograms.incrementAndGet( p * NUM_BINS + bin( nanos ) );
+	}
+
+	@Override
+	public void taskFinished( final Phase phase, final int task, final long nanos, final long voxels )
+	{
+		final int p = phase.ordinal();
+		taskCount.incrementAndGet( p );
+		taskNanos.addAndGet( p, nanos );
+		taskHistograms.incrementAndGet( p * NUM_BINS + bin( nanos ) );
+	}
+
+	@Override
+	public void plateauCorners( final long count )
+	{
+		counters.addAndGet( PLATEAU_CORNERS, count );
+	}
+
+	@Override
+	public void roots( final long roots, final long background )
+	{
+		counters.addAndGet( ROOTS, roots );
+		counters.addAndGet( BACKGROUND, background );
+	}
+
+	public long getPhaseCount( final Phase phase )
+	{
+		return phaseCount.get( phase.ordinal() );
+	}
+
+	public long getPhaseNanos( final Phase phase )
+	{
+		return phaseNanos.get( phase.ordinal() );
+	}
+
+	public long getPhaseVoxels( final Phase phase )
+	{
+		return phaseVoxels.get( phase.ordinal() );
+	}
+
+	public long[] getPhaseHistogram( final Phase phase )
+	{
+		return histogram( phaseHistograms, phase );
+	}
+
+	public long getTaskCount( final Phase phase )
+	{
+		return taskCount.get( phase.ordinal() );
+	}
+
+	public long getTaskNanos( final Phase phase )
+	{
+		return taskNanos.get( phase.ordinal() );
+	}
+
+	public long[] getTaskHistogram( final Phase phase )
+	{
+		return histogram( taskHistograms, phase );
+	}
+
+	public long getPlateauCorners()
+	{
+		return counters.get( PLATEAU_CORNERS );
+	}
+
+	public long getRoots()
+	{
+		return counters.get( ROOTS );
+	}
+
+	public long getBackground()
+	{
+		return counters.get( BACKGROUND );
+	}
+
+	private static long[] histogram( final AtomicLongArray histograms, final Phase phase )
+	{
+		final long[] histogram = new long[ NUM_BINS ];
+		final int offset = phase.ordinal() * NUM_BINS;
+		for ( int k = 0; k < NUM_BINS; ++k )
+			histogram[ k ] = histograms.get( offset + k );
+		return histogram;
+	}
+
+}
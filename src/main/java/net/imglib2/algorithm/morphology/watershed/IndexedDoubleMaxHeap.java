@@ -0,0 +1,151 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary max heap of {@code int} keys in {@code [0, capacity)} with
+ * {@code double} priorities on primitive arrays. Each key is contained at
+ * most once and its position is tracked, so that priorities can be updated
+ * and keys removed in {@code O(log n)}. Equal priorities are ordered by
+ * ascending key.
+ */
+public class IndexedDoubleMaxHeap
+{
+
+	private final int[] heap;
+
+	private final int[] positions;
+
+	private final double[] priorities;
+
+	private int size;
+
+	public IndexedDoubleMaxHeap( final int capacity )
+	{
+		this.heap = new int[ capacity ];
+		this.positions = new int[ capacity ];
+		this.priorities = new double[ capacity ];
+		this.size = 0;
+		Arrays.fill( positions, -1 );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public boolean contains( final int key )
+	{
+		return positions[ key ] >= 0;
+	}
+
+	/**
+	 * Insert {@code key} or update its priority if it is contained already.
+	 */
+	public void push( final int key, final double priority )
+	{
+		final int position = positions[ key ];
+		priorities[ key ] = priority;
+		if ( position < 0 )
+		{
+			heap[ size ] = key;
+			positions[ key ] = size;
+			siftUp( size++ );
+		}
+		else
+		{
+			siftUp( position );
+			siftDown( positions[ key ] );
+		}
+	}
+
+	public int peek()
+	{
+		if ( size == 0 )
+			throw new NoSuchElementException();
+		return heap[ 0 ];
+	}
+
+	public double peekPriority()
+	{
+		return priorities[ peek() ];
+	}
+
+	public int pop()
+	{
+		final int key = peek();
+		remove( key );
+		return key;
+	}
+
+	/**
+	 * Remove {@code key} if it is contained.
+	 */
+	public void remove( final int key )
+	{
+		final int position = positions[ key ];
+		if ( position < 0 )
+			return;
+		positions[ key ] = -1;
+		--size;
+		if ( position == size )
+			return;
+		final int last = heap[ size ];
+		heap[ position ] = last;
+		positions[ last ] = position;
+		siftUp( position );
+		siftDown( positions[ last ] );
+	}
+
+	private boolean isBefore( final int key1, final int key2 )
+	{
+		final double priority1 = priorities[ key1 ];
+		final double priority2 = priorities[ key2 ];
+		return priority1 > priority2 || priority1 == priority2 && key1 < key2;
+	}
+
+	private void siftUp( int position )
+	{
+		final int key = heap[ position ];
+		while ( position > 0 )
+		{
+			final int parent = ( position - 1 ) >>> 1;
+			final int parentKey = heap[ parent ];
+			if ( !isBefore( key, parentKey ) )
+				break;
+			heap[ position ] = parentKey;
+			positions[ parentKey ] = position;
+			position = parent;
+		}
+		heap[ position ] = key;
+		positions[ key ] = position;
+	}
+
+	private void siftDown( int position )
+	{
+		final int key = heap[ position ];
+		while ( true )
+		{
+			int child = 2 * position + 1;
+			if ( child >= size )
+				break;
+			if ( child + 1 < size && isBefore( heap[ child + 1 ], heap[ child ] ) )
+				++child;
+			final int childKey = heap[ child ];
+			if ( !isBefore( childKey, key ) )
+				break;
+			heap[ position ] = childKey;
+			positions[ childKey ] = position;
+			position = child;
+		}
+		heap[ position ] = key;
+		positions[ key ] = position;
+	}
+
+}
@@ -0,0 +1,68 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Instrumentation for {@link AffinityWatershed2#letItRain}. Phases are
+ * reported in order from the calling thread, tasks are reported from the
+ * worker threads that ran them, so implementations must be thread safe.
+ */
+public interface LetItRainListener
+{
+
+	enum Phase
+	{
+		FIND_PARENTS,
+		FIND_PLATEAU_CORNERS,
+		REMOVE_PLATEAUS,
+		FIND_ROOTS,
+		FLOOD_FILL,
+		REMOVE_MASK
+	}
+
+	LetItRainListener NO_OP = new LetItRainListener()
+	{};
+
+	default void phaseStarted( final Phase phase )
+	{}
+
+	/**
+	 * @param voxels
+	 *            number of voxels processed in {@code phase}, e.g. plateau
+	 *            voxels for {@link Phase#REMOVE_PLATEAUS}
+	 */
+	default void phaseFinished( final Phase phase, final long nanos, final long voxels )
+	{}
+
+	/**
+	 * @param task
+	 *            index of the task within its batch of tasks. For
+	 *            {@link Phase#FLOOD_FILL}, tasks are the threads that took
+	 *            part in the fill and {@code nanos} and {@code voxels} are
+	 *            the totals of each thread.
+	 */
+	default void taskFinished( final Phase phase, final int task, final long nanos, final long voxels )
+	{}
+
+	default void plateauCorners( final long count )
+	{}
+
+	default void roots( final long roots, final long background )
+	{}
+
+	static < T > Callable< T > timed(
+			final LetItRainListener listener,
+			final Phase phase,
+			final int task,
+			final long voxels,
+			final Callable< T > callable )
+	{
+		return () -> {
+			final long t0 = System.nanoTime();
+			final T result = callable.call();
+			listener.taskFinished( phase, task, System.nanoTime() - t0, voxels );
+			return result;
+		};
+	}
+
+}
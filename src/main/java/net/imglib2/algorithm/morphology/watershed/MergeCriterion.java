@@ -0,0 +1,33 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+/**
+ * Decide whether two adjacent segments are merged by {@link Agglomeration}
+ * when their edge is the best remaining edge. Edges that are rejected are
+ * considered again once one of their segments has grown.
+ */
+public interface MergeCriterion
+{
+
+	boolean merge( double weight, long size1, long size2 );
+
+	public static final MergeCriterion ALWAYS = ( weight, size1, size2 ) -> true;
+
+	/**
+	 * Merge only if the merged segment has at most {@code maxSize} voxels.
+	 */
+	public static MergeCriterion maxSize( final long maxSize )
+	{
+		return ( weight, size1, size2 ) -> size1 + size2 <= maxSize;
+	}
+
+	/**
+	 * Merge only if at least one of the segments has fewer than
+	 * {@code minSize} voxels, i.e. absorb small segments into their best
+	 * neighbor.
+	 */
+	public static MergeCriterion minSize( final long minSize )
+	{
+		return ( weight, size1, size2 ) -> size1 < minSize || size2 < minSize;
+	}
+
+}
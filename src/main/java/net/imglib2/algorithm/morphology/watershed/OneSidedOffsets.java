@@ -0,0 +1,73 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+/**
+ * Layout of one-sided affinities with one unit offset per dimension, e.g.
+ * {@code -1,0,0 0,-1,0 0,0,-1}: channel {@code channels[ d ]} holds, for
+ * each voxel, the weight of the edge to its neighbor at {@code signs[ d ]}
+ * along dimension {@code d}. The weight of the opposite edge is stored with
+ * that neighbor.
+ */
+final class OneSidedOffsets
+{
+
+	final int[] channels;
+
+	final long[] signs;
+
+	OneSidedOffsets( final long[][] offsets, final int nDim )
+	{
+		if ( offsets.length != nDim )
+			throw new IllegalArgumentException( "Expected " + nDim + " offsets but got " + offsets.length );
+
+		this.channels = new int[ nDim ];
+		this.signs = new long[ nDim ];
+		for ( int c = 0; c < nDim; ++c )
+		{
+			int dimension = -1;
+			for ( int d = 0; d < nDim; ++d )
+				if ( offsets[ c ][ d ] != 0 )
+				{
+					if ( dimension != -1 || Math.abs( offsets[ c ][ d ] ) != 1 )
+						throw new IllegalArgumentException( "Only unit offsets along a single axis supported." );
+					dimension = d;
+				}
+			if ( dimension == -1 )
+				throw new IllegalArgumentException( "Offset " + c + " is zero." );
+			if ( signs[ dimension ] != 0 )
+				throw new IllegalArgumentException( "More than one offset along dimension " + dimension + "." );
+			channels[ dimension ] = c;
+			signs[ dimension ] = offsets[ c ][ dimension ];
+		}
+	}
+
+	/**
+	 * Dimension of {@code edge} as ordered by
+	 * {@link AffinityWatershed2#generateSteps(long[])}.
+	 */
+	static int dimension( final int edge, final int nDim )
+	{
+		return edge < nDim ? nDim - 1 - edge : edge - nDim;
+	}
+
+	/**
+	 * Direction ({@code -1} or {@code 1}) of {@code edge} along
+	 * {@link #dimension(int, int)}.
+	 */
+	static long direction( final int edge, final int nDim )
+	{
+		return edge < nDim ? -1 : 1;
+	}
+
+	/**
+	 * Position along {@link #dimension(int, int)}, relative to a voxel, of the
+	 * voxel that stores the weight of {@code edge}: {@code 0} for the voxel
+	 * itself and the direction of the edge for its neighbor.
+	 */
+	long shift( final int edge )
+	{
+		final int nDim = channels.length;
+		final long direction = direction( edge, nDim );
+		return direction == signs[ dimension( edge, nDim ) ] ? 0 : direction;
+	}
+
+}
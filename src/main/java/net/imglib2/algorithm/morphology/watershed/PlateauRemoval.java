@@ -0,0 +1,177 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.algorithm.morphology.watershed.LetItRainListener.Phase;
+import net.imglib2.algorithm.morphology.watershed.WorkStealingFloodFill.LabelAccess;
+
+/**
+ * Plateau removal phase of {@link AffinityWatershed2#letItRain} and
+ * {@link FlatAffinityWatershed}: breadth first search from the plateau
+ * corners, one level of the search at a time. Within a level, parents and the
+ * next level are determined from the state at the beginning of the level and
+ * plateau voxels only choose parents from previous levels or outside the
+ * plateau. Plateau voxels choose the first direction that leads to such a
+ * voxel, so the result does not depend on {@code nTasks} or on thread
+ * scheduling. Each step is split into tasks of at least
+ * {@link #MIN_TASK_SIZE} voxels, so levels smaller than that run inline on
+ * the calling thread.
+ */
+class PlateauRemoval
+{
+
+	static final int MIN_TASK_SIZE = 1 << 12;
+
+	/**
+	 * @param access
+	 *            called once per task, instances are used by a single task
+	 * @return number of plateau voxels
+	 */
+	static long remove(
+			final TLongArrayList corners,
+			final Supplier< LabelAccess > access,
+			final long size,
+			final long[] steps,
+			final long[] bitmask,
+			final long[] inverseBitmask,
+			final long highBit,
+			final long secondHighBit,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		final int nEdges = steps.length;
+		final long notDone = ~highBit;
+
+		final TLongArrayList processed = new TLongArrayList();
+		TLongArrayList frontier = corners;
+
+		while ( !frontier.isEmpty() )
+		{
+			final TLongArrayList level = frontier;
+			final long[] parents = new long[ level.size() ];
+			final int taskSize = taskSize( level.size(), nTasks );
+
+			final ArrayList< Callable< TLongArrayList > > tasks = new ArrayList<>();
+			for ( int start = 0; start < level.size(); start += taskSize )
+			{
+				final int from = start;
+				final int to = Math.min( start + taskSize, level.size() );
+				tasks.add( LetItRainListener.timed( listener, Phase.REMOVE_PLATEAUS, tasks.size(), to - from, () -> {
+					final LabelAccess labels = access.get();
+					final TLongArrayList claimed = new TLongArrayList();
+					for ( int k = from; k < to; ++k )
+					{
+						final long index = level.get( k );
+						final long labelRaw = labels.get( index );
+						long parent = 0;
+						for ( int d = 0; d < nEdges; ++d )
+							if ( ( labelRaw & bitmask[ d ] ) != 0 )
+							{
+								final long otherIndex = index + steps[ d ];
+								if ( otherIndex < 0 || otherIndex >= size )
+									continue;
+								final long otherLabelRaw = labels.get( otherIndex );
+								// done in previous level or lower than plateau
+								if ( ( otherLabelRaw & highBit ) != 0 || ( otherLabelRaw & inverseBitmask[ d ] ) == 0 )
+								{
+									if ( parent == 0 )
+										parent = bitmask[ d ];
+								}
+								else if ( ( otherLabelRaw & secondHighBit ) == 0 )
+									claimed.add( otherIndex );
+							}
+						parents[ k ] = parent;
+					}
+					return claimed;
+				} ) );
+			}
+
+			final TLongArrayList next = new TLongArrayList();
+			for ( final TLongArrayList claimed : AffinityWatershed2.invokeAllAndGet( es, tasks ) )
+				next.addAll( claimed );
+			AffinityWatershed2.sortAndRemoveDuplicates( next );
+
+			final ArrayList< Callable< Void > > updates = new ArrayList<>();
+			if ( level.size() + next.size() < MIN_TASK_SIZE )
+				// small levels run inline, see AffinityWatershed2#invokeAllAndGet
+				updates.add( LetItRainListener.timed( listener, Phase.REMOVE_PLATEAUS, 0, level.size() + next.size(), () -> {
+					final LabelAccess labels = access.get();
+					setParents( labels, level, parents, highBit, 0, level.size() );
+					markNext( labels, next, secondHighBit, 0, next.size() );
+					return null;
+				} ) );
+			else
+			{
+				for ( int start = 0; start < level.size(); start += taskSize )
+				{
+					final int from = start;
+					final int to = Math.min( start + taskSize, level.size() );
+					updates.add( LetItRainListener.timed( listener, Phase.REMOVE_PLATEAUS, updates.size(), to - from, () -> {
+						setParents( access.get(), level, parents, highBit, from, to );
+						return null;
+					} ) );
+				}
+				for ( int start = 0; start < next.size(); start += taskSize )
+				{
+					final int from = start;
+					final int to = Math.min( start + taskSize, next.size() );
+					updates.add( LetItRainListener.timed( listener, Phase.REMOVE_PLATEAUS, updates.size(), to - from, () -> {
+						markNext( access.get(), next, secondHighBit, from, to );
+						return null;
+					} ) );
+				}
+			}
+			AffinityWatershed2.invokeAllAndGet( es, updates );
+
+			processed.addAll( level );
+			frontier = next;
+		}
+
+		final int taskSize = taskSize( processed.size(), nTasks );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( int start = 0; start < processed.size(); start += taskSize )
+		{
+			final int from = start;
+			final int to = Math.min( start + taskSize, processed.size() );
+			tasks.add( LetItRainListener.timed( listener, Phase.REMOVE_PLATEAUS, tasks.size(), to - from, () -> {
+				final LabelAccess labels = access.get();
+				for ( int k = from; k < to; ++k )
+				{
+					final long index = processed.get( k );
+					labels.set( index, labels.get( index ) & notDone );
+				}
+				return null;
+			} ) );
+		}
+		AffinityWatershed2.invokeAllAndGet( es, tasks );
+
+		return processed.size();
+	}
+
+	private static void setParents( final LabelAccess labels, final TLongArrayList level, final long[] parents, final long highBit, final int from, final int to )
+	{
+		for ( int k = from; k < to; ++k )
+			labels.set( level.get( k ), parents[ k ] | highBit );
+	}
+
+	private static void markNext( final LabelAccess labels, final TLongArrayList next, final long secondHighBit, final int from, final int to )
+	{
+		for ( int k = from; k < to; ++k )
+		{
+			final long index = next.get( k );
+			labels.set( index, labels.get( index ) | secondHighBit );
+		}
+	}
+
+	private static int taskSize( final int size, final int nTasks )
+	{
+		return Math.max( ( size + nTasks - 1 ) / nTasks, MIN_TASK_SIZE );
+	}
+
+}
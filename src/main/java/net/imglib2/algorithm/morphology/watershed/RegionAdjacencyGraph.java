@@ -0,0 +1,500 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.watershed.flat.FlatViews;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.RealComposite;
+
+/**
+ * Region adjacency graph in compressed sparse row layout: for each region
+ * (row) that touches another region, the sorted labels of its neighbors,
+ * the aggregated edge weights and the number of voxel edges per edge. Every edge is stored in the rows of both of
+ * its regions. Rows are sorted by label and labels may be any {@code long}.
+ *
+ * Unlike {@link AffinityWatershed2#generateRegionGraph}, the graph is built
+ * in parallel: each task scans a stripe of voxels into primitive edge lists
+ * that are sorted and reduced per task, then merged.
+ */
+public class RegionAdjacencyGraph
+{
+
+	private final LongBuffer nodes;
+
+	private final LongBuffer offsets;
+
+	private final LongBuffer neighbors;
+
+	private final DoubleBuffer weights;
+
+	private final LongBuffer counts;
+
+	private RegionAdjacencyGraph(
+			final LongBuffer nodes,
+			final LongBuffer offsets,
+			final LongBuffer neighbors,
+			final DoubleBuffer weights,
+			final LongBuffer counts )
+	{
+		this.nodes = nodes;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.weights = weights;
+		this.counts = counts;
+	}
+
+	public int numNodes()
+	{
+		return nodes.capacity();
+	}
+
+	/**
+	 * @return number of edges, each stored twice
+	 */
+	public long numEdges()
+	{
+		return neighbors.capacity() / 2;
+	}
+
+	public long node( final int row )
+	{
+		return nodes.get( row );
+	}
+
+	/**
+	 * @return row of {@code label} or {@code -1} if it has no neighbors
+	 */
+	public int row( final long label )
+	{
+		final int row = binarySearch( nodes, 0, nodes.capacity(), label );
+		return row < 0 ? -1 : row;
+	}
+
+	/**
+	 * @return index of the first neighbor of {@code row}
+	 */
+	public int offset( final int row )
+	{
+		return ( int ) offsets.get( row );
+	}
+
+	public int degree( final int row )
+	{
+		return ( int ) ( offsets.get( row + 1 ) - offsets.get( row ) );
+	}
+
+	public long neighbor( final int index )
+	{
+		return neighbors.get( index );
+	}
+
+	public double weight( final int index )
+	{
+		return weights.get( index );
+	}
+
+	/**
+	 * @return number of voxel edges aggregated into the edge at {@code index}
+	 */
+	public long count( final int index )
+	{
+		return counts.get( index );
+	}
+
+	/**
+	 * @return weight of the edge between {@code label1} and {@code label2} or
+	 *         {@link Double#NaN} if they are not adjacent
+	 */
+	public double weight( final long label1, final long label2 )
+	{
+		final int row = row( label1 );
+		if ( row < 0 )
+			return Double.NaN;
+		final int index = binarySearch( neighbors, offset( row ), offset( row + 1 ), label2 );
+		return index < 0 ? Double.NaN : weights.get( index );
+	}
+
+	private static int binarySearch( final LongBuffer data, final int from, final int to, final long key )
+	{
+		int low = from;
+		int high = to - 1;
+		while ( low <= high )
+		{
+			final int mid = ( low + high ) >>> 1;
+			final long value = data.get( mid );
+			if ( value < key )
+				low = mid + 1;
+			else if ( value > key )
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Build the region adjacency graph of {@code labels}. Each pair of
+	 * neighboring voxels with different labels contributes the weight of
+	 * their edge in {@code source}, looked up in forward direction, i.e. edge
+	 * {@code nDim + d} for neighbors along dimension {@code d}. This visits
+	 * every edge once and assumes symmetric affinities as used by
+	 * {@link AffinityWatershed2#letItRain}. {@link Double#NaN} weights are
+	 * ignored.
+	 *
+	 * @param offHeap
+	 *            store the graph in direct buffers outside of the Java heap
+	 */
+	public static < T extends RealType< T >, L extends IntegerType< L > > RegionAdjacencyGraph build(
+			final RandomAccessible< RealComposite< T > > source,
+			final RandomAccessibleInterval< L > labels,
+			final EdgeAggregation aggregation,
+			final boolean offHeap,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = labels.numDimensions();
+		final long[] dimensions = Intervals.dimensionsAsLongArray( labels );
+		final long[] strides = AffinityWatershed2.generateStride( labels );
+		final long size = Intervals.numElements( labels );
+		final long taskSize = Math.max( ( size + nTasks - 1 ) / nTasks, 1 );
+
+		final ArrayList< Callable< EdgeList > > tasks = new ArrayList<>();
+		for ( long start = 0; start < size; start += taskSize )
+		{
+			final long from = start;
+			final long to = Math.min( start + taskSize, size );
+			tasks.add( () -> {
+				final RandomAccess< RealComposite< T > > flatSource = FlatViews.flatten( Views.interval( source, labels ) ).randomAccess();
+				final RandomAccess< L > flatLabels = FlatViews.flatten( labels ).randomAccess();
+				// one access per dimension, so that all accesses move forward by one
+				final List< RandomAccess< L > > flatNeighbors = new ArrayList<>();
+				for ( int d = 0; d < nDim; ++d )
+					flatNeighbors.add( FlatViews.flatten( labels ).randomAccess() );
+
+				final long[] position = new long[ nDim ];
+				IntervalIndexer.indexToPosition( from, dimensions, position );
+
+				final EdgeList edges = new EdgeList();
+				for ( long index = from; index < to; ++index )
+				{
+					final long label = AffinityWatershed2.get( flatLabels, index ).getIntegerLong();
+					final RealComposite< T > edgeWeights = AffinityWatershed2.get( flatSource, index );
+					for ( int d = 0; d < nDim; ++d )
+					{
+						if ( position[ d ] + 1 >= dimensions[ d ] )
+							continue;
+						final long otherLabel = AffinityWatershed2.get( flatNeighbors.get( d ), index + strides[ d ] ).getIntegerLong();
+						if ( otherLabel == label )
+							continue;
+						final double weight = edgeWeights.get( nDim + d ).getRealDouble();
+						if ( Double.isNaN( weight ) )
+							continue;
+						edges.add( Math.min( label, otherLabel ), Math.max( label, otherLabel ), weight, 1 );
+					}
+
+					for ( int d = 0; d < nDim; ++d )
+					{
+						if ( ++position[ d ] < dimensions[ d ] )
+							break;
+						position[ d ] = 0;
+					}
+				}
+				edges.sort();
+				if ( aggregation instanceof EdgeAggregation.Reducible )
+					edges.reduce( ( EdgeAggregation.Reducible ) aggregation );
+				return edges;
+			} );
+		}
+
+		final List< EdgeList > edgeLists = AffinityWatershed2.invokeAllAndGet( es, tasks );
+		return fromSortedEdges( merge( edgeLists, aggregation ), offHeap );
+	}
+
+	/**
+	 * k-way merge of sorted edge lists into a list of unique edges with
+	 * aggregated weights.
+	 */
+	private static EdgeList merge( final List< EdgeList > edgeLists, final EdgeAggregation aggregation )
+	{
+		final EdgeList merged = new EdgeList();
+		final int[] heads = new int[ edgeLists.size() ];
+		double[] group = new double[ 16 ];
+
+		while ( true )
+		{
+			long from = Long.MAX_VALUE;
+			long to = Long.MAX_VALUE;
+			boolean isEmpty = true;
+			for ( int k = 0; k < heads.length; ++k )
+			{
+				final EdgeList edges = edgeLists.get( k );
+				final int head = heads[ k ];
+				if ( head < edges.size && ( isEmpty || compare( edges.from[ head ], edges.to[ head ], from, to ) < 0 ) )
+				{
+					from = edges.from[ head ];
+					to = edges.to[ head ];
+					isEmpty = false;
+				}
+			}
+			if ( isEmpty )
+				break;
+
+			int groupSize = 0;
+			long count = 0;
+			for ( int k = 0; k < heads.length; ++k )
+			{
+				final EdgeList edges = edgeLists.get( k );
+				for ( int head = heads[ k ]; head < edges.size && edges.from[ head ] == from && edges.to[ head ] == to; head = ++heads[ k ] )
+				{
+					if ( groupSize == group.length )
+						group = Arrays.copyOf( group, 2 * group.length );
+					group[ groupSize++ ] = edges.weight[ head ];
+					count += edges.count[ head ];
+				}
+			}
+
+			final double weight;
+			if ( aggregation instanceof EdgeAggregation.Reducible )
+			{
+				final EdgeAggregation.Reducible reducible = ( EdgeAggregation.Reducible ) aggregation;
+				double partial = group[ 0 ];
+				for ( int i = 1; i < groupSize; ++i )
+					partial = reducible.reduce( partial, group[ i ] );
+				weight = reducible.finish( partial, count );
+			}
+			else
+				weight = aggregation.aggregate( group, 0, groupSize );
+			merged.add( from, to, weight, count );
+		}
+
+		return merged;
+	}
+
+	private static RegionAdjacencyGraph fromSortedEdges( final EdgeList edges, final boolean offHeap )
+	{
+		// every edge is stored twice, in int-indexed buffers
+		if ( 2l * edges.size > EdgeList.MAX_CAPACITY )
+			throw new IllegalArgumentException( "Too many edges for a single buffer: " + edges.size + " edges, at most " + EdgeList.MAX_CAPACITY / 2 + " edges are supported" );
+		// direct buffers are allocated from an int number of bytes
+		if ( offHeap && 2l * edges.size * Long.BYTES > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many edges for a single direct buffer: " + edges.size + " edges, at most " + Integer.MAX_VALUE / ( 2 * Long.BYTES ) + " edges are supported off heap" );
+
+		final TLongArrayList nodeList = new TLongArrayList();
+		for ( int i = 0; i < edges.size; ++i )
+		{
+			nodeList.add( edges.from[ i ] );
+			nodeList.add( edges.to[ i ] );
+		}
+		AffinityWatershed2.sortAndRemoveDuplicates( nodeList );
+
+		final LongBuffer nodes = allocateLongs( nodeList.size(), offHeap );
+		for ( int row = 0; row < nodeList.size(); ++row )
+			nodes.put( row, nodeList.get( row ) );
+
+		final int[] fromRows = new int[ edges.size ];
+		final int[] toRows = new int[ edges.size ];
+		final long[] degrees = new long[ nodeList.size() ];
+		for ( int i = 0; i < edges.size; ++i )
+		{
+			fromRows[ i ] = nodeList.binarySearch( edges.from[ i ] );
+			toRows[ i ] = nodeList.binarySearch( edges.to[ i ] );
+			++degrees[ fromRows[ i ] ];
+			++degrees[ toRows[ i ] ];
+		}
+
+		final LongBuffer offsets = allocateLongs( nodeList.size() + 1, offHeap );
+		final int[] next = new int[ nodeList.size() ];
+		long offset = 0;
+		for ( int row = 0; row < nodeList.size(); ++row )
+		{
+			offsets.put( row, offset );
+			next[ row ] = ( int ) offset;
+			offset += degrees[ row ];
+		}
+		offsets.put( nodeList.size(), offset );
+
+		// edges are sorted by (from, to), so rows are filled in ascending
+		// order of neighbors: first neighbors with smaller labels, then
+		// neighbors with larger labels
+		final LongBuffer neighbors = allocateLongs( 2 * edges.size, offHeap );
+		final DoubleBuffer weights = allocateDoubles( 2 * edges.size, offHeap );
+		final LongBuffer counts = allocateLongs( 2 * edges.size, offHeap );
+		for ( int i = 0; i < edges.size; ++i )
+		{
+			final int fromIndex = next[ fromRows[ i ] ]++;
+			neighbors.put( fromIndex, edges.to[ i ] );
+			weights.put( fromIndex, edges.weight[ i ] );
+			counts.put( fromIndex, edges.count[ i ] );
+			final int toIndex = next[ toRows[ i ] ]++;
+			neighbors.put( toIndex, edges.from[ i ] );
+			weights.put( toIndex, edges.weight[ i ] );
+			counts.put( toIndex, edges.count[ i ] );
+		}
+
+		return new RegionAdjacencyGraph( nodes, offsets, neighbors, weights, counts );
+	}
+
+	private static LongBuffer allocateLongs( final int size, final boolean offHeap )
+	{
+		return offHeap
+				? ByteBuffer.allocateDirect( size * Long.BYTES ).order( ByteOrder.nativeOrder() ).asLongBuffer()
+				: LongBuffer.allocate( size );
+	}
+
+	private static DoubleBuffer allocateDoubles( final int size, final boolean offHeap )
+	{
+		return offHeap
+				? ByteBuffer.allocateDirect( size * Double.BYTES ).order( ByteOrder.nativeOrder() ).asDoubleBuffer()
+				: DoubleBuffer.allocate( size );
+	}
+
+	private static int compare( final long from1, final long to1, final long from2, final long to2 )
+	{
+		final int c = Long.compare( from1, from2 );
+		return c == 0 ? Long.compare( to1, to2 ) : c;
+	}
+
+	/**
+	 * Growable parallel arrays of edges, with weights holding partial results
+	 * of {@code count} voxel edges each after {@link #reduce}.
+	 */
+	private static class EdgeList
+	{
+
+		private static final int INSERTION_SORT_SIZE = 16;
+
+		// largest array size that the VM reliably allocates
+		private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+		private long[] from = new long[ 16 ];
+
+		private long[] to = new long[ 16 ];
+
+		private double[] weight = new double[ 16 ];
+
+		private long[] count = new long[ 16 ];
+
+		private int size = 0;
+
+		private void add( final long from, final long to, final double weight, final long count )
+		{
+			if ( size == this.from.length )
+			{
+				if ( size == MAX_CAPACITY )
+					throw new IllegalStateException( "Too many edges for a single edge list: " + size );
+				final int capacity = ( int ) Math.min( 2l * size, MAX_CAPACITY );
+				this.from = Arrays.copyOf( this.from, capacity );
+				this.to = Arrays.copyOf( this.to, capacity );
+				this.weight = Arrays.copyOf( this.weight, capacity );
+				this.count = Arrays.copyOf( this.count, capacity );
+			}
+			this.from[ size ] = from;
+			this.to[ size ] = to;
+			this.weight[ size ] = weight;
+			this.count[ size ] = count;
+			++size;
+		}
+
+		private void reduce( final EdgeAggregation.Reducible aggregation )
+		{
+			int reduced = 0;
+			for ( int i = 0; i < size; ++i )
+				if ( reduced > 0 && from[ i ] == from[ reduced - 1 ] && to[ i ] == to[ reduced - 1 ] )
+				{
+					weight[ reduced - 1 ] = aggregation.reduce( weight[ reduced - 1 ], weight[ i ] );
+					count[ reduced - 1 ] += count[ i ];
+				}
+				else
+				{
+					from[ reduced ] = from[ i ];
+					to[ reduced ] = to[ i ];
+					weight[ reduced ] = weight[ i ];
+					count[ reduced ] = count[ i ];
+					++reduced;
+				}
+			size = reduced;
+		}
+
+		private void sort()
+		{
+			sort( 0, size );
+		}
+
+		/**
+		 * Three-way quicksort by {@code (from, to)}, which handles the many
+		 * duplicate edges between the same regions.
+		 */
+		private void sort( int lo, int hi )
+		{
+			while ( hi - lo > INSERTION_SORT_SIZE )
+			{
+				final int mid = ( lo + hi ) >>> 1;
+				final long pivotFrom = from[ mid ];
+				final long pivotTo = to[ mid ];
+				int lt = lo;
+				int gt = hi - 1;
+				int i = lo;
+				while ( i <= gt )
+				{
+					final int c = compare( from[ i ], to[ i ], pivotFrom, pivotTo );
+					if ( c < 0 )
+						swap( lt++, i++ );
+					else if ( c > 0 )
+						swap( i, gt-- );
+					else
+						++i;
+				}
+				// recurse into the smaller part
+				if ( lt - lo < hi - gt - 1 )
+				{
+					sort( lo, lt );
+					lo = gt + 1;
+				}
+				else
+				{
+					sort( gt + 1, hi );
+					hi = lt;
+				}
+			}
+
+			for ( int i = lo + 1; i < hi; ++i )
+				for ( int j = i; j > lo && compare( from[ j - 1 ], to[ j - 1 ], from[ j ], to[ j ] ) > 0; --j )
+					swap( j - 1, j );
+		}
+
+		private void swap( final int i, final int j )
+		{
+			final long f = from[ i ];
+			from[ i ] = from[ j ];
+			from[ j ] = f;
+			final long t = to[ i ];
+			to[ i ] = to[ j ];
+			to[ j ] = t;
+			final double w = weight[ i ];
+			weight[ i ] = weight[ j ];
+			weight[ j ] = w;
+			final long c = count[ i ];
+			count[ i ] = count[ j ];
+			count[ j ] = c;
+		}
+
+	}
+
+}
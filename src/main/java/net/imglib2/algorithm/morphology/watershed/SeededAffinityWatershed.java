@@ -0,0 +1,377 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Seeded watershed on one-sided affinities: channel {@code k} at voxel
+ * {@code p} is the weight of the edge between {@code p} and
+ * {@code p + offsets[ k ]}, no symmetric copy of the affinities is needed.
+ * Seeds are flat indices into the labels, e.g. from
+ * {@link Seeds#fromMask}, and keep their label. All other voxels that are
+ * connected to a seed by edges that are not {@code NaN} are flooded from the
+ * seeds, highest weight first, and get the label of the seed that reaches
+ * them first.
+ *
+ * Edges with equal weight are flooded in ascending order of their edge id
+ * {@code p * offsets.length + k}. This makes the flood the unique maximum
+ * spanning forest rooted at the seeds, independent of the order in which
+ * edges are discovered. {@link BlockwiseSeededAffinityWatershed} computes the
+ * same flood block by block in parallel.
+ *
+ * With a positive number of levels, weights are clamped to {@code [0,1]} and
+ * binned into that many levels, and edges are flooded from a queue with one
+ * bucket of primitive {@code long}s per level, first in first out within a
+ * level. Push and pop take constant time instead of logarithmic time in the
+ * number of queued edges, and each queued edge takes two {@code long}s instead
+ * of a weight, an edge id, a target and a label. In exchange, edges with
+ * weights that differ by less than {@code 1 / levels} are flooded in the order
+ * in which they are discovered. Voxels on such plateaus can get the label of a
+ * different seed than in the exact flood, and the result depends on the order
+ * of the seeds.
+ */
+public class SeededAffinityWatershed
+{
+
+	/**
+	 * @param affinities
+	 *            one-sided affinities with one channel per offset in the last
+	 *            dimension and the spatial interval of {@code labels}
+	 * @param labels
+	 *            labels of the seeds, all other voxels that are reached by
+	 *            the flood are overwritten
+	 * @param seeds
+	 *            flat indices into {@code labels}
+	 */
+	public static < A extends RealType< A >, L extends IntegerType< L > > void flood(
+			final RandomAccessibleInterval< A > affinities,
+			final RandomAccessibleInterval< L > labels,
+			final long[] seeds,
+			final long[][] offsets )
+	{
+		flood( affinities, labels, seeds, offsets, 0 );
+	}
+
+	/**
+	 * @param affinities
+	 *            one-sided affinities with one channel per offset in the last
+	 *            dimension and the spatial interval of {@code labels}
+	 * @param labels
+	 *            labels of the seeds, all other voxels that are reached by
+	 *            the flood are overwritten
+	 * @param seeds
+	 *            flat indices into {@code labels}
+	 * @param numLevels
+	 *            number of levels of the bucket queue, or {@code 0} for the
+	 *            exact flood
+	 */
+	public static < A extends RealType< A >, L extends IntegerType< L > > void flood(
+			final RandomAccessibleInterval< A > affinities,
+			final RandomAccessibleInterval< L > labels,
+			final long[] seeds,
+			final long[][] offsets,
+			final int numLevels )
+	{
+		if ( numLevels < 0 )
+			throw new IllegalArgumentException( "Expected non-negative number of levels but got " + numLevels );
+		final int nDim = labels.numDimensions();
+		final int nChannels = offsets.length;
+		if ( affinities.numDimensions() != nDim + 1 || affinities.dimension( nDim ) != nChannels )
+			throw new IllegalArgumentException( "Expected " + nChannels + " affinity channels in the last of " + ( nDim + 1 ) + " dimensions but got " + Arrays.toString( Intervals.dimensionsAsLongArray( affinities ) ) );
+
+		final long[] dimensions = Intervals.dimensionsAsLongArray( labels );
+		final long[] min = Intervals.minAsLongArray( labels );
+		final long size = Intervals.numElements( labels );
+		final long[] isVisited = new long[ ( int ) ( ( size + 63 ) >>> 6 ) ];
+
+		final RandomAccess< L > labelAccess = labels.randomAccess();
+		final RandomAccess< A > affinityAccess = affinities.randomAccess();
+		final long[] position = new long[ nDim ];
+		final long[] neighbor = new long[ nDim ];
+		final EdgeQueue queue = numLevels > 0 ? new BucketQueue( numLevels ) : new EdgeHeap();
+
+		// from positions in labels to positions in affinities
+		final long[] shift = new long[ nDim + 1 ];
+		for ( int d = 0; d < nDim; ++d )
+			shift[ d ] = affinities.min( d ) - min[ d ];
+		shift[ nDim ] = affinities.min( nDim );
+
+		for ( final long seed : seeds )
+			isVisited[ ( int ) ( seed >>> 6 ) ] |= 1L << seed;
+
+		for ( final long seed : seeds )
+		{
+			IntervalIndexer.indexToPositionWithOffset( seed, dimensions, min, position );
+			labelAccess.setPosition( position );
+			push( queue, affinityAccess, shift, isVisited, offsets, min, dimensions, seed, position, labelAccess.get().getIntegerLong(), neighbor );
+		}
+
+		while ( !queue.isEmpty() )
+		{
+			final long label = queue.peekLabel();
+			final long index = queue.pop();
+			if ( ( isVisited[ ( int ) ( index >>> 6 ) ] & 1L << index ) != 0 )
+				continue;
+			isVisited[ ( int ) ( index >>> 6 ) ] |= 1L << index;
+			IntervalIndexer.indexToPositionWithOffset( index, dimensions, min, position );
+			labelAccess.setPosition( position );
+			labelAccess.get().setInteger( label );
+			push( queue, affinityAccess, shift, isVisited, offsets, min, dimensions, index, position, label, neighbor );
+		}
+	}
+
+	/**
+	 * Push the edges of the voxel at {@code index} to all neighbors that are
+	 * not visited yet.
+	 */
+	private static < A extends RealType< A > > void push(
+			final EdgeQueue queue,
+			final RandomAccess< A > affinityAccess,
+			final long[] shift,
+			final long[] isVisited,
+			final long[][] offsets,
+			final long[] min,
+			final long[] dimensions,
+			final long index,
+			final long[] position,
+			final long label,
+			final long[] neighbor )
+	{
+		final int nDim = position.length;
+		final int nChannels = offsets.length;
+		for ( int k = 0; k < nChannels; ++k )
+			for ( int sign = 1; sign >= -1; sign -= 2 )
+			{
+				boolean isInside = true;
+				for ( int d = 0; d < nDim; ++d )
+				{
+					neighbor[ d ] = position[ d ] + sign * offsets[ k ][ d ];
+					isInside &= neighbor[ d ] >= min[ d ] && neighbor[ d ] < min[ d ] + dimensions[ d ];
+				}
+				if ( !isInside )
+					continue;
+				final long neighborIndex = IntervalIndexer.positionWithOffsetToIndex( neighbor, dimensions, min );
+				if ( ( isVisited[ ( int ) ( neighborIndex >>> 6 ) ] & 1L << neighborIndex ) != 0 )
+					continue;
+
+				// the weight is stored with the voxel that has the other voxel at offsets[ k ]
+				final long[] source = sign == 1 ? position : neighbor;
+				for ( int d = 0; d < nDim; ++d )
+					affinityAccess.setPosition( source[ d ] + shift[ d ], d );
+				affinityAccess.setPosition( shift[ nDim ] + k, nDim );
+				final float weight = affinityAccess.get().getRealFloat();
+				if ( Float.isNaN( weight ) )
+					continue;
+				final long edge = ( sign == 1 ? index : neighborIndex ) * nChannels + k;
+				queue.push( weight, edge, neighborIndex, label );
+			}
+	}
+
+	/**
+	 * Queue of edges with the voxel that the edge leads to and the label that
+	 * it carries.
+	 */
+	private interface EdgeQueue
+	{
+
+		boolean isEmpty();
+
+		long peekLabel();
+
+		void push( float weight, long edge, long target, long label );
+
+		/**
+		 * Remove the first edge and return the voxel that it leads to.
+		 */
+		long pop();
+
+	}
+
+	/**
+	 * Binary max heap of edges on primitive arrays, ordered by weight and then
+	 * by ascending edge id.
+	 */
+	private static class EdgeHeap implements EdgeQueue
+	{
+
+		private float[] weights = new float[ 1024 ];
+
+		private long[] edges = new long[ 1024 ];
+
+		private long[] targets = new long[ 1024 ];
+
+		private long[] labels = new long[ 1024 ];
+
+		private int size = 0;
+
+		@Override
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		@Override
+		public long peekLabel()
+		{
+			return labels[ 0 ];
+		}
+
+		@Override
+		public void push( final float weight, final long edge, final long target, final long label )
+		{
+			if ( size == weights.length )
+			{
+				weights = Arrays.copyOf( weights, 2 * size );
+				edges = Arrays.copyOf( edges, 2 * size );
+				targets = Arrays.copyOf( targets, 2 * size );
+				labels = Arrays.copyOf( labels, 2 * size );
+			}
+			int index = size++;
+			while ( index > 0 )
+			{
+				final int parent = ( index - 1 ) >>> 1;
+				if ( !isBefore( weight, edge, weights[ parent ], edges[ parent ] ) )
+					break;
+				set( index, parent );
+				index = parent;
+			}
+			weights[ index ] = weight;
+			edges[ index ] = edge;
+			targets[ index ] = target;
+			labels[ index ] = label;
+		}
+
+		@Override
+		public long pop()
+		{
+			final long target = targets[ 0 ];
+			--size;
+			final float weight = weights[ size ];
+			final long edge = edges[ size ];
+			final long last = targets[ size ];
+			final long label = labels[ size ];
+			int index = 0;
+			while ( true )
+			{
+				int child = 2 * index + 1;
+				if ( child >= size )
+					break;
+				if ( child + 1 < size && isBefore( weights[ child + 1 ], edges[ child + 1 ], weights[ child ], edges[ child ] ) )
+					++child;
+				if ( !isBefore( weights[ child ], edges[ child ], weight, edge ) )
+					break;
+				set( index, child );
+				index = child;
+			}
+			weights[ index ] = weight;
+			edges[ index ] = edge;
+			targets[ index ] = last;
+			labels[ index ] = label;
+			return target;
+		}
+
+		private void set( final int index, final int from )
+		{
+			weights[ index ] = weights[ from ];
+			edges[ index ] = edges[ from ];
+			targets[ index ] = targets[ from ];
+			labels[ index ] = labels[ from ];
+		}
+
+		private static boolean isBefore( final float weight1, final long edge1, final float weight2, final long edge2 )
+		{
+			return weight1 > weight2 || weight1 == weight2 && edge1 < edge2;
+		}
+
+	}
+
+	/**
+	 * Bucket queue of edges with one first in first out bucket per level of
+	 * quantized weight, highest level first. Each bucket stores the target
+	 * and the label of its edges next to each other in a {@code long[]}.
+	 */
+	private static class BucketQueue implements EdgeQueue
+	{
+
+		private final long[][] buckets;
+
+		private final int[] heads;
+
+		private final int[] tails;
+
+		private int top = -1;
+
+		BucketQueue( final int numLevels )
+		{
+			this.buckets = new long[ numLevels ][ 16 ];
+			this.heads = new int[ numLevels ];
+			this.tails = new int[ numLevels ];
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return top < 0;
+		}
+
+		@Override
+		public long peekLabel()
+		{
+			return buckets[ top ][ heads[ top ] + 1 ];
+		}
+
+		@Override
+		public void push( final float weight, final long edge, final long target, final long label )
+		{
+			final int level = level( weight );
+			long[] bucket = buckets[ level ];
+			if ( tails[ level ] == bucket.length )
+			{
+				// reclaim popped entries before growing
+				final int head = heads[ level ];
+				final int size = tails[ level ] - head;
+				if ( head >= bucket.length / 2 )
+					System.arraycopy( bucket, head, bucket, 0, size );
+				else
+				{
+					bucket = Arrays.copyOfRange( bucket, head, head + 2 * bucket.length );
+					buckets[ level ] = bucket;
+				}
+				heads[ level ] = 0;
+				tails[ level ] = size;
+			}
+			bucket[ tails[ level ]++ ] = target;
+			bucket[ tails[ level ]++ ] = label;
+			top = Math.max( top, level );
+		}
+
+		@Override
+		public long pop()
+		{
+			final long target = buckets[ top ][ heads[ top ] ];
+			heads[ top ] += 2;
+			if ( heads[ top ] == tails[ top ] )
+			{
+				heads[ top ] = 0;
+				tails[ top ] = 0;
+				while ( top >= 0 && heads[ top ] == tails[ top ] )
+					--top;
+			}
+			return target;
+		}
+
+		private int level( final float weight )
+		{
+			final int numLevels = buckets.length;
+			return Math.min( Math.max( ( int ) ( weight * numLevels ), 0 ), numLevels - 1 );
+		}
+
+	}
+
+}
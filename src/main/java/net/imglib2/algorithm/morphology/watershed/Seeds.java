@@ -0,0 +1,120 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.BooleanType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Watershed seeds as a packed array of flat indices into a volume instead of
+ * a list of points. Seeds are extracted block by block, so that blocks can be
+ * processed on different threads, and the per-block arrays are concatenated
+ * in flat order of the volume.
+ */
+public class Seeds
+{
+
+	/**
+	 * Seeds in {@code block} of {@code volume}: voxels that are set in
+	 * {@code mask} and whose neighbors at all {@code offsets} are set in
+	 * {@code mask}. {@code mask} is accessed outside of {@code volume}, extend
+	 * it with {@code true} to allow seeds at the border.
+	 *
+	 * @param seedsMask
+	 *            if not {@code null}, filled with {@code 1} for seeds and
+	 *            {@code 0} otherwise in flat order of {@code block}
+	 * @return flat indices into {@code volume} of all seeds in
+	 *         {@code block}, in ascending order
+	 */
+	public static < B extends BooleanType< B > > long[] fromMask(
+			final RandomAccessible< B > mask,
+			final Interval volume,
+			final Interval block,
+			final long[][] offsets,
+			final byte[] seedsMask )
+	{
+		final int nDim = block.numDimensions();
+		final long[] dimensions = Intervals.dimensionsAsLongArray( block );
+		final long[] volumeDimensions = Intervals.dimensionsAsLongArray( volume );
+		final long[] volumeMin = Intervals.minAsLongArray( volume );
+		final long size = Intervals.numElements( block );
+		final TLongArrayList seeds = new TLongArrayList();
+
+		final RandomAccess< B > maskAccess = mask.randomAccess();
+		final long[] position = Intervals.minAsLongArray( block );
+		final long[] neighbor = new long[ nDim ];
+		for ( int index = 0; index < size; ++index )
+		{
+			maskAccess.setPosition( position );
+			boolean isSeed = maskAccess.get().get();
+			for ( int k = 0; k < offsets.length && isSeed; ++k )
+			{
+				for ( int d = 0; d < nDim; ++d )
+					neighbor[ d ] = position[ d ] + offsets[ k ][ d ];
+				maskAccess.setPosition( neighbor );
+				isSeed = maskAccess.get().get();
+			}
+
+			if ( isSeed )
+				seeds.add( IntervalIndexer.positionWithOffsetToIndex( position, volumeDimensions, volumeMin ) );
+			if ( seedsMask != null )
+				seedsMask[ index ] = isSeed ? ( byte ) 1 : ( byte ) 0;
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				if ( ++position[ d ] <= block.max( d ) )
+					break;
+				position[ d ] = block.min( d );
+			}
+		}
+
+		return seeds.toArray();
+	}
+
+	/**
+	 * Concatenate seeds of blocks, e.g. from {@link #fromMask}, into a single
+	 * array in ascending order. The order does not depend on the block size.
+	 */
+	public static long[] concatenate( final List< long[] > seeds )
+	{
+		int numSeeds = 0;
+		for ( final long[] s : seeds )
+			numSeeds += s.length;
+		final long[] concatenated = new long[ numSeeds ];
+		int offset = 0;
+		for ( final long[] s : seeds )
+		{
+			System.arraycopy( s, 0, concatenated, offset, s.length );
+			offset += s.length;
+		}
+		Arrays.sort( concatenated );
+		return concatenated;
+	}
+
+	/**
+	 * Positions of {@code seeds} in {@code volume}, packed with the
+	 * {@code n} coordinates of each seed next to each other, i.e. in flat
+	 * order of an {@code n x seeds.length} image.
+	 */
+	public static long[] positions( final long[] seeds, final Interval volume )
+	{
+		final int nDim = volume.numDimensions();
+		final long[] volumeDimensions = Intervals.dimensionsAsLongArray( volume );
+		final long[] volumeMin = Intervals.minAsLongArray( volume );
+		final long[] positions = new long[ nDim * seeds.length ];
+		final long[] position = new long[ nDim ];
+		for ( int index = 0; index < seeds.length; ++index )
+		{
+			IntervalIndexer.indexToPositionWithOffset( seeds[ index ], volumeDimensions, volumeMin, position );
+			System.arraycopy( position, 0, positions, index * nDim, nDim );
+		}
+		return positions;
+	}
+
+}
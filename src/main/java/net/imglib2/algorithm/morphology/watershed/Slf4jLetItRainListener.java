@@ -0,0 +1,76 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.lang.invoke.MethodHandles;
+import java.util.EnumMap;
+import java.util.LongSummaryStatistics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs one line per {@link LetItRainListener.Phase} with wall time, voxels
+ * and a summary of task durations.
+ */
+public class Slf4jLetItRainListener implements LetItRainListener
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	private final Logger logger;
+
+	private final EnumMap< Phase, LongSummaryStatistics > taskNanos = new EnumMap<>( Phase.class );
+
+	public Slf4jLetItRainListener()
+	{
+		this( LOG );
+	}
+
+	public Slf4jLetItRainListener( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	@Override
+	public synchronized void phaseStarted( final Phase phase )
+	{
+		taskNanos.put( phase, new LongSummaryStatistics() );
+	}
+
+	@Override
+	public synchronized void phaseFinished( final Phase phase, final long nanos, final long voxels )
+	{
+		final LongSummaryStatistics tasks = taskNanos.remove( phase );
+		if ( tasks == null || tasks.getCount() == 0 )
+			logger.info( "{}: {}ms for {} voxels", phase, nanos / 1e6, voxels );
+		else
+			logger.info(
+					"{}: {}ms for {} voxels in {} tasks (min={}ms max={}ms mean={}ms)",
+					phase,
+					nanos / 1e6,
+					voxels,
+					tasks.getCount(),
+					tasks.getMin() / 1e6,
+					tasks.getMax() / 1e6,
+					tasks.getAverage() / 1e6 );
+	}
+
+	@Override
+	public synchronized void taskFinished( final Phase phase, final int task, final long nanos, final long voxels )
+	{
+		logger.debug( "{} task {}: {}ms for {} voxels", phase, task, nanos / 1e6, voxels );
+		taskNanos.computeIfAbsent( phase, p -> new LongSummaryStatistics() ).accept( nanos );
+	}
+
+	@Override
+	public void plateauCorners( final long count )
+	{
+		logger.info( "Found {} plateau corners", count );
+	}
+
+	@Override
+	public void roots( final long roots, final long background )
+	{
+		logger.info( "Found {} roots and {} background voxels", roots, background );
+	}
+
+}
@@ -0,0 +1,374 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Copy one-sided affinities into symmetric affinities, multi-threaded and
+ * block by block. For {@code n} channels of one-sided affinities with
+ * {@code offsets}, the symmetric affinities have {@code 2n} channels in the
+ * order {@code steps + invertedSteps.reversed()} that
+ * {@link AffinityWatershed2#letItRain} expects: channel {@code c < n} is a copy
+ * of channel {@code c} and channel {@code 2n - 1 - c} holds the affinity at
+ * {@code p - offsets[ c ]} for each voxel {@code p}, or {@code NaN} where
+ * {@code p - offsets[ c ]} is outside the affinities.
+ *
+ * Work is partitioned by the cells of the symmetric affinities if they are an
+ * {@link AbstractCellImg} and by slabs of a single channel otherwise. Rows are
+ * copied with {@link System#arraycopy} if both images store {@code float[]}
+ * and boundary voxels are filled with {@code NaN} directly, without extended
+ * views.
+ */
+public class SymmetricAffinities
+{
+
+	/**
+	 * Create symmetric affinities with {@code factory} and fill them from
+	 * {@code affinities}. The result has the min of {@code affinities}. Pass a
+	 * {@link net.imglib2.img.cell.CellImgFactory} to choose the block size.
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< FloatType > copy(
+			final RandomAccessibleInterval< T > affinities,
+			final ImgFactory< FloatType > factory,
+			final long[][] offsets,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( affinities );
+		dimensions[ dimensions.length - 1 ] *= 2;
+		final Img< FloatType > symmetric = factory.create( dimensions );
+		copy( affinities, symmetric, offsets, es, nTasks );
+		return Views.isZeroMin( affinities ) ? symmetric : Views.translate( symmetric, Intervals.minAsLongArray( affinities ) );
+	}
+
+	/**
+	 * Fill {@code symmetric}, which has the spatial dimensions of
+	 * {@code affinities} and twice as many channels, from {@code affinities}.
+	 *
+	 * @param offsets
+	 *            offset of each channel of {@code affinities}, not restricted
+	 *            to unit steps
+	 * @param nTasks
+	 *            number of slabs per channel if {@code symmetric} is not an
+	 *            {@link AbstractCellImg}
+	 */
+	public static < T extends RealType< T >, U extends RealType< U > > void copy(
+			final RandomAccessibleInterval< T > affinities,
+			final RandomAccessibleInterval< U > symmetric,
+			final long[][] offsets,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = affinities.numDimensions() - 1;
+		final long[] dimensions = Intervals.dimensionsAsLongArray( affinities );
+		final int nChannels = ( int ) dimensions[ nDim ];
+
+		if ( offsets.length != nChannels )
+			throw new IllegalArgumentException( "Expected " + nChannels + " offsets but got " + offsets.length );
+		for ( final long[] offset : offsets )
+			if ( offset.length != nDim )
+				throw new IllegalArgumentException( "Expected offsets with " + nDim + " dimensions but got " + Arrays.toString( offset ) );
+		if ( symmetric.numDimensions() != nDim + 1 || symmetric.dimension( nDim ) != 2 * nChannels )
+			throw new IllegalArgumentException( "Expected symmetric affinities with " + 2 * nChannels + " channels in the last of " + ( nDim + 1 ) + " dimensions but got " + Arrays.toString( Intervals.dimensionsAsLongArray( symmetric ) ) );
+		for ( int d = 0; d < nDim; ++d )
+			if ( symmetric.dimension( d ) != dimensions[ d ] )
+				throw new IllegalArgumentException( "Spatial dimensions of affinities and symmetric affinities differ: " + Arrays.toString( dimensions ) + " " + Arrays.toString( Intervals.dimensionsAsLongArray( symmetric ) ) );
+
+		final Block< T, U > block = new Block<>(
+				Views.zeroMin( affinities ),
+				Views.zeroMin( symmetric ),
+				floatStorage( affinities ),
+				dimensions,
+				offsets );
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		if ( symmetric instanceof AbstractCellImg< ?, ?, ?, ? > )
+		{
+			final AbstractCellImg< ?, ?, ? extends Cell< ? >, ? > cellImg = ( AbstractCellImg< ?, ?, ? extends Cell< ? >, ? > ) symmetric;
+			final boolean isFloat = Util.getTypeFromInterval( symmetric ) instanceof FloatType;
+			final CellGrid grid = cellImg.getCellGrid();
+			final RandomAccess< ? extends Cell< ? > > cells = cellImg.getCells().randomAccess();
+			final long numCells = Intervals.numElements( grid.getGridDimensions() );
+			final long[] gridPosition = new long[ nDim + 1 ];
+			for ( long index = 0; index < numCells; ++index )
+			{
+				grid.getCellGridPositionFlat( index, gridPosition );
+				cells.setPosition( gridPosition );
+				final Cell< ? > cell = cells.get();
+				final long[] min = new long[ nDim + 1 ];
+				final long[] max = new long[ nDim + 1 ];
+				cell.min( min );
+				for ( int d = 0; d <= nDim; ++d )
+					max[ d ] = min[ d ] + cell.dimension( d ) - 1;
+				final float[] data = isFloat && cell.getData() instanceof FloatArray ? ( ( FloatArray ) cell.getData() ).getCurrentStorageArray() : null;
+				tasks.add( () -> {
+					block.fill( min, max, data, min, max );
+					return null;
+				} );
+			}
+		}
+		else
+		{
+			final float[] data = floatStorage( symmetric );
+			final long[] storageMax = Intervals.maxAsLongArray( Views.zeroMin( symmetric ) );
+			final long[] storageMin = new long[ nDim + 1 ];
+			final int slabDimension = Math.max( nDim - 1, 0 );
+			final long slabDimensionSize = nDim == 0 ? 1 : dimensions[ slabDimension ];
+			final long nSlabs = Math.max( Math.min( slabDimensionSize, nTasks ), 1 );
+			for ( long channel = 0; channel < 2 * nChannels; ++channel )
+				for ( long slab = 0; slab < nSlabs; ++slab )
+				{
+					final long[] min = new long[ nDim + 1 ];
+					final long[] max = storageMax.clone();
+					min[ nDim ] = max[ nDim ] = channel;
+					if ( nDim > 0 )
+					{
+						min[ slabDimension ] = slab * slabDimensionSize / nSlabs;
+						max[ slabDimension ] = ( slab + 1 ) * slabDimensionSize / nSlabs - 1;
+					}
+					tasks.add( () -> {
+						block.fill( min, max, data, storageMin, storageMax );
+						return null;
+					} );
+				}
+		}
+
+		AffinityWatershed2.invokeAllAndGet( es, tasks );
+	}
+
+	/**
+	 * Storage of {@code img} if it is an {@link ArrayImg} of {@link FloatType},
+	 * {@code null} otherwise.
+	 */
+	private static float[] floatStorage( final RandomAccessibleInterval< ? > img )
+	{
+		if ( img instanceof ArrayImg< ?, ? > && Util.getTypeFromInterval( img ) instanceof FloatType )
+		{
+			final Object access = ( ( ArrayImg< ?, ? > ) img ).update( null );
+			if ( access instanceof FloatArray )
+				return ( ( FloatArray ) access ).getCurrentStorageArray();
+		}
+		return null;
+	}
+
+	private static class Block< T extends RealType< T >, U extends RealType< U > >
+	{
+
+		private final RandomAccessibleInterval< T > affinities;
+
+		private final RandomAccessibleInterval< U > symmetric;
+
+		private final float[] source;
+
+		private final long[] dimensions;
+
+		private final long[][] offsets;
+
+		private final int nDim;
+
+		private final int nChannels;
+
+		private Block(
+				final RandomAccessibleInterval< T > affinities,
+				final RandomAccessibleInterval< U > symmetric,
+				final float[] source,
+				final long[] dimensions,
+				final long[][] offsets )
+		{
+			this.affinities = affinities;
+			this.symmetric = symmetric;
+			this.source = source;
+			this.dimensions = dimensions;
+			this.offsets = offsets;
+			this.nDim = dimensions.length - 1;
+			this.nChannels = ( int ) dimensions[ nDim ];
+		}
+
+		/**
+		 * Fill the block {@code [min, max]} of the symmetric affinities.
+		 * {@code data} is the {@code float[]} that stores the box
+		 * {@code [storageMin, storageMax]} with channels in the last dimension,
+		 * or {@code null}.
+		 */
+		private void fill( final long[] min, final long[] max, final float[] data, final long[] storageMin, final long[] storageMax )
+		{
+			final long[] spatialMin = Arrays.copyOf( min, nDim );
+			final long[] spatialMax = Arrays.copyOf( max, nDim );
+			final long[] validMin = new long[ nDim ];
+			final long[] validMax = new long[ nDim ];
+			final long[] slabMin = new long[ nDim ];
+			final long[] slabMax = new long[ nDim ];
+
+			for ( long channel = min[ nDim ]; channel <= max[ nDim ]; ++channel )
+			{
+				final int sourceChannel = channel < nChannels ? ( int ) channel : 2 * nChannels - 1 - ( int ) channel;
+				final long[] shift = channel < nChannels ? new long[ nDim ] : offsets[ sourceChannel ];
+
+				// p - shift inside the affinities for p in [validMin, validMax]
+				boolean isEmpty = false;
+				for ( int d = 0; d < nDim; ++d )
+				{
+					validMin[ d ] = Math.max( spatialMin[ d ], shift[ d ] );
+					validMax[ d ] = Math.min( spatialMax[ d ], dimensions[ d ] - 1 + shift[ d ] );
+					isEmpty |= validMin[ d ] > validMax[ d ];
+				}
+
+				if ( isEmpty )
+				{
+					fillNaN( channel, spatialMin, spatialMax, data, storageMin, storageMax );
+					continue;
+				}
+
+				// disjoint boundary slabs: valid range before d, full range after d
+				for ( int d = 0; d < nDim; ++d )
+				{
+					System.arraycopy( validMin, 0, slabMin, 0, d );
+					System.arraycopy( validMax, 0, slabMax, 0, d );
+					System.arraycopy( spatialMin, d, slabMin, d, nDim - d );
+					System.arraycopy( spatialMax, d, slabMax, d, nDim - d );
+					if ( spatialMin[ d ] < validMin[ d ] )
+					{
+						slabMax[ d ] = validMin[ d ] - 1;
+						fillNaN( channel, slabMin, slabMax, data, storageMin, storageMax );
+					}
+					if ( validMax[ d ] < spatialMax[ d ] )
+					{
+						slabMin[ d ] = validMax[ d ] + 1;
+						slabMax[ d ] = spatialMax[ d ];
+						fillNaN( channel, slabMin, slabMax, data, storageMin, storageMax );
+					}
+				}
+
+				copy( channel, sourceChannel, shift, validMin, validMax, data, storageMin, storageMax );
+			}
+		}
+
+		private void fillNaN( final long channel, final long[] min, final long[] max, final float[] data, final long[] storageMin, final long[] storageMax )
+		{
+			if ( data != null )
+			{
+				final int length = ( int ) ( nDim == 0 ? 1 : max[ 0 ] - min[ 0 ] + 1 );
+				forEachRow( min, max, position -> {
+					final int index = ( int ) index( position, channel, storageMin, storageMax );
+					Arrays.fill( data, index, index + length, Float.NaN );
+				} );
+			}
+			else
+				for ( final U u : Views.interval( Views.hyperSlice( symmetric, nDim, channel ), min, max ) )
+					u.setReal( Double.NaN );
+		}
+
+		private void copy(
+				final long channel,
+				final int sourceChannel,
+				final long[] shift,
+				final long[] min,
+				final long[] max,
+				final float[] data,
+				final long[] storageMin,
+				final long[] storageMax )
+		{
+			final int length = ( int ) ( nDim == 0 ? 1 : max[ 0 ] - min[ 0 ] + 1 );
+			final long[] sourceMin = new long[ nDim + 1 ];
+			final long[] sourceMax = new long[ nDim + 1 ];
+			for ( int d = 0; d <= nDim; ++d )
+				sourceMax[ d ] = dimensions[ d ] - 1;
+			final long[] sourcePosition = new long[ nDim ];
+
+			if ( data != null && source != null )
+				forEachRow( min, max, position -> {
+					for ( int d = 0; d < nDim; ++d )
+						sourcePosition[ d ] = position[ d ] - shift[ d ];
+					final int sourceIndex = ( int ) index( sourcePosition, sourceChannel, sourceMin, sourceMax );
+					System.arraycopy( source, sourceIndex, data, ( int ) index( position, channel, storageMin, storageMax ), length );
+				} );
+			else if ( data != null )
+			{
+				final RandomAccess< T > access = affinities.randomAccess();
+				access.setPosition( sourceChannel, nDim );
+				forEachRow( min, max, position -> {
+					for ( int d = 0; d < nDim; ++d )
+						access.setPosition( position[ d ] - shift[ d ], d );
+					final int index = ( int ) index( position, channel, storageMin, storageMax );
+					for ( int i = 0; i < length; ++i )
+					{
+						data[ index + i ] = access.get().getRealFloat();
+						access.fwd( 0 );
+					}
+				} );
+			}
+			else
+			{
+				final Cursor< T > sourceCursor = Views.flatIterable( Views.interval(
+						Views.translate( Views.hyperSlice( affinities, nDim, sourceChannel ), shift ),
+						min,
+						max ) ).cursor();
+				final Cursor< U > targetCursor = Views.flatIterable( Views.interval( Views.hyperSlice( symmetric, nDim, channel ), min, max ) ).cursor();
+				while ( targetCursor.hasNext() )
+					targetCursor.next().setReal( sourceCursor.next().getRealDouble() );
+			}
+		}
+
+	}
+
+	/**
+	 * Call {@code row} with the position of the first voxel of each row along
+	 * dimension {@code 0} in {@code [min, max]}. The position is reused.
+	 */
+	private static void forEachRow( final long[] min, final long[] max, final Consumer< long[] > row )
+	{
+		final int nDim = min.length;
+		final long[] position = min.clone();
+		while ( true )
+		{
+			row.accept( position );
+			int d = 1;
+			for ( ; d < nDim; ++d )
+			{
+				if ( position[ d ] < max[ d ] )
+				{
+					++position[ d ];
+					break;
+				}
+				position[ d ] = min[ d ];
+			}
+			if ( d >= nDim )
+				return;
+		}
+	}
+
+	/**
+	 * Flat index of spatial {@code position} in {@code channel} within the box
+	 * {@code [storageMin, storageMax]} with channels in the last dimension.
+	 */
+	private static long index( final long[] position, final long channel, final long[] storageMin, final long[] storageMax )
+	{
+		final int nDim = position.length;
+		long index = channel - storageMin[ nDim ];
+		for ( int d = nDim - 1; d >= 0; --d )
+			index = index * ( storageMax[ d ] - storageMin[ d ] + 1 ) + position[ d ] - storageMin[ d ];
+		return index;
+	}
+
+}
@@ -0,0 +1,281 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Flood fill phase of {@link AffinityWatershed2#letItRain} on the executor of
+ * the caller. Roots are processed in batches, and floods of large basins hand
+ * parts of their queue to the executor as new tasks when fewer than
+ * {@code nTasks} tasks are running and none are waiting. Basin sizes are
+ * extremely skewed, so equal count chunks of roots leave most threads idle.
+ * Tasks never wait for each other, so the executor may have any number of
+ * threads.
+ *
+ * Voxels are labeled when they are enqueued. A voxel with several parents
+ * (tied edges that are left after plateau removal) follows only its lowest
+ * direction bit, so every voxel has a single parent, is claimed by exactly one
+ * flood and is counted once. The roots are the lower index of each pair of
+ * voxels whose lowest direction bits point at each other, which makes them
+ * one per basin. Labels and counts therefore do not depend on {@code nTasks}
+ * or on thread scheduling. A plateau without exit may be split into several
+ * basins, one per such pair.
+ */
+class WorkStealingFloodFill
+{
+
+	/**
+	 * Read and write access to flat labels. Instances are used by a single
+	 * task at a time.
+	 */
+	interface LabelAccess
+	{
+		long get( long index );
+
+		void set( long index, long value );
+	}
+
+	private static final int MAX_ROOT_BATCH_SIZE = 1 << 10;
+
+	private static final int MIN_SPLIT_SIZE = 1 << 12;
+
+	private static final int SPLIT_CHECK_INTERVAL = 1 << 10;
+
+	private final TLongArrayList roots;
+
+	private final Supplier< LabelAccess > access;
+
+	private final long size;
+
+	private final long[] steps;
+
+	private final long[] inverseBitmask;
+
+	private final long visitedMask;
+
+	private final long directionMask;
+
+	private final ExecutorService es;
+
+	private final int nTasks;
+
+	private final AtomicLongArray counts;
+
+	private final int rootBatchSize;
+
+	private final Map< Thread, long[] > workerLoad = new ConcurrentHashMap<>();
+
+	// submitted and not finished, plus one while tasks are submitted
+	private final AtomicInteger pending = new AtomicInteger( 1 );
+
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	private final CompletableFuture< Void > done = new CompletableFuture<>();
+
+	private WorkStealingFloodFill(
+			final TLongArrayList roots,
+			final Supplier< LabelAccess > access,
+			final long size,
+			final long[] steps,
+			final long[] inverseBitmask,
+			final long visitedMask,
+			final ExecutorService es,
+			final int nTasks )
+	{
+		this.roots = roots;
+		this.access = access;
+		this.size = size;
+		this.steps = steps;
+		this.inverseBitmask = inverseBitmask;
+		this.visitedMask = visitedMask;
+		this.directionMask = directionMask( inverseBitmask );
+		this.es = es;
+		this.nTasks = nTasks;
+		this.counts = new AtomicLongArray( roots.size() + 1 );
+		this.rootBatchSize = Math.max( Math.min( roots.size() / ( 8 * nTasks ), MAX_ROOT_BATCH_SIZE ), 1 );
+	}
+
+	/**
+	 * Flood fill basins from {@code roots} and label voxels of basin {@code i}
+	 * with {@code ( i + 1 ) | visitedMask}.
+	 *
+	 * @param listener
+	 *            receives the load of each thread as
+	 *            {@link LetItRainListener#taskFinished}
+	 * @return basin sizes, index {@code 0} is left for background
+	 */
+	static long[] fill(
+			final TLongArrayList roots,
+			final Supplier< LabelAccess > access,
+			final long size,
+			final long[] steps,
+			final long[] inverseBitmask,
+			final long visitedMask,
+			final ExecutorService es,
+			final int nTasks,
+			final LetItRainListener listener ) throws InterruptedException, ExecutionException
+	{
+		final WorkStealingFloodFill fill = new WorkStealingFloodFill( roots, access, size, steps, inverseBitmask, visitedMask, es, Math.max( nTasks, 1 ) );
+		if ( nTasks <= 1 )
+			fill.fillRoots( 0, roots.size() );
+		else
+		{
+			for ( int from = 0; from < roots.size(); from += fill.rootBatchSize )
+			{
+				final int batchFrom = from;
+				final int batchTo = Math.min( from + fill.rootBatchSize, roots.size() );
+				fill.submit( () -> fill.fillRoots( batchFrom, batchTo ) );
+			}
+			fill.finish();
+			fill.done.get();
+		}
+		fill.reportLoad( listener );
+
+		final long[] counts = new long[ fill.counts.length() ];
+		for ( int i = 0; i < counts.length; ++i )
+			counts[ i ] = fill.counts.get( i );
+		return counts;
+	}
+
+	/**
+	 * @return all direction bits of {@code bitmask}
+	 */
+	static long directionMask( final long[] bitmask )
+	{
+		long mask = 0;
+		for ( final long bit : bitmask )
+			mask |= bit;
+		return mask;
+	}
+
+	private void submit( final Runnable task )
+	{
+		pending.incrementAndGet();
+		waiting.incrementAndGet();
+		try
+		{
+			es.execute( () -> {
+				waiting.decrementAndGet();
+				running.incrementAndGet();
+				try
+				{
+					task.run();
+				}
+				catch ( final Throwable e )
+				{
+					done.completeExceptionally( e );
+				}
+				finally
+				{
+					running.decrementAndGet();
+					finish();
+				}
+			} );
+		}
+		catch ( final RuntimeException e )
+		{
+			waiting.decrementAndGet();
+			finish();
+			throw e;
+		}
+	}
+
+	private void finish()
+	{
+		if ( pending.decrementAndGet() == 0 )
+			done.complete( null );
+	}
+
+	private void fillRoots( final int from, final int to )
+	{
+		final LabelAccess labels = access.get();
+		for ( int i = from; i < to; ++i )
+		{
+			final long root = roots.get( i );
+			final long regionLabel = ( i + 1 ) | visitedMask;
+			labels.set( root, regionLabel );
+			final TLongArrayList queue = new TLongArrayList();
+			queue.add( root );
+			flood( i + 1, regionLabel, queue, labels );
+		}
+	}
+
+	/**
+	 * Flood from the voxels in {@code queue} and add the number of voxels
+	 * taken from the queue to the count of basin {@code basin}.
+	 */
+	private void flood( final int basin, final long regionLabel, final TLongArrayList queue, final LabelAccess labels )
+	{
+		final long t0 = System.nanoTime();
+		final int nEdges = steps.length;
+		long count = 0;
+
+		for ( int head = 0; head < queue.size(); ++head )
+		{
+			if ( head > 0 && head % SPLIT_CHECK_INTERVAL == 0 )
+			{
+				// drop processed voxels once they make up half of the queue
+				if ( 2 * head >= queue.size() )
+				{
+					count += head;
+					queue.remove( 0, head );
+					head = 0;
+				}
+				final int remaining = queue.size() - head;
+				if ( remaining >= 2 * MIN_SPLIT_SIZE && waiting.get() == 0 && running.get() < nTasks )
+				{
+					final int mid = head + remaining / 2;
+					final TLongArrayList split = new TLongArrayList( queue.size() - mid );
+					for ( int k = mid; k < queue.size(); ++k )
+						split.add( queue.get( k ) );
+					queue.remove( mid, queue.size() - mid );
+					submit( () -> flood( basin, regionLabel, split, access.get() ) );
+				}
+			}
+
+			final long index = queue.get( head );
+			for ( int d = 0; d < nEdges; ++d )
+			{
+				final long otherIndex = index + steps[ d ];
+				if ( otherIndex >= 0 && otherIndex < size )
+				{
+					final long otherLabel = labels.get( otherIndex );
+					if ( ( otherLabel & visitedMask ) == 0 && Long.lowestOneBit( otherLabel & directionMask ) == inverseBitmask[ d ] )
+					{
+						labels.set( otherIndex, regionLabel );
+						queue.add( otherIndex );
+					}
+				}
+			}
+		}
+		count += queue.size();
+
+		counts.addAndGet( basin, count );
+		addLoad( System.nanoTime() - t0, count );
+	}
+
+	private void addLoad( final long nanos, final long voxels )
+	{
+		final long[] load = workerLoad.computeIfAbsent( Thread.currentThread(), t -> new long[ 2 ] );
+		load[ 0 ] += nanos;
+		load[ 1 ] += voxels;
+	}
+
+	private void reportLoad( final LetItRainListener listener )
+	{
+		int worker = 0;
+		for ( final long[] load : workerLoad.values() )
+			listener.taskFinished( LetItRainListener.Phase.FLOOD_FILL, worker++, load[ 0 ], load[ 1 ] );
+	}
+
+}
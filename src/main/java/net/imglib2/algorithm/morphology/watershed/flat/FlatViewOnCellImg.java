@@ -0,0 +1,307 @@
+package net.imglib2.algorithm.morphology.watershed.flat;
+
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.Sampler;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.AbstractCellImg.CellImgSampler;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+public class FlatViewOnCellImg< T extends NativeType< T > > extends AbstractFlatView< T >
+{
+
+	private final AbstractCellImg< T, ?, ?, ? > source;
+
+	public FlatViewOnCellImg( final AbstractCellImg< T, ?, ?, ? > source )
+	{
+		super( source );
+		this.source = source;
+	}
+
+	@Override
+	public CellImgFlatAccess< T > randomAccess()
+	{
+		return new CellImgFlatAccess<>( source );
+	}
+
+	/**
+	 * Keeps the position in the image and the current cell. Moving by the
+	 * flat stride of a single dimension updates the position without
+	 * decomposing the flat index, and the cell is only looked up again when
+	 * {@link #get()} is called for a position outside of it.
+	 */
+	public static class CellImgFlatAccess< T extends NativeType< T > > implements RandomAccess< T >, CellImgSampler< Cell< ? > >
+	{
+
+		private final AbstractCellImg< T, ?, ?, ? > source;
+
+		private final T type;
+
+		private final RandomAccess< ? extends Cell< ? > > cellAccess;
+
+		private final int n;
+
+		private final long[] dimensions;
+
+		private final long[] strides;
+
+		private final int[] cellSize;
+
+		private final long[] position;
+
+		private final long[] gridPosition;
+
+		private final long[] cellMin;
+
+		private final int[] cellDimensions;
+
+		private final int[] cellStrides;
+
+		private Cell< ? > cell;
+
+		private long index;
+
+		public CellImgFlatAccess( final AbstractCellImg< T, ?, ?, ? > source )
+		{
+			this( source, 0 );
+		}
+
+		public CellImgFlatAccess( final AbstractCellImg< T, ?, ?, ? > source, final long index )
+		{
+			super();
+			final CellGrid grid = source.getCellGrid();
+			this.source = source;
+			this.type = source.createLinkedType();
+			this.cellAccess = source.getCells().randomAccess();
+			this.n = source.numDimensions();
+			this.dimensions = grid.getImgDimensions();
+			this.strides = new long[ n ];
+			this.cellSize = new int[ n ];
+			grid.cellDimensions( cellSize );
+			this.position = new long[ n ];
+			this.gridPosition = new long[ n ];
+			this.cellMin = new long[ n ];
+			this.cellDimensions = new int[ n ];
+			this.cellStrides = new int[ n ];
+
+			strides[ 0 ] = 1;
+			for ( int d = 1; d < n; ++d )
+				strides[ d ] = strides[ d - 1 ] * dimensions[ d - 1 ];
+
+			this.index = index;
+			IntervalIndexer.indexToPosition( index, dimensions, position );
+			this.cell = null;
+		}
+
+		public CellImgFlatAccess( final CellImgFlatAccess< T > access )
+		{
+			this( access.source, access.index );
+		}
+
+		@Override
+		public void localize( final int[] position )
+		{
+			position[ 0 ] = ( int ) this.index;
+		}
+
+		@Override
+		public void localize( final long[] position )
+		{
+			position[ 0 ] = this.index;
+		}
+
+		@Override
+		public int getIntPosition( final int d )
+		{
+			return ( int ) this.index;
+		}
+
+		@Override
+		public long getLongPosition( final int d )
+		{
+			return this.index;
+		}
+
+		@Override
+		public void localize( final float[] position )
+		{
+			position[ 0 ] = this.index;
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			position[ 0 ] = this.index;
+		}
+
+		@Override
+		public float getFloatPosition( final int d )
+		{
+			return this.index;
+		}
+
+		@Override
+		public double getDoublePosition( final int d )
+		{
+			return this.index;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return 1;
+		}
+
+		@Override
+		public void fwd( final int d )
+		{
+			setPosition( index + 1, d );
+		}
+
+		@Override
+		public void bck( final int d )
+		{
+			setPosition( index - 1, d );
+		}
+
+		@Override
+		public void move( final int distance, final int d )
+		{
+			move( ( long ) distance, d );
+		}
+
+		@Override
+		public void move( final long distance, final int d )
+		{
+			setPosition( index + distance, d );
+		}
+
+		@Override
+		public void move( final Localizable localizable )
+		{
+			move( localizable.getLongPosition( 0 ), 0 );
+		}
+
+		@Override
+		public void move( final int[] distance )
+		{
+			move( ( long ) distance[ 0 ], 0 );
+		}
+
+		@Override
+		public void move( final long[] distance )
+		{
+			move( distance[ 0 ], 0 );
+		}
+
+		@Override
+		public void setPosition( final Localizable localizable )
+		{
+			setPosition( localizable.getLongPosition( 0 ), 0 );
+		}
+
+		@Override
+		public void setPosition( final int[] position )
+		{
+			setPosition( position[ 0 ], 0 );
+		}
+
+		@Override
+		public void setPosition( final long[] position )
+		{
+			setPosition( position[ 0 ], 0 );
+		}
+
+		@Override
+		public void setPosition( final int position, final int d )
+		{
+			setPosition( ( long ) position, d );
+		}
+
+		@Override
+		public void setPosition( final long position, final int d )
+		{
+			final long distance = position - this.index;
+			if ( distance == 0 )
+				return;
+
+			this.index = position;
+
+			for ( int k = 0; k < n; ++k )
+				if ( distance == strides[ k ] && this.position[ k ] + 1 < dimensions[ k ] )
+				{
+					++this.position[ k ];
+					return;
+				}
+				else if ( distance == -strides[ k ] && this.position[ k ] > 0 )
+				{
+					--this.position[ k ];
+					return;
+				}
+
+			IntervalIndexer.indexToPosition( position, dimensions, this.position );
+		}
+
+		@Override
+		public T get()
+		{
+			if ( !isInCell() )
+				updateCell();
+			int indexInCell = 0;
+			for ( int d = 0; d < n; ++d )
+				indexInCell += ( int ) ( position[ d ] - cellMin[ d ] ) * cellStrides[ d ];
+			type.updateIndex( indexInCell );
+			return type;
+		}
+
+		private boolean isInCell()
+		{
+			if ( cell == null )
+				return false;
+			for ( int d = 0; d < n; ++d )
+			{
+				final long offset = position[ d ] - cellMin[ d ];
+				if ( offset < 0 || offset >= cellDimensions[ d ] )
+					return false;
+			}
+			return true;
+		}
+
+		private void updateCell()
+		{
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = position[ d ] / cellSize[ d ];
+			cellAccess.setPosition( gridPosition );
+			cell = cellAccess.get();
+			cell.min( cellMin );
+			cell.dimensions( cellDimensions );
+			cellStrides[ 0 ] = 1;
+			for ( int d = 1; d < n; ++d )
+				cellStrides[ d ] = cellStrides[ d - 1 ] * cellDimensions[ d - 1 ];
+			type.updateContainer( this );
+		}
+
+		@Override
+		public Cell< ? > getCell()
+		{
+			return cell;
+		}
+
+		@Override
+		public Sampler< T > copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public CellImgFlatAccess< T > copyRandomAccess()
+		{
+			return new CellImgFlatAccess<>( this );
+		}
+
+	}
+
+}
@@ -24,6 +24,12 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		return new PlanarImgFlatAccess<>( source );
 	}
 
+	/**
+	 * Splits the flat {@code long} position into the index of the slice and
+	 * the {@code int} index within the slice, so that images with more than
+	 * {@link Integer#MAX_VALUE} voxels can be accessed as long as each slice
+	 * fits into an array.
+	 */
 	public static class PlanarImgFlatAccess< T extends NativeType< T > > implements RandomAccess< T >, PlanarContainerSampler
 	{
 
@@ -33,8 +39,6 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 
 		private final int lastIndex;
 
-		private final int lastSliceIndex;
-
 		private int index;
 
 		private int sliceIndex;
@@ -48,10 +52,10 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 
 			this.sliceSize = ( int ) ( ( source.numDimensions() > 1 ? source.dimension( 1 ) : 1 ) * source.dimension( 0 ) );
 			this.lastIndex = this.sliceSize - 1;
-			this.lastSliceIndex = source.numSlices() - 1;
 
 			this.index = 0;
 			this.sliceIndex = 0;
+			this.position = 0;
 
 			this.type.updateContainer( this );
 			this.type.updateIndex( this.index );
@@ -63,11 +67,11 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 			this.type = access.type.duplicateTypeOnSameNativeImg();
 
 			this.sliceSize = access.sliceSize;
-			this.lastIndex = access.sliceIndex;
-			this.lastSliceIndex = access.lastSliceIndex;
+			this.lastIndex = access.lastIndex;
 
 			this.index = access.index;
 			this.sliceIndex = access.sliceIndex;
+			this.position = access.position;
 
 			this.type.updateContainer( this );
 			this.type.updateIndex( this.index );
@@ -130,6 +134,7 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		@Override
 		public void fwd( final int d )
 		{
+			++this.position;
 			++this.index;
 			if ( index > this.lastIndex )
 			{
@@ -141,6 +146,7 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		@Override
 		public void bck( final int d )
 		{
+			--this.position;
 			--this.index;
 			if ( index < 0 )
 			{
@@ -158,7 +164,24 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		@Override
 		public void move( final long distance, final int d )
 		{
-			setPosition( position + distance, 0 );
+			final long index = this.index + distance;
+			if ( index >= 0 && index < sliceSize )
+			{
+				this.position += distance;
+				this.index = ( int ) index;
+			}
+			else if ( distance == sliceSize )
+			{
+				this.position += distance;
+				++this.sliceIndex;
+			}
+			else if ( distance == -sliceSize )
+			{
+				this.position += distance;
+				--this.sliceIndex;
+			}
+			else
+				setPosition( position + distance, d );
 		}
 
 		@Override
@@ -176,7 +199,7 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		@Override
 		public void move( final long[] distance )
 		{
-			move( ( int ) distance[ 0 ], 0 );
+			move( distance[ 0 ], 0 );
 		}
 
 		@Override
@@ -207,15 +230,15 @@ public class FlatViewOnPlanarImg< T extends NativeType< T > > extends AbstractFl
 		public void setPosition( final long position, final int d )
 		{
 			this.position = position;
-			this.sliceIndex = ( int ) ( position / sliceSize );
-			this.index = ( int ) ( position - sliceSize * this.sliceIndex );
+			this.sliceIndex = ( int ) Math.floorDiv( position, sliceSize );
+			this.index = ( int ) ( position - ( long ) sliceSize * this.sliceIndex );
 		}
 
 		@Override
 		public T get()
 		{
 			type.updateContainer( this );
-			type.updateIndex( this.sliceIndex );
+			type.updateIndex( this.index );
 			return type;
 		}
 
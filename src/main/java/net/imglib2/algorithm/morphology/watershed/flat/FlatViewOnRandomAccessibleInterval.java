@@ -5,6 +5,7 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Sampler;
 import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 
 public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T >
 {
@@ -23,12 +24,36 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		return new RandomAccessibleIntervalFlatAccess();
 	}
 
+	/**
+	 * Keeps the position in {@code source} along with the flat index. Moving
+	 * by one carries over into the higher dimensions, moving by the flat
+	 * stride of a single dimension updates that dimension only, and any other
+	 * move decomposes the flat index on the next {@link #get()}. Only
+	 * dimensions that changed since the last {@link #get()} are passed on to
+	 * the wrapped {@link RandomAccess}.
+	 */
 	public class RandomAccessibleIntervalFlatAccess implements RandomAccess< T >
 	{
 
 		private final RandomAccess< T > access;
 
-		private long position;
+		private final int n;
+
+		private final long[] min;
+
+		private final long[] dimensions;
+
+		private final long[] strides;
+
+		private final long[] position;
+
+		private final long[] accessPosition;
+
+		private long index;
+
+		private boolean isPositionValid;
+
+		private boolean isAccessValid;
 
 		public RandomAccessibleIntervalFlatAccess()
 		{
@@ -39,56 +64,73 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		{
 			super();
 			this.access = source.randomAccess();
-			this.position = position;
-			IntervalIndexer.indexToPosition( this.position, source, access );
+			this.n = source.numDimensions();
+			this.min = Intervals.minAsLongArray( source );
+			this.dimensions = Intervals.dimensionsAsLongArray( source );
+			this.strides = new long[ n ];
+			this.position = new long[ n ];
+			this.accessPosition = new long[ n ];
+
+			strides[ 0 ] = 1;
+			for ( int d = 1; d < n; ++d )
+				strides[ d ] = strides[ d - 1 ] * dimensions[ d - 1 ];
+
+			this.index = position;
+			IntervalIndexer.indexToPosition( this.index, dimensions, this.position );
+			for ( int d = 0; d < n; ++d )
+				accessPosition[ d ] = this.position[ d ];
+			access.setPosition( min );
+			access.move( this.position );
+			this.isPositionValid = true;
+			this.isAccessValid = true;
 		}
 
 		@Override
 		public void localize( final int[] position )
 		{
-			position[ 0 ] = ( int ) this.position;
+			position[ 0 ] = ( int ) this.index;
 		}
 
 		@Override
 		public void localize( final long[] position )
 		{
-			position[ 0 ] = this.position;
+			position[ 0 ] = this.index;
 		}
 
 		@Override
 		public int getIntPosition( final int d )
 		{
-			return ( int ) this.position;
+			return ( int ) this.index;
 		}
 
 		@Override
 		public long getLongPosition( final int d )
 		{
-			return this.position;
+			return this.index;
 		}
 
 		@Override
 		public void localize( final float[] position )
 		{
-			position[ 0 ] = this.position;
+			position[ 0 ] = this.index;
 		}
 
 		@Override
 		public void localize( final double[] position )
 		{
-			position[ 0 ] = this.position;
+			position[ 0 ] = this.index;
 		}
 
 		@Override
 		public float getFloatPosition( final int d )
 		{
-			return this.position;
+			return this.index;
 		}
 
 		@Override
 		public double getDoublePosition( final int d )
 		{
-			return this.position;
+			return this.index;
 		}
 
 		@Override
@@ -100,13 +142,35 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		@Override
 		public void fwd( final int d )
 		{
-			++position;
+			++index;
+			isAccessValid = false;
+			if ( isPositionValid )
+			{
+				int k = 0;
+				++position[ k ];
+				while ( position[ k ] == dimensions[ k ] && k < n - 1 )
+				{
+					position[ k ] = 0;
+					++position[ ++k ];
+				}
+			}
 		}
 
 		@Override
 		public void bck( final int d )
 		{
-			--position;
+			--index;
+			isAccessValid = false;
+			if ( isPositionValid )
+			{
+				int k = 0;
+				--position[ k ];
+				while ( position[ k ] < 0 && k < n - 1 )
+				{
+					position[ k ] = dimensions[ k ] - 1;
+					--position[ ++k ];
+				}
+			}
 		}
 
 		@Override
@@ -118,7 +182,27 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		@Override
 		public void move( final long distance, final int d )
 		{
-			position += distance;
+			if ( distance == 1 )
+				fwd( d );
+			else if ( distance == -1 )
+				bck( d );
+			else if ( distance != 0 )
+			{
+				index += distance;
+				isAccessValid = false;
+				if ( isPositionValid )
+					isPositionValid = moveAlongSingleDimension( distance );
+			}
+		}
+
+		private boolean moveAlongSingleDimension( final long distance )
+		{
+			for ( int k = 1; k < n; ++k )
+				if ( distance == strides[ k ] )
+					return ++position[ k ] < dimensions[ k ] || k == n - 1;
+				else if ( distance == -strides[ k ] )
+					return --position[ k ] >= 0 || k == n - 1;
+			return false;
 		}
 
 		@Override
@@ -136,7 +220,7 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		@Override
 		public void move( final long[] distance )
 		{
-			this.position += distance[ 0 ];
+			move( distance[ 0 ], 0 );
 		}
 
 		@Override
@@ -166,13 +250,27 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		@Override
 		public void setPosition( final long position, final int d )
 		{
-			this.position = position;
+			move( position - this.index, d );
 		}
 
 		@Override
 		public T get()
 		{
-			IntervalIndexer.indexToPosition( this.position, source, access );
+			if ( !isAccessValid )
+			{
+				if ( !isPositionValid )
+				{
+					IntervalIndexer.indexToPosition( index, dimensions, position );
+					isPositionValid = true;
+				}
+				for ( int d = 0; d < n; ++d )
+					if ( position[ d ] != accessPosition[ d ] )
+					{
+						access.setPosition( min[ d ] + position[ d ], d );
+						accessPosition[ d ] = position[ d ];
+					}
+				isAccessValid = true;
+			}
 			return access.get();
 		}
 
@@ -185,7 +283,7 @@ public class FlatViewOnRandomAccessibleInterval< T > extends AbstractFlatView< T
 		@Override
 		public RandomAccessibleIntervalFlatAccess copyRandomAccess()
 		{
-			return new RandomAccessibleIntervalFlatAccess( this.position );
+			return new RandomAccessibleIntervalFlatAccess( this.index );
 		}
 
 	}
@@ -2,6 +2,7 @@ package net.imglib2.algorithm.morphology.watershed.flat;
 
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.cell.AbstractCellImg;
 import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 
@@ -25,6 +26,10 @@ public class FlatViews
 				{
 					return new FlatViewOnPlanarImg<>( ( PlanarImg ) source );
 				}
+				else if ( AbstractCellImg.class.isInstance( source ) )
+				{
+					return new FlatViewOnCellImg<>( ( AbstractCellImg ) source );
+				}
 				else
 				{
 					return new FlatViewOnRandomAccessibleInterval<>( source );
@@ -0,0 +1,55 @@
+package net.imglib2.algorithm.morphology.watershed.mapped;
+
+import java.nio.FloatBuffer;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * {@link FloatAccess} on a {@link FloatBuffer}, e.g. a memory-mapped region of
+ * a file, see {@link MappedImgs#createFloats}.
+ */
+public class MappedFloatAccess implements FloatAccess, ArrayDataAccess< MappedFloatAccess >
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final FloatBuffer data;
+
+	public MappedFloatAccess( final FloatBuffer data )
+	{
+		super();
+		this.data = data;
+	}
+
+	@Override
+	public float getValue( final int index )
+	{
+		return data.get( index );
+	}
+
+	@Override
+	public void setValue( final int index, final float value )
+	{
+		data.put( index, value );
+	}
+
+	@Override
+	public MappedFloatAccess createArray( final int numEntities )
+	{
+		return new MappedFloatAccess( FloatBuffer.allocate( numEntities ) );
+	}
+
+	@Override
+	public FloatBuffer getCurrentStorageArray()
+	{
+		return data;
+	}
+
+	@Override
+	public int getArrayLength()
+	{
+		return data.capacity();
+	}
+
+}
@@ -0,0 +1,121 @@
+package net.imglib2.algorithm.morphology.watershed.mapped;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+
+/**
+ * {@link PlanarImg}s with each plane mapped into memory from consecutive
+ * regions of a file, so that the OS page cache rather than the heap holds
+ * the voxels. Use them as labels and affinities for
+ * {@link net.imglib2.algorithm.morphology.watershed.AffinityWatershed2#letItRain}
+ * to process volumes that do not fit into memory.
+ *
+ * {@code create*} truncates the file, so the image is all zeros as required
+ * for labels that {@code letItRain} writes into. {@code open*} uses the
+ * contents of an existing file of matching size as is, e.g. to read
+ * affinities or previous results. Data are stored in native byte order. The
+ * file is not deleted when the image is no longer used.
+ */
+public class MappedImgs
+{
+
+	/**
+	 * Create zero initialized labels in {@code file}, existing contents are
+	 * discarded.
+	 */
+	public static PlanarImg< LongType, MappedLongAccess > createLongs( final Path file, final long... dimensions ) throws IOException
+	{
+		return longs( map( file, dimensions, Long.BYTES, true ), dimensions );
+	}
+
+	/**
+	 * Open {@code file} with contents in native byte order, its size must
+	 * match {@code dimensions}.
+	 */
+	public static PlanarImg< LongType, MappedLongAccess > openLongs( final Path file, final long... dimensions ) throws IOException
+	{
+		return longs( map( file, dimensions, Long.BYTES, false ), dimensions );
+	}
+
+	/**
+	 * Create zero initialized affinities in {@code file}, existing contents
+	 * are discarded.
+	 */
+	public static PlanarImg< FloatType, MappedFloatAccess > createFloats( final Path file, final long... dimensions ) throws IOException
+	{
+		return floats( map( file, dimensions, Float.BYTES, true ), dimensions );
+	}
+
+	/**
+	 * Open {@code file} with contents in native byte order, its size must
+	 * match {@code dimensions}.
+	 */
+	public static PlanarImg< FloatType, MappedFloatAccess > openFloats( final Path file, final long... dimensions ) throws IOException
+	{
+		return floats( map( file, dimensions, Float.BYTES, false ), dimensions );
+	}
+
+	private static PlanarImg< LongType, MappedLongAccess > longs( final List< MappedByteBuffer > buffers, final long[] dimensions )
+	{
+		final List< MappedLongAccess > planes = new ArrayList<>();
+		for ( final MappedByteBuffer buffer : buffers )
+			planes.add( new MappedLongAccess( buffer.asLongBuffer() ) );
+		final PlanarImg< LongType, MappedLongAccess > img = new PlanarImg<>( planes, dimensions, new Fraction() );
+		img.setLinkedType( new LongType( img ) );
+		return img;
+	}
+
+	private static PlanarImg< FloatType, MappedFloatAccess > floats( final List< MappedByteBuffer > buffers, final long[] dimensions )
+	{
+		final List< MappedFloatAccess > planes = new ArrayList<>();
+		for ( final MappedByteBuffer buffer : buffers )
+			planes.add( new MappedFloatAccess( buffer.asFloatBuffer() ) );
+		final PlanarImg< FloatType, MappedFloatAccess > img = new PlanarImg<>( planes, dimensions, new Fraction() );
+		img.setLinkedType( new FloatType( img ) );
+		return img;
+	}
+
+	private static List< MappedByteBuffer > map( final Path file, final long[] dimensions, final int bytesPerVoxel, final boolean create ) throws IOException
+	{
+		final long planeSize = dimensions.length > 1 ? dimensions[ 0 ] * dimensions[ 1 ] : dimensions[ 0 ];
+		final long planeBytes = planeSize * bytesPerVoxel;
+		if ( planeBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Plane of " + planeBytes + " bytes exceeds maximum mapping size " + Integer.MAX_VALUE );
+		final long numPlanes = Intervals.numElements( dimensions ) / planeSize;
+
+		final OpenOption[] options = create
+				? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE }
+				: new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+
+		final List< MappedByteBuffer > buffers = new ArrayList<>();
+		// mappings stay valid after the channel is closed
+		try (final FileChannel channel = FileChannel.open( file, options ))
+		{
+			// mapping beyond the end of the file would grow it silently
+			if ( !create && channel.size() != numPlanes * planeBytes )
+				throw new IllegalArgumentException( "File " + file + " has " + channel.size() + " bytes but " + numPlanes * planeBytes + " bytes are required" );
+			for ( long plane = 0; plane < numPlanes; ++plane )
+			{
+				final MappedByteBuffer buffer = channel.map( MapMode.READ_WRITE, plane * planeBytes, planeBytes );
+				buffer.order( ByteOrder.nativeOrder() );
+				buffers.add( buffer );
+			}
+		}
+		return buffers;
+	}
+
+}
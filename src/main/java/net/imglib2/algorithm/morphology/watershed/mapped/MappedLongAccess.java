@@ -0,0 +1,55 @@
+package net.imglib2.algorithm.morphology.watershed.mapped;
+
+import java.nio.LongBuffer;
+
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * {@link LongAccess} on a {@link LongBuffer}, e.g. a memory-mapped region of
+ * a file, see {@link MappedImgs#createLongs}.
+ */
+public class MappedLongAccess implements LongAccess, ArrayDataAccess< MappedLongAccess >
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final LongBuffer data;
+
+	public MappedLongAccess( final LongBuffer data )
+	{
+		super();
+		this.data = data;
+	}
+
+	@Override
+	public long getValue( final int index )
+	{
+		return data.get( index );
+	}
+
+	@Override
+	public void setValue( final int index, final long value )
+	{
+		data.put( index, value );
+	}
+
+	@Override
+	public MappedLongAccess createArray( final int numEntities )
+	{
+		return new MappedLongAccess( LongBuffer.allocate( numEntities ) );
+	}
+
+	@Override
+	public LongBuffer getCurrentStorageArray()
+	{
+		return data;
+	}
+
+	@Override
+	public int getArrayLength()
+	{
+		return data.capacity();
+	}
+
+}
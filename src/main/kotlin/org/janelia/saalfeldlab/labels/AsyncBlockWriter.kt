@@ -0,0 +1,174 @@
+package org.janelia.saalfeldlab.labels
+
+import net.imglib2.FinalInterval
+import net.imglib2.Interval
+import net.imglib2.RandomAccessibleInterval
+import net.imglib2.algorithm.util.Grids
+import net.imglib2.type.NativeType
+import net.imglib2.type.numeric.IntegerType
+import net.imglib2.type.numeric.RealType
+import net.imglib2.util.Intervals
+import net.imglib2.util.Util
+import net.imglib2.view.Views
+import org.janelia.saalfeldlab.n5.Compression
+import org.janelia.saalfeldlab.n5.DataBlock
+import org.janelia.saalfeldlab.n5.DatasetAttributes
+import org.janelia.saalfeldlab.n5.N5Writer
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import java.util.function.Consumer
+import java.util.function.Supplier
+import kotlin.concurrent.withLock
+
+/**
+ * Compress and write finished N5 blocks on a dedicated pool of [numThreads] threads while the caller computes the
+ * next blocks, datasets, or sections. [save] and [writeBlocks] copy blocks on the calling thread or, if given, on a
+ * copy executor, e.g. the pool that `N5Utils.save(..., es)` would have used; only the writes run on this pool.
+ *
+ * At most [maxPendingBlocks] blocks are being copied, queued, or written at any time: [write] and [save] block the
+ * caller until a pending block is written, so that a producer that is faster than compression and I/O holds at most
+ * [maxPendingBlocks] copied blocks in memory. Every call returns a [CompletableFuture] that completes when its blocks
+ * are written, or exceptionally with the first failure, and can be used to attach completion callbacks. The writer
+ * itself only keeps the number of unfinished blocks and the first failure, so that writing a large volume does not
+ * accumulate completed futures. [close] waits for all pending blocks and shuts down the pool.
+ */
+class AsyncBlockWriter(
+		numThreads: Int,
+		maxPendingBlocks: Int = 2 * numThreads) : AutoCloseable {
+
+	private val threadCount = AtomicInteger(0)
+
+	private val executor: ExecutorService = Executors.newFixedThreadPool(numThreads, {Thread(it, "block-writer-${threadCount.incrementAndGet()}")})
+
+	private val permits = Semaphore(maxPendingBlocks)
+
+	private val lock = ReentrantLock()
+
+	private val allWritten = lock.newCondition()
+
+	private var unfinishedBlocks = 0L
+
+	private var failure: Throwable? = null
+
+	/**
+	 * Write [block], which must not be modified afterwards, to [dataset] in [n5].
+	 */
+	fun write(n5: N5Writer, dataset: String, attributes: DatasetAttributes, block: DataBlock<*>): CompletableFuture<Void> =
+			submit(n5, dataset, attributes, null, { block })
+
+	/**
+	 * Create [dataset] and write [source] block by block. Blocks are copied on [copyExecutor], or on the calling thread
+	 * if it is `null`, and compressed and written asynchronously. The calling thread is throttled by the pending
+	 * blocks. Unlike `N5Utils.save(..., es)`, this returns as soon as the last block is submitted.
+	 */
+	fun <T> save(
+			source: RandomAccessibleInterval<T>,
+			n5: N5Writer,
+			dataset: String,
+			blockSize: IntArray,
+			compression: Compression,
+			copyExecutor: Executor? = null): CompletableFuture<Void>
+			where T: RealType<T>, T: NativeType<T> {
+		val zeroMinSource = Views.zeroMin(source)
+		val dimensions = Intervals.dimensionsAsLongArray(zeroMinSource)
+		val attributes = DatasetAttributes(dimensions, blockSize, N5Utils.dataType(Util.getTypeFromInterval(zeroMinSource)), compression)
+		n5.createDataset(dataset, attributes)
+		return writeBlocks(zeroMinSource, n5, dataset, attributes, copyExecutor)
+	}
+
+	/**
+	 * Write all blocks of [source] to the existing [dataset], e.g. a slab of a dataset that is computed slab by slab.
+	 * The min of [source] must lie on the block grid of [attributes]. Blocks are copied like in [save].
+	 */
+	fun <T> writeBlocks(
+			source: RandomAccessibleInterval<T>,
+			n5: N5Writer,
+			dataset: String,
+			attributes: DatasetAttributes,
+			copyExecutor: Executor? = null): CompletableFuture<Void>
+			where T: RealType<T> {
+		val futures = Grids
+				.collectAllContainedIntervals(Intervals.dimensionsAsLongArray(source), attributes.blockSize)
+				.map { FinalInterval(LongArray(it.numDimensions(), { d -> it.min(d) + source.min(d) }), LongArray(it.numDimensions(), { d -> it.max(d) + source.min(d) })) }
+				.map { block -> submit(n5, dataset, attributes, copyExecutor, { source.toDataBlock(block, attributes) }) }
+		return CompletableFuture.allOf(*futures.toTypedArray())
+	}
+
+	private fun submit(
+			n5: N5Writer,
+			dataset: String,
+			attributes: DatasetAttributes,
+			copyExecutor: Executor?,
+			copy: () -> DataBlock<*>): CompletableFuture<Void> {
+		permits.acquire()
+		val future = try {
+			val block = if (copyExecutor == null) CompletableFuture.completedFuture(copy()) else CompletableFuture.supplyAsync(Supplier(copy), copyExecutor)
+			block.thenAcceptAsync(Consumer { n5.writeBlock(dataset, attributes, it) }, executor)
+		} catch (e: Exception) {
+			permits.release()
+			throw e
+		}
+		lock.withLock { ++unfinishedBlocks }
+		future.whenComplete { _, t ->
+			permits.release()
+			lock.withLock {
+				if (t != null && failure == null)
+					failure = if (t is CompletionException) t.cause ?: t else t
+				if (--unfinishedBlocks == 0L)
+					allWritten.signalAll()
+			}
+		}
+		return future
+	}
+
+	/**
+	 * Wait until all blocks submitted so far are written.
+	 *
+	 * @throws ExecutionException with the first failure since the last call, if any block could not be written
+	 */
+	fun await() {
+		lock.withLock {
+			while (unfinishedBlocks > 0)
+				allWritten.await()
+			failure?.let {
+				failure = null
+				throw ExecutionException(it)
+			}
+		}
+	}
+
+	override fun close() {
+		try {
+			await()
+		} finally {
+			executor.shutdown()
+		}
+	}
+
+}
+
+private fun <T: RealType<T>> RandomAccessibleInterval<T>.toDataBlock(block: Interval, attributes: DatasetAttributes): DataBlock<*> {
+	val size = Intervals.dimensionsAsIntArray(block)
+	val gridPosition = LongArray(block.numDimensions(), { block.min(it) / attributes.blockSize[it] })
+	val dataBlock = attributes.dataType.createDataBlock(size, gridPosition)
+	val cursor = Views.flatIterable(Views.interval(this, block)).cursor()
+	val data = dataBlock.data
+	when (data) {
+		is LongArray -> for (i in data.indices) data[i] = cursor.next().let { if (it is IntegerType<*>) it.getIntegerLong() else it.realDouble.toLong() }
+		is IntArray -> for (i in data.indices) data[i] = cursor.next().let { if (it is IntegerType<*>) it.getInteger() else it.realDouble.toInt() }
+		is ShortArray -> for (i in data.indices) data[i] = cursor.next().let { if (it is IntegerType<*>) it.getInteger().toShort() else it.realDouble.toShort() }
+		is ByteArray -> for (i in data.indices) data[i] = cursor.next().let { if (it is IntegerType<*>) it.getInteger().toByte() else it.realDouble.toByte() }
+		is FloatArray -> for (i in data.indices) data[i] = cursor.next().realFloat
+		is DoubleArray -> for (i in data.indices) data[i] = cursor.next().realDouble
+		else -> throw UnsupportedOperationException("Data type ${attributes.dataType} not supported")
+	}
+	return dataBlock
+}
@@ -4,6 +4,7 @@ import net.imglib2.RandomAccessibleInterval
 import net.imglib2.img.array.ArrayImgFactory
 import net.imglib2.type.NativeType
 import net.imglib2.type.numeric.IntegerType
+import net.imglib2.type.numeric.RealType
 import net.imglib2.type.numeric.integer.*
 import net.imglib2.type.numeric.real.DoubleType
 import net.imglib2.type.numeric.real.FloatType
@@ -21,6 +22,7 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils
 import org.slf4j.LoggerFactory
 import java.lang.invoke.MethodHandles
 import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
@@ -60,13 +62,13 @@ class CombineAsHDF {
 				dataset: InOut,
 				dataType: DataType,
 				blockSize: IntArray,
-				es: ExecutorService) {
+				es: ExecutorService,
+				writer: AsyncBlockWriter): CompletableFuture<Void> {
 
-			fun <T> save() where T: NativeType<T>  {
-				N5Utils.save(N5Utils.open<T>(n5in, dataset.datasetIn), n5out, dataset.datasetOut, blockSize, COMPRESSION, es)
-			}
+			fun <T> save() where T: NativeType<T>, T: RealType<T> =
+				writer.save(N5Utils.open<T>(n5in, dataset.datasetIn), n5out, dataset.datasetOut, blockSize, COMPRESSION, es)
 
-			when(dataType) {
+			return when(dataType) {
 				DataType.UINT8 -> save<UnsignedByteType>()
 				DataType.UINT16 -> save<UnsignedShortType>()
 				DataType.UINT32 -> save<UnsignedIntType>()
@@ -77,6 +79,7 @@ class CombineAsHDF {
 				DataType.INT64 -> save<LongType>()
 				DataType.FLOAT32 -> save<FloatType>()
 				DataType.FLOAT64 -> save<DoubleType>()
+				else -> throw UnsupportedOperationException("Invalid dataType passed for raw task: $dataType")
 			}
 		}
 
@@ -87,6 +90,7 @@ class CombineAsHDF {
 				rawDataset: InOut,
 				vararg labelDatasets: InOut,
 				es: ExecutorService,
+				writer: AsyncBlockWriter,
 				blockSize: IntArray = intArrayOf(64, 64, 64)
 
 		) {
@@ -100,13 +104,14 @@ class CombineAsHDF {
 			LOG.info("raw offset:     {}", rawOffset)
 
 			val rawAttributes = rawContainer.getDatasetAttributes(rawDataset.datasetIn)
-			outputContainer.createDataset(rawDataset.datasetOut, rawAttributes.dimensions, blockSize, rawAttributes.dataType, GzipCompression())
 
 			LOG.info("Copying raw dataset {} with dimensions {} into {}/{}", rawDataset.datasetIn, rawAttributes.dimensions, outputContainer, rawDataset.datasetOut)
 			val sw = StopWatch.createAndStart()
-			saveRaw(rawContainer, outputContainer, rawDataset, rawAttributes.dataType, blockSize, es)
-			sw.stop()
-			LOG.info("Copied raw dataset {} into {}/{} in {} seconds", rawDataset.datasetIn, outputContainer, rawDataset.datasetOut, sw.seconds())
+			// label datasets are down-sampled while raw and previous label datasets are compressed and written
+			val saved = mutableListOf(saveRaw(rawContainer, outputContainer, rawDataset, rawAttributes.dataType, blockSize, es, writer).thenRun {
+				sw.stop()
+				LOG.info("Copied raw dataset {} into {}/{} in {} seconds", rawDataset.datasetIn, outputContainer, rawDataset.datasetOut, sw.seconds())
+			})
 
 			outputContainer.setAttribute(rawDataset.datasetOut, "resolution", rawResolution)
 			outputContainer.setAttribute(rawDataset.datasetOut, "offset", rawOffset)
@@ -114,19 +119,21 @@ class CombineAsHDF {
 			for (labelDataset in labelDatasets) {
 
 				val dataType = labelContainer.getDatasetAttributes(labelDataset.datasetIn).dataType
-				when(dataType) {
-					DataType.UINT8 -> processLabelDataset<UnsignedByteType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.UINT16 -> processLabelDataset<UnsignedShortType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.UINT32 -> processLabelDataset<UnsignedIntType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.UINT64 -> processLabelDataset<UnsignedLongType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.INT8 -> processLabelDataset<ByteType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.INT16 -> processLabelDataset<ShortType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.INT32 -> processLabelDataset<IntType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
-					DataType.INT64 -> processLabelDataset<LongType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, blockSize)
+				saved += when(dataType) {
+					DataType.UINT8 -> processLabelDataset<UnsignedByteType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.UINT16 -> processLabelDataset<UnsignedShortType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.UINT32 -> processLabelDataset<UnsignedIntType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.UINT64 -> processLabelDataset<UnsignedLongType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.INT8 -> processLabelDataset<ByteType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.INT16 -> processLabelDataset<ShortType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.INT32 -> processLabelDataset<IntType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
+					DataType.INT64 -> processLabelDataset<LongType>(labelContainer, outputContainer, labelDataset, scaleFactor, voxelSizeFactor, es, writer, blockSize)
 					else -> throw UnsupportedOperationException("Invalid dataType passed for integer label task: $dataType")
 				}
 
 			}
+
+			CompletableFuture.allOf(*saved.toTypedArray()).get()
 		}
 
 		private fun getOffset(n5: N5Reader, dataset: InOut): DoubleArray {
@@ -160,8 +167,9 @@ class CombineAsHDF {
 				scaleFactor: Int,
 				voxelSizeFactor: Double,
 				es: ExecutorService,
+				writer: AsyncBlockWriter,
 				blockSize: IntArray = intArrayOf(64, 64, 64)
-		) where T: IntegerType<T>, T: NativeType<T> {
+		): CompletableFuture<Void> where T: IntegerType<T>, T: NativeType<T> {
 
 			val labelAttributes = n5in.getDatasetAttributes(dataset.datasetIn)
 			val downScaledDim = longArrayOf(
@@ -196,20 +204,7 @@ class CombineAsHDF {
 			sw.stop()
 			LOG.info("Finished downsampling in ${TimeUnit.NANOSECONDS.toSeconds(sw.nanoTime())}s")
 
-			val downsampledAttributes = DatasetAttributes(
-					Intervals.dimensionsAsLongArray(downsampled),
-					blockSize,
-					labelAttributes.dataType,
-					GzipCompression())
 			val downsampledDataset = "${dataset.datasetOut}-downsampled"
-			n5out.createDataset(downsampledDataset, downsampledAttributes)
-
-			val attributes = DatasetAttributes(
-					Intervals.dimensionsAsLongArray(labelData),
-					blockSize,
-					labelAttributes.dataType,
-					GzipCompression())
-			n5out.createDataset(dataset.datasetOut, attributes)
 
 
 			val labelResolution = getResolution(n5in, dataset).map { it * voxelSizeFactor }.toDoubleArray()
@@ -224,22 +219,24 @@ class CombineAsHDF {
 			downSampledOffset[1] = downSampledOffset[1] + downsampledResolution[1] / scaleFactor.toDouble()
 			downSampledOffset[2] = downSampledOffset[2] + downsampledResolution[2] / scaleFactor.toDouble()
 
-			sw.start()
-			sw.seconds()
-			N5Utils.save(downsampled, n5out, downsampledDataset, downsampledAttributes.blockSize, downsampledAttributes.compression, es)
-			sw.stop()
-			LOG.info("Finished saving downsampled data in ${TimeUnit.NANOSECONDS.toSeconds(sw.nanoTime())}s")
+			val downsampledStopWatch = StopWatch.createAndStart()
+			val downsampledSaved = writer.save(downsampled, n5out, downsampledDataset, blockSize, GzipCompression(), es).thenRun {
+				downsampledStopWatch.stop()
+				LOG.info("Finished saving downsampled data in ${TimeUnit.NANOSECONDS.toSeconds(downsampledStopWatch.nanoTime())}s")
+			}
 
-			sw.start()
-			N5Utils.save(labelData, n5out, dataset.datasetOut, attributes.blockSize, attributes.compression, es)
-			sw.stop()
-			LOG.info("Finished copying label data in ${TimeUnit.NANOSECONDS.toSeconds(sw.nanoTime())}s")
+			val labelStopWatch = StopWatch.createAndStart()
+			val labelSaved = writer.save(labelData, n5out, dataset.datasetOut, blockSize, GzipCompression(), es).thenRun {
+				labelStopWatch.stop()
+				LOG.info("Finished copying label data in ${TimeUnit.NANOSECONDS.toSeconds(labelStopWatch.nanoTime())}s")
+			}
 
 			n5out.setAttribute(dataset.datasetOut, "resolution", labelResolution)
 			n5out.setAttribute(dataset.datasetOut, "offset", labelOffset)
 			n5out.setAttribute(downsampledDataset, "resolution", downsampledResolution)
 			n5out.setAttribute(downsampledDataset, "offset", downSampledOffset)
 
+			return CompletableFuture.allOf(downsampledSaved, labelSaved)
 		}
 
 		fun run(args: Array<String>) {
@@ -255,7 +252,9 @@ class CombineAsHDF {
 					"volumes/labels/neuron_ids_noglia")
 					.map { InOut(datasetIn = it, revertInputArrayAttributes = true) }
 					.toTypedArray()
+			// blocks are copied on es, writer threads only compress and write
 			val es = Executors.newFixedThreadPool(47)
+			val writer = AsyncBlockWriter(8)
 			val globalStopWatch = StopWatch.createAndStart()
 			val threads = mutableListOf<Thread>()
 			for (identifier in identifiers) {
@@ -271,7 +270,8 @@ class CombineAsHDF {
 							N5HDF5Writer(outputContainer),
 							InOut(datasetIn = "volumes/raw", revertInputArrayAttributes = true),
 							*datasets,
-							es = es
+							es = es,
+							writer = writer
 					)
 					sw.stop()
 					LOG.info("Finished combining with raw dataset and downsampling label datasets {} for sample {} in {} seconds", datasets, identifier, sw.seconds())
@@ -280,6 +280,7 @@ class CombineAsHDF {
 			threads.forEach(Thread::start)
 			threads.forEach(Thread::join)
 			es.shutdown()
+			writer.close()
 			globalStopWatch.stop()
 			LOG.info("Finished combining with raw dataset and downsampling label datasets {} for samples {} in {} seconds", datasets, identifiers, globalStopWatch.seconds())
 
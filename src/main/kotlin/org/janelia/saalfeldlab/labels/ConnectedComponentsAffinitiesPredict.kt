@@ -1,21 +1,25 @@
 package org.janelia.saalfeldlab.labels
 
+import net.imglib2.Interval
 import net.imglib2.RandomAccessibleInterval
-import net.imglib2.algorithm.labeling.affinities.ConnectedComponents
-import net.imglib2.algorithm.labeling.affinities.Watersheds
-import net.imglib2.converter.Converters
-import net.imglib2.img.array.ArrayImgFactory
+import net.imglib2.algorithm.morphology.watershed.BlockwiseConnectedComponents
+import net.imglib2.algorithm.morphology.watershed.BlockwiseSeededAffinityWatershed
+import net.imglib2.algorithm.morphology.watershed.Seeds
+import net.imglib2.algorithm.util.Grids
 import net.imglib2.img.array.ArrayImgs
-import net.imglib2.img.cell.CellImgFactory
 import net.imglib2.type.logic.BitType
 import net.imglib2.type.logic.BoolType
-import net.imglib2.type.numeric.integer.ByteType
+import net.imglib2.type.numeric.IntegerType
 import net.imglib2.type.numeric.real.FloatType
 import net.imglib2.util.ConstantUtils
 import net.imglib2.util.Intervals
 import net.imglib2.util.StopWatch
 import net.imglib2.view.Views
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock
+import org.janelia.saalfeldlab.n5.DataType
+import org.janelia.saalfeldlab.n5.DatasetAttributes
 import org.janelia.saalfeldlab.n5.GzipCompression
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock
 import org.janelia.saalfeldlab.n5.N5FSWriter
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils
@@ -24,6 +28,7 @@ import picocli.CommandLine
 import java.lang.invoke.MethodHandles
 import java.nio.file.Files
 import java.nio.file.Paths
+import java.util.concurrent.Callable
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
@@ -47,6 +52,13 @@ private fun LongArray.invertValues(max: Long = 0): LongArray {
 	return LongArray(this.size, {max-this[it]})
 }
 
+private fun Interval.gridPosition(blockSize: IntArray) = LongArray(numDimensions(), { min(it) / blockSize[it] })
+
+private fun <I: IntegerType<I>> RandomAccessibleInterval<I>.longsInBlock(block: Interval): LongArray {
+	val cursor = Views.flatIterable(Views.interval(this, block)).cursor()
+	return LongArray(Intervals.numElements(block).toInt(), { cursor.next().integerLong })
+}
+
 fun main(argv: Array<String>) {
 
 	LOG.debug("Generating labels from affinities with these arguments {}", argv)
@@ -90,9 +102,18 @@ fun main(argv: Array<String>) {
 		@CommandLine.Option(names = arrayOf("--offsets"), arity = "1..*", paramLabel = "OFFSETS", description = arrayOf("Structuring elements for affinities. Defaults to -1,0,0 0,-1,0 0,0,-1."))
 		var offsets = arrayOf(Offset(-1, 0, 0), Offset(0, -1, 0), Offset(0, 0, -1)) //arrayOf("-1,0,0 0,-1,0 0,0,-1".split(" "))
 
-		@CommandLine.Option(names = arrayOf("--block-size"), arity = "1..*", paramLabel = "BLOCK_SIZE", description = arrayOf("Block size of output."))
+		@CommandLine.Option(names = arrayOf("--block-size"), arity = "1..*", paramLabel = "BLOCK_SIZE", description = arrayOf("Block size of output. Seeds are extracted and outputs are written block by block."))
 		var blockSize = intArrayOf(64, 64, 64)
 
+		@CommandLine.Option(names = arrayOf("--num-threads"), paramLabel = "NUM_THREADS", description = arrayOf("Number of blocks processed in parallel."))
+		var numThreads = Runtime.getRuntime().availableProcessors()
+
+		@CommandLine.Option(names = arrayOf("--num-writer-threads"), paramLabel = "NUM_WRITER_THREADS", description = arrayOf("Number of threads that compress and write blocks."))
+		var numWriterThreads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1)
+
+		@CommandLine.Option(names = arrayOf("--max-pending-blocks"), paramLabel = "MAX_PENDING_BLOCKS", description = arrayOf("Maximum number of blocks waiting to be compressed and written. Limits the memory held by outputs in flight."))
+		var maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors()
+
 	}
 
 	val args = Args()
@@ -100,8 +121,7 @@ fun main(argv: Array<String>) {
 			.registerConverter(Offset::class.java, { Offset(*Stream.of(*it.split(",").toTypedArray()).mapToLong(String::toLong).toArray()) })
 	cmdLine.parse(*argv)
 
-	val threadCount = AtomicInteger(0)
-	val saveExecutors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1, {Thread(it, "save-executor-${threadCount.incrementAndGet()}")})
+	val writer = AsyncBlockWriter(args.numWriterThreads, args.maxPendingBlocks)
 
 	val steps = Array(args.offsets.size, {args.offsets[it].offset})//longArrayOf(-1, -1, -1)
 	val inputContainer = args.inputContainer!!//"/home/hanslovskyp/local/tmp/batch_656001.hdf"
@@ -130,18 +150,30 @@ fun main(argv: Array<String>) {
 	}
 
 	val affinities = Views.collapseReal(affinitiesNotCollapsed)
-	LOG.info("Generating connected components for affinities with dimensions {} ({} voxels)", Intervals.dimensionsAsLongArray(affinities), Intervals.numElements(affinities))
+	val dimensions = Intervals.dimensionsAsLongArray(affinities)
+	val blockSize = args.blockSize
+	val blocks = Grids.collectAllContainedIntervals(dimensions, blockSize)
+
+	val computeThreadCount = AtomicInteger(0)
+	val computeExecutors = Executors.newFixedThreadPool(args.numThreads, {Thread(it, "compute-executor-${computeThreadCount.incrementAndGet()}")})
+
+	LOG.info("Generating connected components for affinities with dimensions {} ({} voxels)", dimensions, Intervals.numElements(affinities))
 	val mask = ConstantUtils.constantRandomAccessibleInterval(BoolType(true), affinities.numDimensions(), affinities)
-	val labels = ArrayImgs.unsignedLongs(*Intervals.dimensionsAsLongArray(affinities))
+	val labels = ArrayImgs.unsignedLongs(*dimensions)
 	labels.forEach { it.set(Label.INVALID) }
-	val unionFindMask = ArrayImgs.bits(*Intervals.dimensionsAsLongArray(affinities))
+	val unionFindMask = ArrayImgs.bits(*dimensions)
 	val sw = StopWatch.createAndStart()
-	val maxId = ConnectedComponents.fromSymmetricAffinities(Views.extendValue(mask, BoolType(false)), affinities, labels, Views.extendZero(unionFindMask), threshold, *steps)
+	// blocks are labeled in parallel and merged across block faces into consecutive ids
+	val maxId = BlockwiseConnectedComponents.fromAffinities(Views.extendValue(mask, BoolType(false)), affinitiesNotCollapsed, labels, unionFindMask, threshold, steps, blockSize, computeExecutors)
 	sw.stop()
 	LOG.info("Generated connected components in {} seconds", sw.seconds())
 
-	sw.start()
-	N5Utils.save(labels, n5out, predictionDataset, args.blockSize, GzipCompression(), saveExecutors)
+	n5out.createDataset(predictionDataset, dimensions, blockSize, DataType.UINT64, GzipCompression())
+	n5out.createDataset(args.watershedSeedsMask, dimensions, blockSize, DataType.INT8, GzipCompression())
+	n5out.createDataset(args.watersheds, dimensions, blockSize, DataType.UINT64, GzipCompression())
+	val predictionAttributes = n5out.getDatasetAttributes(predictionDataset)
+	val watershedSeedsMaskAttributes = n5out.getDatasetAttributes(args.watershedSeedsMask)
+	val watershedsAttributes = n5out.getDatasetAttributes(args.watersheds)
 
 	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(predictionDataset, OFFSET_KEY, it) }
 	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(predictionDataset, RESOLUTION_KEY, it) }
@@ -149,59 +181,63 @@ fun main(argv: Array<String>) {
 	n5out.setAttribute(predictionDataset, SOURCE_DATASET_KEY, affinitiesDataset)
 	n5out.setAttribute(predictionDataset, THRESHOLD_KEY, threshold)
 	n5out.setAttribute(predictionDataset, MAX_ID_KEY, maxId)
-	sw.stop()
-	LOG.info("Saved connected components in {} seconds", sw.seconds())
-
+	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeedsMask, OFFSET_KEY, it) }
+	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeedsMask, RESOLUTION_KEY, it) }
 
+	// per block: hand connected components to the writers, extract seeds, hand seeds mask to the writers
 	val invertedSteps = Stream.of(*steps).map {it.invertValues()}.collect(Collectors.toList()).toTypedArray()
-	val watershedSeedsMask = ArrayImgs.bits(*Intervals.dimensionsAsLongArray(unionFindMask))
+	val extendedUnionFindMask = Views.extendValue(unionFindMask, BitType(true))
 	sw.start()
-	Watersheds.seedsFromMask(Views.extendValue(unionFindMask, BitType(true)), watershedSeedsMask, *(steps + invertedSteps))
-	val seeds = Watersheds.collectSeeds(watershedSeedsMask)
+	val seeds = Seeds.concatenate(blocks
+			.map { block -> computeExecutors.submit(Callable {
+				val gridPosition = block.gridPosition(blockSize)
+				val size = Intervals.dimensionsAsIntArray(block)
+				val connectedComponents = labels.longsInBlock(block)
+				writer.write(n5out, predictionDataset, predictionAttributes, LongArrayDataBlock(size, gridPosition, connectedComponents))
+
+				val watershedSeedsMask = ByteArray(Intervals.numElements(block).toInt())
+				val blockSeeds = Seeds.fromMask(extendedUnionFindMask, labels, block, steps + invertedSteps, watershedSeedsMask)
+				writer.write(n5out, args.watershedSeedsMask, watershedSeedsMaskAttributes, ByteArrayDataBlock(size, gridPosition, watershedSeedsMask))
+				blockSeeds
+			}) }
+			.map { it.get() })
 	sw.stop()
-	LOG.info("Generated watershed seeds in {} seconds", sw.seconds())
-
-	sw.start()
-	N5Utils.save(Converters.convert(watershedSeedsMask as RandomAccessibleInterval<BitType>, {s,t -> if (s.get()) t.setOne() else t.setZero()}, ByteType()), n5out, args.watershedSeedsMask, args.blockSize, GzipCompression(), saveExecutors)
-	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeedsMask, OFFSET_KEY, it) }
-	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeedsMask, RESOLUTION_KEY, it) }
-
-	val seedsDataset = ArrayImgs.unsignedLongs(affinities.numDimensions().toLong(), seeds.size.toLong())
-	seeds.forEachIndexed { index, point ->
-		val c = Views.flatIterable(Views.hyperSlice(seedsDataset, 1, index.toLong())).cursor()
-		(0 until point.numDimensions()).forEach { c.next().set(point.getLongPosition(it)) }
-	}
-
-	N5Utils.save(seedsDataset, n5out, args.watershedSeeds, Intervals.dimensionsAsIntArray(seedsDataset), GzipCompression(), saveExecutors)
+	LOG.info("Generated {} watershed seeds in {} seconds", seeds.size, sw.seconds())
+
+	// one block with the coordinates of each seed next to each other
+	val seedsDimensions = longArrayOf(dimensions.size.toLong(), seeds.size.toLong())
+	val seedsBlockSize = intArrayOf(dimensions.size, Math.max(seeds.size, 1))
+	val seedsAttributes = DatasetAttributes(seedsDimensions, seedsBlockSize, DataType.UINT64, GzipCompression())
+	n5out.createDataset(args.watershedSeeds, seedsAttributes)
+	if (seeds.isNotEmpty())
+		writer.write(n5out, args.watershedSeeds, seedsAttributes, LongArrayDataBlock(intArrayOf(dimensions.size, seeds.size), longArrayOf(0, 0), Seeds.positions(seeds, labels)))
 	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeeds, OFFSET_KEY, it) }
 	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watershedSeeds, RESOLUTION_KEY, it) }
-	sw.stop()
-	LOG.info("Saved watershed seeds in {} seconds", sw.seconds())
 
+	// connected components of all blocks were copied above, labels can be overwritten while they are written
 	sw.start()
-	val symmetricAffinitiesFactory =
-			if (Intervals.numElements(affinitiesNotCollapsed) * 2 <= Integer.MAX_VALUE)
-				ArrayImgFactory(FloatType()) else
-				CellImgFactory(FloatType(), *(args.blockSize + intArrayOf(affinities.dimension(3).toInt())))
-	val symmetricAffinities = Watersheds.constructAffinities(affinitiesNotCollapsed, offsets=steps, factory = symmetricAffinitiesFactory)
-	sw.stop()
-	LOG.info("Constructed symmetric affinities in {} seconds", sw.seconds())
-	sw.start()
-	Watersheds.seededFromAffinities(Views.collapseReal(symmetricAffinities), labels, seeds, *steps)
+	BlockwiseSeededAffinityWatershed.flood(affinitiesNotCollapsed, labels, seeds, steps, blockSize, computeExecutors)
 	sw.stop()
 	LOG.info("Ran seeded watersheds in {} seconds", sw.seconds())
 
-	sw.start()
-	N5Utils.save(labels, n5out, args.watersheds, args.blockSize, GzipCompression(), saveExecutors)
 	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watersheds, OFFSET_KEY, it) }
 	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.watersheds, RESOLUTION_KEY, it) }
 	n5out.setAttribute(args.watersheds, MAX_ID_KEY, maxId)
+	blocks
+			.map { block -> computeExecutors.submit(Callable {
+				val watersheds = labels.longsInBlock(block)
+				writer.write(n5out, args.watersheds, watershedsAttributes, LongArrayDataBlock(Intervals.dimensionsAsIntArray(block), block.gridPosition(blockSize), watersheds))
+			}) }
+			.forEach { it.get() }
+
+	sw.start()
+	writer.close()
 	sw.stop()
-	LOG.info("Saved watersheds in {} seconds", sw.seconds())
+	LOG.info("Waited {} seconds for pending writes", sw.seconds())
 
 	totalStopWatch.stop()
-	LOG.info("Total run time was {} seconds", sw.seconds())
+	LOG.info("Total run time was {} seconds", totalStopWatch.seconds())
 
-	saveExecutors.shutdown()
+	computeExecutors.shutdown()
 
 }
@@ -52,7 +52,8 @@ fun <T> convert (
 		datasetIn: String,
 		datasetOut: String,
 		numFillers: Long,
-		es: ExecutorService): Unit
+		es: ExecutorService,
+		writer: AsyncBlockWriter): CompletableFuture<Void>
 		where T: IntegerType<T>,
 			  T: NativeType<T> {
 
@@ -109,22 +110,118 @@ fun <T> convert (
 	resolution[2] =  resolution[2] / (1 + numFillers)
 	val offset = containerIn.getAttribute(datasetIn, "offset", DoubleArray::class.java) ?: doubleArrayOf(0.0, 0.0, 0.0)
 
-	val attrs = DatasetAttributes(Intervals.dimensionsAsLongArray(stacked), blockSize, DataType.UINT64, GzipCompression())
-	containerOut.createDataset(datasetOut, attrs)
+	ConvertCremiLabels.LOG.info("Writing data for {}", datasetOut)
+	val saveStopWatch = StopWatch.createAndStart()
+	val saved = writer.save(stacked, containerOut, datasetOut, blockSize, GzipCompression(), es)
 	containerOut.setAttribute(datasetOut, "resolution", resolution)
 	containerOut.setAttribute(datasetOut, "offset", offset)
-	ConvertCremiLabels.LOG.info("Writing data for {}", datasetOut)
-	stopWatch.start()
-	N5Utils.save(stacked, containerOut, datasetOut, blockSize, GzipCompression(), es)
 
+	// blocks are compressed and written while the next dataset is up-sampled
+	return saved.thenRun {
+		saveStopWatch.stop()
+		ConvertCremiLabels.LOG.info(
+				"Saved {}: {} sections with an additional {} fillers between each pair of original sections in {} seconds",
+				datasetOut,
+				zMax - zMin + 1,
+				numFillers,
+				TimeUnit.SECONDS.convert(saveStopWatch.nanoTime(), TimeUnit.NANOSECONDS))
+	}
+
+}
+
+/**
+ * Like [convert] but interpolates pairs of sections in parallel and hands each slab of 64 sections to [writer] as soon
+ * as all its sections are interpolated. Only the pairs of the current and the next slab are kept, so memory does not
+ * grow with the number of sections.
+ */
+fun <T> convertStreaming(
+		containerIn: N5Reader,
+		containerOut: N5Writer,
+		datasetIn: String,
+		datasetOut: String,
+		numFillers: Long,
+		es: ExecutorService,
+		writer: AsyncBlockWriter): CompletableFuture<Void>
+		where T: IntegerType<T>,
+			  T: NativeType<T> {
+
+	val img = N5Utils.open<T>(containerIn, datasetIn)
+	val imgDim = Intervals.dimensionsAsLongArray(img)
+	ConvertCremiLabels.LOG.info("Up-sampling dataset {} with dimensions {} slab by slab", datasetIn, imgDim.toList())
+
+	val zMin = img.min(2)
+	val zMax = img.max(2)
+	val numPairs = zMax - zMin
+	val sectionsPerPair = 1 + numFillers
+	val depth = numPairs * sectionsPerPair + 1
+
+	val imgAsUnsignedLongTypes = Converters.convert(img, { src, tgt -> tgt.setInteger(src.integerLong)}, UnsignedLongType())
+
+	val blockSize = intArrayOf(64, 64, 64)
+	val attributes = DatasetAttributes(longArrayOf(imgDim[0], imgDim[1], depth), blockSize, DataType.UINT64, GzipCompression())
+
+	val resolution = containerIn.getAttribute(datasetIn, "resolution", DoubleArray::class.java) ?: doubleArrayOf(4.0, 4.0, 40.0)
+	resolution[2] =  resolution[2] / (1 + numFillers)
+	val offset = containerIn.getAttribute(datasetIn, "offset", DoubleArray::class.java) ?: doubleArrayOf(0.0, 0.0, 0.0)
+
+	containerOut.createDataset(datasetOut, attributes)
+	containerOut.setAttribute(datasetOut, "resolution", resolution)
+	containerOut.setAttribute(datasetOut, "offset", offset)
+
+	val counter = Counter()
+	val interpolated = mutableMapOf<Long, Future<List<RandomAccessibleInterval<UnsignedLongType>>>>()
+	val submit = { pair: Long ->
+		interpolated.getOrPut(pair) {
+			counter.incrementTotal()
+			es.submit(Callable {
+				val sw = StopWatch.createAndStart()
+				val i = zMin + pair
+				val hs1 = Views.hyperSlice(imgAsUnsignedLongTypes, 2, i)
+				val hs2 = Views.hyperSlice(imgAsUnsignedLongTypes, 2, i + 1)
+				val fillers = InterpolateBetweenSections.makeFillers(numFillers, imgDim[0], imgDim[1])
+				InterpolateBetweenSections.interpolateBetweenSectionsWithSignedDistanceTransform(hs1, hs2, ArrayImgFactory(DoubleType()), *fillers)
+				val localSections: List<RandomAccessibleInterval<UnsignedLongType>> = listOf(hs1) + fillers
+				sw.stop()
+				counter.incrementCount { count, total -> ConvertCremiLabels.LOG.info("Finished interpolating {}/{} sections: {} in {} seconds", count, total, i, TimeUnit.SECONDS.convert(sw.nanoTime(), TimeUnit.NANOSECONDS)) }
+				localSections
+			})
+		}
+	}
+
+	val stopWatch = StopWatch.createAndStart()
+	val saved = mutableListOf<CompletableFuture<Void>>()
+	for (slabMin in 0L until depth step blockSize[2].toLong()) {
+		val slabMax = minOf(slabMin + blockSize[2], depth) - 1
+
+		// interpolate the next slab while this slab is copied
+		for (pair in slabMin / sectionsPerPair..minOf((slabMax + blockSize[2]) / sectionsPerPair, numPairs - 1))
+			submit(pair)
+
+		val sections = (slabMin..slabMax).map { z ->
+			val pair = z / sectionsPerPair
+			val section: RandomAccessibleInterval<UnsignedLongType> =
+					if (pair == numPairs) Views.hyperSlice(imgAsUnsignedLongTypes, 2, zMax)
+					else interpolated.getValue(pair).get()[(z % sectionsPerPair).toInt()]
+			section
+		}
+		saved.add(writer.writeBlocks(Views.translate(Views.stack(sections), 0L, 0L, slabMin), containerOut, datasetOut, attributes, es))
+
+		// fillers are copied into blocks, pairs that end in this slab are not needed anymore
+		interpolated.keys.removeIf { (it + 1) * sectionsPerPair <= slabMax + 1 }
+	}
 	stopWatch.stop()
 
 	ConvertCremiLabels.LOG.info(
-			"Saved {}: {} sections with an additional {} fillers between each pair of original sections in {} seconds",
-			datasetOut,
+			"Up-sampled and copied {}: {} sections with an additional {} fillers between each pair of original sections in {} seconds",
+			datasetIn,
 			zMax - zMin + 1,
 			numFillers,
-			TimeUnit.SECONDS.convert(stopWatch.nanoTime(), TimeUnit.NANOSECONDS))
+			TimeUnit.SECONDS.convert(stopWatch.nanoTime(), TimeUnit.NANOSECONDS)
+	)
+
+	return CompletableFuture.allOf(*saved.toTypedArray()).thenRun {
+		ConvertCremiLabels.LOG.info("Saved {}", datasetOut)
+	}
 
 }
 
@@ -132,6 +229,7 @@ fun main(args: Array<String>) {
 
 //	val path = "$USER_HOME/Downloads/sample_A_padded_20160501.hdf"
 	val identifiers = arrayOf("A", "B", "C")//, "0", "1", "2")
+	val writer = AsyncBlockWriter(8)
 	for (identifier in identifiers) {
 		val path = "$DM11_HOME/data/from-arlo/sample_$identifier.h5"
 		val datasets = arrayOf(
@@ -152,19 +250,19 @@ fun main(args: Array<String>) {
 			val height = inputAttributes.dimensions[1]
 			val numFillers = 2L
 			val reader = N5HDF5Reader(path, width.toInt(), height.toInt(), 1)
-			val writer = N5FSWriter(outputGroup)
+			val n5out = N5FSWriter(outputGroup)
 
 			val es = Executors.newFixedThreadPool(40)
 
 			when (inputAttributes.dataType) {
-				DataType.UINT64 -> convert<UnsignedLongType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.UINT32 -> convert<UnsignedIntType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.UINT16 -> convert<UnsignedShortType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.UINT8 -> convert<UnsignedByteType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.INT64 -> convert<LongType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.INT32 -> convert<IntType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.INT16 -> convert<ShortType>(reader, writer, dataset, dataset, numFillers, es)
-				DataType.INT8 -> convert<ByteType>(reader, writer, dataset, dataset, numFillers, es)
+				DataType.UINT64 -> convertStreaming<UnsignedLongType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.UINT32 -> convertStreaming<UnsignedIntType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.UINT16 -> convertStreaming<UnsignedShortType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.UINT8 -> convertStreaming<UnsignedByteType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.INT64 -> convertStreaming<LongType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.INT32 -> convertStreaming<IntType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.INT16 -> convertStreaming<ShortType>(reader, n5out, dataset, dataset, numFillers, es, writer)
+				DataType.INT8 -> convertStreaming<ByteType>(reader, n5out, dataset, dataset, numFillers, es, writer)
 				else -> ConvertCremiLabels.LOG.warn("Non-integer dataType {} not supported -- skipping {}", inputAttributes.dataType, dataset)
 			}
 
@@ -175,6 +273,7 @@ fun main(args: Array<String>) {
 		sw.stop()
 		ConvertCremiLabels.LOG.info("Finished up-sampling datasets {} in container {} in {} seconds", datasets, path, sw.seconds())
 	}
+	writer.close()
 
 
 }
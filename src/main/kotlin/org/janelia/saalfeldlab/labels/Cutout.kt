@@ -5,21 +5,18 @@ import ij.ImageJ
 import net.imglib2.RandomAccessibleInterval
 import net.imglib2.algorithm.gauss3.Gauss3
 import net.imglib2.algorithm.labeling.affinities.Watersheds
+import net.imglib2.algorithm.morphology.watershed.SymmetricAffinities
 import net.imglib2.converter.Converter
 import net.imglib2.converter.Converters
-import net.imglib2.img.ImgFactory
 import net.imglib2.img.array.ArrayImgFactory
 import net.imglib2.img.array.ArrayImgs
 import net.imglib2.img.cell.CellImgFactory
 import net.imglib2.img.display.imagej.ImageJFunctions
-import net.imglib2.loops.LoopBuilder
 import net.imglib2.type.numeric.ARGBType
-import net.imglib2.type.numeric.RealType
 import net.imglib2.type.numeric.integer.UnsignedLongType
 import net.imglib2.type.numeric.real.FloatType
 import net.imglib2.util.Intervals
 import net.imglib2.util.StopWatch
-import net.imglib2.util.Util
 import net.imglib2.view.Views
 import org.janelia.saalfeldlab.n5.N5FSWriter
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer
@@ -32,7 +29,6 @@ import java.nio.file.Paths
 import java.util.Arrays
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicInteger
-import java.util.function.BiConsumer
 import java.util.function.BiPredicate
 import java.util.function.Predicate
 import java.util.stream.Collectors
@@ -128,40 +124,10 @@ fun main(argv: Array<String>) {
 	val invertedSteps = Stream.of(*steps).map {it.invertValues()}.collect(Collectors.toList()).toTypedArray().reversedArray()
 	val symmetricAffinitiesFactory = ArrayImgFactory(FloatType())
 
-	fun <A: RealType<A>> constructAffinitiesWithCopy(
-			affinities: RandomAccessibleInterval<A>,
-			factory: ImgFactory<A>,
-			vararg offsets: LongArray): RandomAccessibleInterval<A> {
-		val dims = Intervals.dimensionsAsLongArray(affinities)
-		dims[dims.size - 1] = dims[dims.size - 1] * 2
-		val symmetricAffinities = factory.create(*dims)
-
-		LoopBuilder
-				.setImages(affinities, Views.interval(symmetricAffinities, Views.zeroMin(affinities)))
-				.forEachPixel(BiConsumer { t, u ->  u.set(t)})
-
-		val nanExtension = Util.getTypeFromInterval(affinities).createVariable()
-		nanExtension.setReal(Double.NaN)
-
-		val zeroMinAffinities = if (Views.isZeroMin(affinities)) affinities else Views.zeroMin(affinities)
-
-		for (offsetIndex in 0 until offsets.size) {
-			val targetIndex = offsets.size + offsets.size - 1 - offsetIndex.toLong()
-			println("$offsetIndex $targetIndex")
-			val targetSlice = Views.hyperSlice(symmetricAffinities, dims.size - 1, targetIndex)
-			val sourceSlice = Views.interval(Views.translate(
-					Views.extendValue(Views.hyperSlice(zeroMinAffinities, dims.size - 1, offsetIndex.toLong()), nanExtension),
-					*offsets[offsetIndex]), targetSlice)
-			LoopBuilder
-					.setImages(sourceSlice, targetSlice)
-					.forEachPixel(BiConsumer { t, u -> u.set(t) })
-		}
-
-		return if (Views.isZeroMin(affinities)) symmetricAffinities else Views.translate(symmetricAffinities, *Intervals.minAsLongArray(affinities))
-	}
-
 //	val symmetricAffinities = Watersheds.constructAffinities(affinitiesSmoothed, *steps, factory = symmetricAffinitiesFactory)
-	val symmetricAffinities = constructAffinitiesWithCopy(affinitiesSmoothed, offsets = *steps, factory = symmetricAffinitiesFactory)
+	val es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+	val symmetricAffinities = SymmetricAffinities.copy(affinitiesSmoothed, symmetricAffinitiesFactory, steps, es, Runtime.getRuntime().availableProcessors())
+	es.shutdown()
 
 	val (parents, roots) = Watersheds.letItRain(
 			Views.collapseReal(symmetricAffinities),
@@ -0,0 +1,285 @@
+package org.janelia.saalfeldlab.labels
+
+import gnu.trove.list.array.TLongArrayList
+import net.imglib2.FinalInterval
+import net.imglib2.Interval
+import net.imglib2.algorithm.morphology.watershed.BlockwiseAffinityWatershed
+import net.imglib2.algorithm.morphology.watershed.FloatCompareBetter
+import net.imglib2.algorithm.util.Grids
+import net.imglib2.algorithm.util.unionfind.IntArrayUnionFind
+import net.imglib2.type.numeric.real.FloatType
+import net.imglib2.util.Intervals
+import net.imglib2.util.StopWatch
+import net.imglib2.view.Views
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock
+import org.janelia.saalfeldlab.n5.DataType
+import org.janelia.saalfeldlab.n5.GzipCompression
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock
+import org.janelia.saalfeldlab.n5.N5FSWriter
+import org.janelia.saalfeldlab.n5.N5Writer
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils
+import org.slf4j.LoggerFactory
+import picocli.CommandLine
+import java.lang.invoke.MethodHandles
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Stream
+
+private val OFFSET_KEY = "offset"
+
+private val RESOLUTION_KEY = "resolution"
+
+private val SOURCE_CONTAINER_KEY = "sourceContainer"
+
+private val SOURCE_DATASET_KEY = "sourceDataset"
+
+private val MAX_ID_KEY = "maxId"
+
+private val LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass())
+
+private fun Interval.gridPosition(blockSize: IntArray) = LongArray(numDimensions(), { min(it) / blockSize[it] })
+
+private fun N5Writer.readLongs(dataset: String, gridPosition: LongArray) =
+		readBlock(dataset, getDatasetAttributes(dataset), gridPosition).data as LongArray
+
+private fun N5Writer.readBytes(dataset: String, gridPosition: LongArray) =
+		readBlock(dataset, getDatasetAttributes(dataset), gridPosition).data as ByteArray
+
+private fun N5Writer.readInts(dataset: String, gridPosition: LongArray) =
+		readBlock(dataset, getDatasetAttributes(dataset), gridPosition).data as IntArray
+
+fun main(argv: Array<String>) {
+
+	LOG.debug("Running block-wise watersheds with these arguments {}", argv)
+
+	val totalStopWatch = StopWatch.createAndStart()
+
+	class Offset(vararg val offset: Long) {
+
+	}
+
+	@CommandLine.Command(name = "Let-It-Rain-Blockwise")
+	class Args {
+
+		@CommandLine.Parameters(arity = "1", paramLabel = "INPUT_CONTAINER", description = arrayOf("Path to N5 container with affinities dataset."))
+		var inputContainer: String? = null
+
+		@CommandLine.Option(names = arrayOf("--output-container"), paramLabel = "OUTPUT_CONTAINER", description = arrayOf("Path to output container. Defaults to INPUT_CONTAINER."))
+		var outputContainer: String? = null
+
+		@CommandLine.Option(names = arrayOf("--affinity-dataset"), paramLabel = "AFFINITIES", description = arrayOf("Path of affinities dataset in INPUT_CONTAINER."))
+		var affinities = "volumes/affinities/prediction"
+
+		@CommandLine.Option(names = arrayOf("--rain-dataset"), paramLabel = "RAIN", description = arrayOf("Path to watershed basins in OUTPUT_CONTAINER. Per-block best edges, plateau distances, fragments and parents are stored in RAIN-blocks."))
+		var rain = "volumes/labels/rain"
+
+		@CommandLine.Option(names = arrayOf("--invert-affinities-axis"), paramLabel = "INVERT_AFFINITIES_AXIS", description = arrayOf("Invert axis that holds affinities. This is necessary if affinities were generated as [z,y,x]."))
+		var invertAffinitiesAxis = false
+
+		@CommandLine.Option(names = arrayOf("--offsets"), arity = "1..*", paramLabel = "OFFSETS", description = arrayOf("Structuring elements for affinities. Defaults to -1,0,0 0,-1,0 0,0,-1."))
+		var offsets = arrayOf(Offset(-1, 0, 0), Offset(0, -1, 0), Offset(0, 0, -1))
+
+		@CommandLine.Option(names = arrayOf("--block-size"), arity = "1..*", paramLabel = "BLOCK_SIZE", description = arrayOf("Block size of output. Each block is processed independently."))
+		var blockSize = intArrayOf(64, 64, 64)
+
+		@CommandLine.Option(names = arrayOf("--num-threads"), paramLabel = "NUM_THREADS", description = arrayOf("Number of blocks processed in parallel."))
+		var numThreads = Runtime.getRuntime().availableProcessors()
+
+	}
+
+	val args = Args()
+	val cmdLine = CommandLine(args)
+			.registerConverter(Offset::class.java, { Offset(*Stream.of(*it.split(",").toTypedArray()).mapToLong(String::toLong).toArray()) })
+	cmdLine.parse(*argv)
+
+	val threadCount = AtomicInteger(0)
+	val es = Executors.newFixedThreadPool(args.numThreads, {Thread(it, "rain-blockwise-${threadCount.incrementAndGet()}")})
+
+	val steps = Array(args.offsets.size, {args.offsets[it].offset})
+	val inputContainer = args.inputContainer!!
+	val outputContainer = args.outputContainer ?: inputContainer
+	val n5in = if (Files.isDirectory(Paths.get(inputContainer))) N5FSWriter(inputContainer) else N5HDF5Writer(inputContainer)
+	val n5out = if (Files.isDirectory(Paths.get(outputContainer))) N5FSWriter(outputContainer) else N5HDF5Writer(outputContainer)
+	val affinitiesDataset = args.affinities
+	val blockSize = args.blockSize
+	val edgesDataset = "${args.rain}-blocks/best-edges"
+	val distancesDataset = "${args.rain}-blocks/plateau-distances"
+	val fragmentsDataset = "${args.rain}-blocks/fragments"
+	val parentsDataset = "${args.rain}-blocks/parents"
+
+	val affinities =
+			if (args.invertAffinitiesAxis) Views.zeroMin(Views.invertAxis(N5Utils.open<FloatType>(n5in, affinitiesDataset), 3))
+			else N5Utils.open<FloatType>(n5in, affinitiesDataset)
+	val dimensions = Intervals.dimensionsAsLongArray(affinities).let { it.copyOf(it.size - 1) }
+	val volume = FinalInterval(*dimensions)
+	val blocks = Grids.collectAllContainedIntervals(dimensions, blockSize)
+	val blockIndices = blocks.withIndex().associate { it.value.gridPosition(blockSize).toList() to it.index }
+	// neighbors in the order of AffinityWatershed2.generateSteps, -1 outside of the volume
+	val neighborIndices = blocks.map { block ->
+		val gridPosition = block.gridPosition(blockSize)
+		IntArray(2 * gridPosition.size, { edge ->
+			val d = if (edge < gridPosition.size) gridPosition.size - 1 - edge else edge - gridPosition.size
+			val neighborPosition = gridPosition.clone()
+			neighborPosition[d] += if (edge < gridPosition.size) -1L else 1L
+			blockIndices[neighborPosition.toList()] ?: -1
+		})
+	}
+	LOG.info("Running watersheds for affinities with dimensions {} in {} blocks of size {}", dimensions, blocks.size, blockSize)
+
+	n5out.createDataset(edgesDataset, dimensions, blockSize, DataType.UINT8, GzipCompression())
+	n5out.createDataset(distancesDataset, dimensions, blockSize, DataType.INT32, GzipCompression())
+	n5out.createDataset(fragmentsDataset, dimensions, blockSize, DataType.UINT64, GzipCompression())
+	n5out.createDataset(parentsDataset, dimensions, blockSize, DataType.UINT8, GzipCompression())
+	n5out.createDataset(args.rain, dimensions, blockSize, DataType.UINT64, GzipCompression())
+	val edgesAttributes = n5out.getDatasetAttributes(edgesDataset)
+	val distancesAttributes = n5out.getDatasetAttributes(distancesDataset)
+	val fragmentsAttributes = n5out.getDatasetAttributes(fragmentsDataset)
+	val parentsAttributes = n5out.getDatasetAttributes(parentsDataset)
+	val rainAttributes = n5out.getDatasetAttributes(args.rain)
+
+	fun readBlock(index: Int) = blocks[index].gridPosition(blockSize).let {
+		BlockwiseAffinityWatershed.Block(blocks[index], n5out.readBytes(edgesDataset, it), n5out.readInts(distancesDataset, it))
+	}
+
+	fun readNeighbors(index: Int) = neighborIndices[index].map { if (it < 0) null else readBlock(it) }.toTypedArray()
+
+	// first pass: best edges and plateau distances within each block
+	val sw = StopWatch.createAndStart()
+	val extendedAffinities = Views.extendValue(affinities, FloatType(Float.NaN))
+	blocks
+			.map { block -> es.submit(Callable {
+				val result = BlockwiseAffinityWatershed.letItRain(extendedAffinities, volume, block, steps, FloatCompareBetter.GREATER, Float.NEGATIVE_INFINITY, es)
+				val gridPosition = block.gridPosition(blockSize)
+				val size = Intervals.dimensionsAsIntArray(block)
+				n5out.writeBlock(edgesDataset, edgesAttributes, ByteArrayDataBlock(size, gridPosition, result.parents))
+				n5out.writeBlock(distancesDataset, distancesAttributes, IntArrayDataBlock(size, gridPosition, result.distances))
+			}) }
+			.forEach { it.get() }
+	sw.stop()
+	LOG.info("Found best edges in {} blocks in {} seconds", blocks.size, sw.seconds())
+
+	// second pass: propagate plateau distances across block faces until no block changes. Distances only decrease, so
+	// blocks may read neighbors that are updated concurrently.
+	sw.start()
+	var changed = BooleanArray(blocks.size, { true })
+	var rounds = 0
+	while (changed.any { it }) {
+		val previous = changed
+		changed = BooleanArray(blocks.size)
+		blocks.indices
+				.filter { index -> neighborIndices[index].any { it >= 0 && previous[it] } }
+				.map { index -> es.submit(Callable {
+					val block = readBlock(index)
+					if (BlockwiseAffinityWatershed.resolvePlateaus(block, readNeighbors(index))) {
+						val gridPosition = block.interval.gridPosition(blockSize)
+						n5out.writeBlock(distancesDataset, distancesAttributes, IntArrayDataBlock(Intervals.dimensionsAsIntArray(block.interval), gridPosition, block.distances))
+						changed[index] = true
+					}
+				}) }
+				.forEach { it.get() }
+		++rounds
+	}
+	sw.stop()
+	LOG.info("Resolved plateaus across block faces in {} rounds in {} seconds", rounds, sw.seconds())
+
+	// third pass: single parents and fragments within each block
+	sw.start()
+	val numFragments = LongArray(blocks.size)
+	blocks
+			.mapIndexed { index, block -> es.submit(Callable {
+				val result = BlockwiseAffinityWatershed.fragments(readBlock(index), readNeighbors(index))
+				val gridPosition = block.gridPosition(blockSize)
+				val size = Intervals.dimensionsAsIntArray(block)
+				n5out.writeBlock(fragmentsDataset, fragmentsAttributes, LongArrayDataBlock(size, gridPosition, result.labels))
+				n5out.writeBlock(parentsDataset, parentsAttributes, ByteArrayDataBlock(size, gridPosition, result.parents))
+				numFragments[index] = result.numFragments().toLong()
+			}) }
+			.forEach { it.get() }
+	sw.stop()
+	LOG.info("Found {} fragments in {} blocks in {} seconds", numFragments.sum(), blocks.size, sw.seconds())
+
+	val fragmentOffsets = LongArray(blocks.size)
+	for (index in 1 until blocks.size)
+		fragmentOffsets[index] = fragmentOffsets[index - 1] + numFragments[index - 1]
+	val totalFragments = fragmentOffsets.last() + numFragments.last()
+
+	// fourth pass: connect fragments across block faces
+	sw.start()
+	val equivalences = blocks
+			.mapIndexed { index, block -> es.submit(Callable {
+				val blockEquivalences = TLongArrayList()
+				val gridPosition = block.gridPosition(blockSize)
+				val labels = n5out.readLongs(fragmentsDataset, gridPosition)
+				val parents = n5out.readBytes(parentsDataset, gridPosition)
+				for (d in 0 until gridPosition.size) {
+					val neighborPosition = gridPosition.clone()
+					neighborPosition[d] += 1L
+					val neighborIndex = blockIndices[neighborPosition.toList()] ?: continue
+					BlockwiseAffinityWatershed.collectEquivalences(
+							labels,
+							parents,
+							fragmentOffsets[index],
+							Intervals.dimensionsAsLongArray(block),
+							n5out.readLongs(fragmentsDataset, neighborPosition),
+							n5out.readBytes(parentsDataset, neighborPosition),
+							fragmentOffsets[neighborIndex],
+							Intervals.dimensionsAsLongArray(blocks[neighborIndex]),
+							d,
+							blockEquivalences)
+				}
+				blockEquivalences
+			}) }
+			.map { it.get() }
+
+	// the union-find and the mapping hold all fragments of the volume, not only those of the blocks in flight, and are
+	// indexed by int
+	require(totalFragments < Int.MAX_VALUE) { "Cannot merge $totalFragments fragments, at most ${Int.MAX_VALUE - 1} fragments are supported" }
+	val uf = IntArrayUnionFind(totalFragments.toInt() + 1)
+	equivalences.forEach { pairs ->
+		for (index in 0 until pairs.size() step 2)
+			uf.join(uf.findRoot(pairs[index]), uf.findRoot(pairs[index + 1]))
+	}
+
+	val mapping = LongArray(totalFragments.toInt() + 1)
+	var maxId = 0L
+	for (id in 1 .. totalFragments) {
+		val root = uf.findRoot(id).toInt()
+		if (mapping[root] == 0L)
+			mapping[root] = ++maxId
+		mapping[id.toInt()] = mapping[root]
+	}
+	sw.stop()
+	LOG.info("Merged {} fragments across block faces into {} basins in {} seconds", totalFragments, maxId, sw.seconds())
+
+	// fifth pass: relabel fragments with merged basin ids
+	sw.start()
+	blocks
+			.mapIndexed { index, block -> es.submit(Callable {
+				val gridPosition = block.gridPosition(blockSize)
+				val labels = n5out.readLongs(fragmentsDataset, gridPosition)
+				val offset = fragmentOffsets[index]
+				for (i in labels.indices)
+					labels[i] = if (labels[i] == 0L) 0L else mapping[(offset + labels[i]).toInt()]
+				n5out.writeBlock(args.rain, rainAttributes, LongArrayDataBlock(Intervals.dimensionsAsIntArray(block), gridPosition, labels))
+			}) }
+			.forEach { it.get() }
+
+	n5in.getAttribute(affinitiesDataset, OFFSET_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.rain, OFFSET_KEY, it) }
+	n5in.getAttribute(affinitiesDataset, RESOLUTION_KEY, LongArray::class.java)?.let { n5out.setAttribute(args.rain, RESOLUTION_KEY, it) }
+	n5out.setAttribute(args.rain, SOURCE_CONTAINER_KEY, inputContainer)
+	n5out.setAttribute(args.rain, SOURCE_DATASET_KEY, affinitiesDataset)
+	n5out.setAttribute(args.rain, MAX_ID_KEY, maxId)
+	sw.stop()
+	LOG.info("Saved basins in {} seconds", sw.seconds())
+
+	totalStopWatch.stop()
+	LOG.info("Total run time was {} seconds", totalStopWatch.seconds())
+
+	es.shutdown()
+
+}
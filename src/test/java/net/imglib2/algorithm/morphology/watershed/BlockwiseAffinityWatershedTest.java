@@ -0,0 +1,227 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Basins of {@link BlockwiseAffinityWatershed} must be the same as those of
+ * the in-memory {@link AffinityWatershed2#letItRainOneSided}, up to the
+ * choice of ids. Affinities are drawn from a few levels, so that most voxels
+ * have tied edges and plateaus cross block faces.
+ */
+public class BlockwiseAffinityWatershedTest
+{
+
+	private static final long[][] DIMENSIONS = { { 23, 17, 9 }, { 40, 31 }, { 300 } };
+
+	private static final int[][][] BLOCK_SIZES = { { { 8, 8, 4 }, { 5, 7, 3 }, { 23, 17, 9 } }, { { 8, 8 }, { 3, 13 } }, { { 32 }, { 7 } } };
+
+	private static final int[] LEVELS = { 1, 2, 4, 8 };
+
+	private static ExecutorService es;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		es = Executors.newFixedThreadPool( 3 );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		es.shutdown();
+	}
+
+	@Test
+	public void testTies() throws InterruptedException, ExecutionException
+	{
+		for ( int i = 0; i < DIMENSIONS.length; ++i )
+			for ( final int levels : LEVELS )
+			{
+				final long[] dimensions = DIMENSIONS[ i ];
+				final int nDim = dimensions.length;
+				final int size = ( int ) Intervals.numElements( dimensions );
+				final long[] affinityDimensions = Arrays.copyOf( dimensions, nDim + 1 );
+				affinityDimensions[ nDim ] = nDim;
+				final Random rng = new Random( 100 * levels + nDim );
+				final float[] affinities = new float[ size * nDim ];
+				for ( int k = 0; k < affinities.length; ++k )
+					affinities[ k ] = rng.nextInt( levels ) / ( float ) levels;
+				final long[][] offsets = new long[ nDim ][ nDim ];
+				for ( int d = 0; d < nDim; ++d )
+					offsets[ d ][ d ] = -1;
+
+				final long[] expected = new long[ size ];
+				AffinityWatershed2.letItRainOneSided(
+						ArrayImgs.floats( affinities.clone(), affinityDimensions ),
+						ArrayImgs.longs( expected, dimensions ),
+						offsets,
+						FloatCompareBetter.GREATER,
+						Float.NEGATIVE_INFINITY,
+						es,
+						1,
+						LetItRainListener.NO_OP );
+
+				for ( final int[] blockSize : BLOCK_SIZES[ i ] )
+				{
+					final long[] blockwise = blockwise( ArrayImgs.floats( affinities, affinityDimensions ), dimensions, blockSize, offsets );
+					assertSamePartition( Arrays.toString( dimensions ) + " in blocks of " + Arrays.toString( blockSize ) + " with " + levels + " levels", expected, blockwise );
+				}
+			}
+	}
+
+	/**
+	 * All passes of {@link BlockwiseAffinityWatershed} as in
+	 * {@code LetItRainBlockwise}, with all blocks in memory.
+	 */
+	private static long[] blockwise( final RandomAccessibleInterval< FloatType > affinities, final long[] dimensions, final int[] blockSize, final long[][] offsets ) throws InterruptedException, ExecutionException
+	{
+		final int nDim = dimensions.length;
+		final Interval volume = new FinalInterval( dimensions );
+		final long[] gridDimensions = new long[ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+		final long[] gridStrides = AffinityWatershed2.generateStride( new FinalInterval( gridDimensions ) );
+		final long[] gridSteps = AffinityWatershed2.generateSteps( gridStrides );
+		final int numBlocks = ( int ) Intervals.numElements( gridDimensions );
+
+		final BlockwiseAffinityWatershed.Block[] blocks = new BlockwiseAffinityWatershed.Block[ numBlocks ];
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final long[] min = new long[ nDim ];
+			final long[] max = new long[ nDim ];
+			for ( int d = 0; d < nDim; ++d )
+			{
+				min[ d ] = b / gridStrides[ d ] % gridDimensions[ d ] * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ], dimensions[ d ] ) - 1;
+			}
+			blocks[ b ] = BlockwiseAffinityWatershed.letItRain(
+					Views.extendValue( affinities, new FloatType( Float.NaN ) ),
+					volume,
+					new FinalInterval( min, max ),
+					offsets,
+					FloatCompareBetter.GREATER,
+					Float.NEGATIVE_INFINITY,
+					es );
+		}
+
+		final BlockwiseAffinityWatershed.Block[][] neighbors = new BlockwiseAffinityWatershed.Block[ numBlocks ][ 2 * nDim ];
+		for ( int b = 0; b < numBlocks; ++b )
+			for ( int e = 0; e < 2 * nDim; ++e )
+			{
+				final int d = e < nDim ? nDim - 1 - e : e - nDim;
+				final long position = b / gridStrides[ d ] % gridDimensions[ d ] + ( e < nDim ? -1 : 1 );
+				if ( position >= 0 && position < gridDimensions[ d ] )
+					neighbors[ b ][ e ] = blocks[ ( int ) ( b + gridSteps[ e ] ) ];
+			}
+
+		for ( boolean changed = true; changed; )
+		{
+			changed = false;
+			for ( int b = 0; b < numBlocks; ++b )
+				changed |= BlockwiseAffinityWatershed.resolvePlateaus( blocks[ b ], neighbors[ b ] );
+		}
+
+		final List< BlockwiseAffinityWatershed.Fragments > fragments = new ArrayList<>();
+		final long[] fragmentOffsets = new long[ numBlocks + 1 ];
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			fragments.add( BlockwiseAffinityWatershed.fragments( blocks[ b ], neighbors[ b ] ) );
+			fragmentOffsets[ b + 1 ] = fragmentOffsets[ b ] + fragments.get( b ).numFragments();
+		}
+
+		final TLongArrayList equivalences = new TLongArrayList();
+		for ( int b = 0; b < numBlocks; ++b )
+			for ( int d = 0; d < nDim; ++d )
+			{
+				final int upper = ( int ) ( b + gridStrides[ d ] );
+				if ( neighbors[ b ][ nDim + d ] == null )
+					continue;
+				BlockwiseAffinityWatershed.collectEquivalences(
+						fragments.get( b ).labels,
+						fragments.get( b ).parents,
+						fragmentOffsets[ b ],
+						Intervals.dimensionsAsLongArray( blocks[ b ].interval ),
+						fragments.get( upper ).labels,
+						fragments.get( upper ).parents,
+						fragmentOffsets[ upper ],
+						Intervals.dimensionsAsLongArray( blocks[ upper ].interval ),
+						d,
+						equivalences );
+			}
+
+		final int[] roots = new int[ ( int ) fragmentOffsets[ numBlocks ] + 1 ];
+		for ( int id = 0; id < roots.length; ++id )
+			roots[ id ] = id;
+		for ( int k = 0; k < equivalences.size(); k += 2 )
+			roots[ findRoot( roots, ( int ) equivalences.get( k ) ) ] = findRoot( roots, ( int ) equivalences.get( k + 1 ) );
+
+		final long[] labels = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		final long[] strides = AffinityWatershed2.generateStride( volume );
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final Interval interval = blocks[ b ].interval;
+			final long[] blockLabels = fragments.get( b ).labels;
+			final long[] blockStrides = AffinityWatershed2.generateStride( interval );
+			for ( int index = 0; index < blockLabels.length; ++index )
+			{
+				long globalIndex = 0;
+				for ( int d = 0; d < nDim; ++d )
+					globalIndex += ( index / blockStrides[ d ] % interval.dimension( d ) + interval.min( d ) ) * strides[ d ];
+				labels[ ( int ) globalIndex ] = blockLabels[ index ] == 0 ? 0 : findRoot( roots, ( int ) ( fragmentOffsets[ b ] + blockLabels[ index ] ) );
+			}
+		}
+		return labels;
+	}
+
+	private static int findRoot( final int[] roots, final int id )
+	{
+		int root = id;
+		while ( roots[ root ] != root )
+			root = roots[ root ];
+		return root;
+	}
+
+	private static void assertSamePartition( final String message, final long[] expected, final long[] actual )
+	{
+		final TLongLongHashMap expectedToActual = new TLongLongHashMap();
+		final TLongLongHashMap actualToExpected = new TLongLongHashMap();
+		final long[] mapped = new long[ actual.length ];
+		for ( int index = 0; index < actual.length; ++index )
+		{
+			assertEquals( message, expected[ index ] == 0, actual[ index ] == 0 );
+			if ( !expectedToActual.containsKey( expected[ index ] ) )
+			{
+				assertFalse( message + ": basins merged", actualToExpected.containsKey( actual[ index ] ) );
+				expectedToActual.put( expected[ index ], actual[ index ] );
+				actualToExpected.put( actual[ index ], expected[ index ] );
+			}
+			mapped[ index ] = actualToExpected.get( actual[ index ] );
+		}
+		assertArrayEquals( message, expected, mapped );
+	}
+
+}
@@ -0,0 +1,289 @@
+package net.imglib2.algorithm.morphology.watershed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * The blocked parent search of {@link FlatAffinityWatershed} and the
+ * one-sided fast paths must label exactly like the generic
+ * {@link AffinityWatershed2#letItRain} on symmetric affinities. Affinities
+ * are drawn from a few levels, so that most voxels have tied edges and
+ * plateaus. Every voxel follows a single parent, so the labels must not
+ * depend on the number of tasks either.
+ */
+public class LetItRainEquivalenceTest
+{
+
+	private static final long[][] DIMENSIONS = { { 37, 23, 11 }, { 50, 41 }, { 600 }, { 5, 4, 3 } };
+
+	private static final int[] LEVELS = { 2, 4, 8 };
+
+	private static ExecutorService es;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		es = Executors.newFixedThreadPool( 3 );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		es.shutdown();
+	}
+
+	@Test
+	public void testBlockedFindParents() throws InterruptedException, ExecutionException
+	{
+		for ( final long[] dimensions : DIMENSIONS )
+			for ( final int levels : LEVELS )
+			{
+				final int nDim = dimensions.length;
+				final int size = ( int ) Intervals.numElements( dimensions );
+				final float[][] oneSided = randomOneSided( dimensions, levels, 100 * levels + nDim );
+				final long[][] offsets = negativeOffsets( nDim );
+
+				final float[] greater = symmetric( oneSided, offsets, dimensions, Float.NEGATIVE_INFINITY );
+				final long[] expectedGreater = new long[ size ];
+				final long[] expectedGreaterCounts = generic( greater, expectedGreater, dimensions, ( t, u ) -> t.get() > u.get(), Float.NEGATIVE_INFINITY );
+				final long[] blockedGreater = new long[ size ];
+				final long[] blockedGreaterCounts = FlatAffinityWatershed.letItRain(
+						ArrayImgs.floats( greater.clone(), affinityDimensions( dimensions, 2 * nDim ) ),
+						ArrayImgs.longs( blockedGreater, dimensions ),
+						FloatCompareBetter.GREATER,
+						Float.NEGATIVE_INFINITY,
+						es,
+						1,
+						LetItRainListener.NO_OP );
+				final String message = Arrays.toString( dimensions ) + " with " + levels + " levels";
+				assertArrayEquals( message, expectedGreater, blockedGreater );
+				assertArrayEquals( message, expectedGreaterCounts, blockedGreaterCounts );
+
+				final float[] less = symmetric( oneSided, offsets, dimensions, Float.POSITIVE_INFINITY );
+				final long[] expectedLess = new long[ size ];
+				final long[] expectedLessCounts = generic( less, expectedLess, dimensions, ( t, u ) -> t.get() < u.get(), Float.POSITIVE_INFINITY );
+				final long[] blockedLess = new long[ size ];
+				final long[] blockedLessCounts = FlatAffinityWatershed.letItRain(
+						ArrayImgs.floats( less.clone(), affinityDimensions( dimensions, 2 * nDim ) ),
+						ArrayImgs.longs( blockedLess, dimensions ),
+						FloatCompareBetter.LESS,
+						Float.POSITIVE_INFINITY,
+						es,
+						1,
+						LetItRainListener.NO_OP );
+				assertArrayEquals( message, expectedLess, blockedLess );
+				assertArrayEquals( message, expectedLessCounts, blockedLessCounts );
+			}
+	}
+
+	@Test
+	public void testOneSided() throws InterruptedException, ExecutionException
+	{
+		for ( final long[] dimensions : DIMENSIONS )
+			for ( final int levels : LEVELS )
+				for ( final long[][] offsets : new long[][][] { negativeOffsets( dimensions.length ), mixedOffsets( dimensions.length ) } )
+				{
+					final int nDim = dimensions.length;
+					final int size = ( int ) Intervals.numElements( dimensions );
+					final float worst = Float.NEGATIVE_INFINITY;
+					final float[][] oneSided = randomOneSided( dimensions, levels, 100 * levels + nDim );
+					final float[] flatOneSided = new float[ nDim * size ];
+					for ( int c = 0; c < nDim; ++c )
+						System.arraycopy( oneSided[ c ], 0, flatOneSided, c * size, size );
+					final long[] oneSidedDimensions = affinityDimensions( dimensions, nDim );
+
+					final long[] expected = new long[ size ];
+					final long[] expectedCounts = generic( symmetric( oneSided, offsets, dimensions, worst ), expected, dimensions, ( t, u ) -> t.get() > u.get(), worst );
+					final String message = Arrays.toString( dimensions ) + " with " + levels + " levels and offsets " + Arrays.deepToString( offsets );
+
+					final long[] array = new long[ size ];
+					final long[] arrayCounts = AffinityWatershed2.letItRainOneSided(
+							ArrayImgs.floats( flatOneSided.clone(), oneSidedDimensions ),
+							ArrayImgs.longs( array, dimensions ),
+							offsets,
+							FloatCompareBetter.GREATER,
+							worst,
+							es,
+							1,
+							LetItRainListener.NO_OP );
+					assertArrayEquals( message, expected, array );
+					assertArrayEquals( message, expectedCounts, arrayCounts );
+
+					final PlanarImg< FloatType, FloatArray > planarAffinities = PlanarImgs.floats( oneSidedDimensions );
+					final Cursor< FloatType > affinityCursor = Views.flatIterable( planarAffinities ).cursor();
+					for ( int i = 0; affinityCursor.hasNext(); ++i )
+						affinityCursor.next().set( flatOneSided[ i ] );
+					final PlanarImg< LongType, LongArray > planarLabels = PlanarImgs.longs( dimensions );
+					final long[] planarCounts = AffinityWatershed2.letItRainOneSided(
+							planarAffinities,
+							planarLabels,
+							offsets,
+							FloatCompareBetter.GREATER,
+							worst,
+							es,
+							1,
+							LetItRainListener.NO_OP );
+					final long[] planar = new long[ size ];
+					final Cursor< LongType > labelCursor = Views.flatIterable( planarLabels ).cursor();
+					for ( int i = 0; labelCursor.hasNext(); ++i )
+						planar[ i ] = labelCursor.next().get();
+					assertArrayEquals( message, expected, planar );
+					assertArrayEquals( message, expectedCounts, planarCounts );
+				}
+	}
+
+	@Test
+	public void testTasks() throws InterruptedException, ExecutionException
+	{
+		for ( final long[] dimensions : DIMENSIONS )
+			for ( final int levels : LEVELS )
+			{
+				final int nDim = dimensions.length;
+				final int size = ( int ) Intervals.numElements( dimensions );
+				final float[] affinities = symmetric( randomOneSided( dimensions, levels, 100 * levels + nDim ), negativeOffsets( nDim ), dimensions, Float.NEGATIVE_INFINITY );
+				final long[] expected = new long[ size ];
+				final long[] expectedCounts = generic( affinities, expected, dimensions, ( t, u ) -> t.get() > u.get(), Float.NEGATIVE_INFINITY );
+				final String message = Arrays.toString( dimensions ) + " with " + levels + " levels";
+				assertEquals( message, size, Arrays.stream( expectedCounts ).sum() );
+				for ( int run = 0; run < 3; ++run )
+				{
+					final long[] labels = new long[ size ];
+					final long[] counts = FlatAffinityWatershed.letItRain(
+							ArrayImgs.floats( affinities.clone(), affinityDimensions( dimensions, 2 * nDim ) ),
+							ArrayImgs.longs( labels, dimensions ),
+							FloatCompareBetter.GREATER,
+							Float.NEGATIVE_INFINITY,
+							es,
+							5,
+							LetItRainListener.NO_OP );
+					assertArrayEquals( message, expected, labels );
+					assertArrayEquals( message, expectedCounts, counts );
+				}
+			}
+	}
+
+	private static long[] generic(
+			final float[] affinities,
+			final long[] labels,
+			final long[] dimensions,
+			final CompareBetter< FloatType > compare,
+			final float worst ) throws InterruptedException, ExecutionException
+	{
+		return AffinityWatershed2.letItRain(
+				Views.collapseReal( ArrayImgs.floats( affinities.clone(), affinityDimensions( dimensions, 2 * dimensions.length ) ) ),
+				ArrayImgs.longs( labels, dimensions ),
+				compare,
+				new FloatType( worst ),
+				es,
+				1,
+				LetItRainListener.NO_OP );
+	}
+
+	/**
+	 * One channel per dimension with values from {@code levels} levels.
+	 */
+	private static float[][] randomOneSided( final long[] dimensions, final int levels, final long seed )
+	{
+		final Random rng = new Random( seed );
+		final int size = ( int ) Intervals.numElements( dimensions );
+		final float[][] affinities = new float[ dimensions.length ][ size ];
+		for ( final float[] channel : affinities )
+			for ( int i = 0; i < size; ++i )
+				channel[ i ] = rng.nextInt( levels ) / ( float ) levels;
+		return affinities;
+	}
+
+	/**
+	 * Symmetric affinities with {@code 2 * nDim} edges in the order of
+	 * {@link AffinityWatershed2#generateSteps(long[])}, flat with the edge
+	 * last. Channel {@code c} of {@code oneSided} holds the edge from each
+	 * voxel to the voxel at {@code offsets[ c ]}. Edges that leave the volume
+	 * are {@code worst}.
+	 */
+	private static float[] symmetric( final float[][] oneSided, final long[][] offsets, final long[] dimensions, final float worst )
+	{
+		final int nDim = dimensions.length;
+		final int size = ( int ) Intervals.numElements( dimensions );
+		final long[] strides = AffinityWatershed2.generateStride( ArrayImgs.longs( dimensions ) );
+		final float[] affinities = new float[ 2 * nDim * size ];
+		final long[] position = new long[ nDim ];
+		for ( int i = 0; i < size; ++i )
+		{
+			long remainder = i;
+			for ( int d = 0; d < nDim; ++d )
+			{
+				position[ d ] = remainder % dimensions[ d ];
+				remainder /= dimensions[ d ];
+			}
+			for ( int e = 0; e < 2 * nDim; ++e )
+			{
+				final int d = e < nDim ? nDim - 1 - e : e - nDim;
+				final long direction = e < nDim ? -1 : 1;
+				final long neighbor = position[ d ] + direction;
+				final float weight;
+				if ( neighbor < 0 || neighbor >= dimensions[ d ] )
+					weight = worst;
+				else
+				{
+					int channel = 0;
+					while ( offsets[ channel ][ d ] == 0 )
+						++channel;
+					// stored at this voxel or at the neighbor
+					weight = offsets[ channel ][ d ] == direction
+							? oneSided[ channel ][ i ]
+							: oneSided[ channel ][ ( int ) ( i + direction * strides[ d ] ) ];
+				}
+				affinities[ e * size + i ] = weight;
+			}
+		}
+		return affinities;
+	}
+
+	private static long[][] negativeOffsets( final int nDim )
+	{
+		final long[][] offsets = new long[ nDim ][ nDim ];
+		for ( int d = 0; d < nDim; ++d )
+			offsets[ d ][ d ] = -1;
+		return offsets;
+	}
+
+	/**
+	 * Channels in reverse order of dimensions with alternating signs.
+	 */
+	private static long[][] mixedOffsets( final int nDim )
+	{
+		final long[][] offsets = new long[ nDim ][ nDim ];
+		for ( int c = 0; c < nDim; ++c )
+			offsets[ c ][ nDim - 1 - c ] = c % 2 == 0 ? 1 : -1;
+		return offsets;
+	}
+
+	private static long[] affinityDimensions( final long[] dimensions, final int nChannels )
+	{
+		final long[] affinityDimensions = Arrays.copyOf( dimensions, dimensions.length + 1 );
+		affinityDimensions[ dimensions.length ] = nChannels;
+		return affinityDimensions;
+	}
+
+}